@@ -0,0 +1,442 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Coalesces appends to the same table into micro-batches loaded by a single
+ * {@code WRITE_APPEND} job with one source URI per file.
+ *
+ * A batch is open per table until it holds {@code maxBatchBytes} or
+ * {@code maxBatchFiles}, or {@code windowMs} after its first file, whichever
+ * comes first; it can also be flushed on demand. Flushed batches are queued on
+ * the {@link LoadJobRegistry} like any other load.
+ *
+ * Each file is checked on arrival: against the table when it exists, whose
+ * schema is then used for the load, or else against the other files of the
+ * batch, whose column types are widened to fit them all. The batches of a
+ * table are loaded one after the other, and each load checks its schema
+ * against the table again right before it is created, so a batch never
+ * appends a schema widened for a table that an earlier batch has created
+ * meanwhile. Only the {@link BigQuery} interface is used, so a fake will do
+ * in tests.
+ */
+public class AppendBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(AppendBatcher.class);
+
+    // BigQuery accepts up to 10,000 source URIs per load job.
+    private static final int MAX_SOURCE_URIS = 10_000;
+
+    // Types a CSV value of an earlier type also loads into, narrowest first.
+    private static final List<List<StandardSQLTypeName>> WIDENING = List.of(
+            List.of(StandardSQLTypeName.INT64, StandardSQLTypeName.NUMERIC, StandardSQLTypeName.FLOAT64),
+            List.of(StandardSQLTypeName.DATE, StandardSQLTypeName.DATETIME, StandardSQLTypeName.TIMESTAMP));
+
+    private final BigQuery bigQuery;
+    private final LoadJobRegistry loadJobs;
+    private final PipelineMetrics metrics;
+    private final FormatOptions formatOptions;
+    private final long maxBatchBytes;
+    private final int maxBatchFiles;
+    private final long windowMs;
+    private final int capacity;
+    private final ScheduledExecutorService timer;
+    private final Map<TableId, Batch> open = new HashMap<>();
+    private final Map<TableId, Batch> loading = new HashMap<>(); // Last batch queued per table, until loaded
+    private final Map<String, Batch> batches = new LinkedHashMap<>();
+
+    /**
+     * @param bigQuery      client used to read table schemas and create jobs;
+     *                      any implementation, including a fake, will do.
+     * @param loadJobs      registry the batch loads are queued on.
+     * @param metrics       pipeline metrics of the batch loads.
+     * @param formatOptions CSV options of the appended files.
+     * @param maxBatchBytes bytes of files that close a batch.
+     * @param maxBatchFiles files that close a batch.
+     * @param windowMs      longest time a batch stays open.
+     * @param capacity      batches remembered for lookups.
+     */
+    public AppendBatcher(BigQuery bigQuery, LoadJobRegistry loadJobs, PipelineMetrics metrics,
+            FormatOptions formatOptions, long maxBatchBytes, int maxBatchFiles, long windowMs, int capacity) {
+        this.bigQuery = bigQuery;
+        this.loadJobs = loadJobs;
+        this.metrics = metrics;
+        this.formatOptions = formatOptions;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchFiles = Math.min(maxBatchFiles, MAX_SOURCE_URIS);
+        this.windowMs = windowMs;
+        this.capacity = capacity;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bq-append-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a file to the open batch of {@code tableId}, opening one if needed.
+     * The batch is flushed right away once full.
+     *
+     * @param tableId  target table.
+     * @param uploadId upload session of the file.
+     * @param uri      {@code gs://} URI of the file.
+     * @param size     stored size of the file.
+     * @param schema   schema of the file, one field per column.
+     * @return the batch the file joined.
+     * @throws IllegalArgumentException if the file does not fit the table or
+     *                                  the other files of the batch.
+     */
+    public Batch append(TableId tableId, String uploadId, String uri, long size, Schema schema) {
+        // Read outside the lock; a table created meanwhile is caught by the load itself
+        Table table = bigQuery.getTable(tableId);
+        Schema tableSchema = table == null ? null : table.getDefinition().getSchema();
+        if (tableSchema != null) {
+            checkAppendable(tableSchema, schema, tableId);
+        }
+        Batch flushed = null;
+        Batch batch;
+        synchronized (open) {
+            batch = open.get(tableId);
+            if (batch == null) {
+                batch = new Batch(tableId, tableSchema != null ? tableSchema : schema);
+                open.put(tableId, batch);
+                remember(batch);
+                Batch opened = batch;
+                batch.timeout = timer.schedule(() -> flush(opened), windowMs, TimeUnit.MILLISECONDS);
+            } else if (tableSchema == null) {
+                batch.schema = widen(batch.schema, schema, tableId);
+            }
+            batch.add(uploadId, uri, size);
+            if (batch.getBytes() >= maxBatchBytes || batch.getFiles() >= maxBatchFiles) {
+                open.remove(tableId);
+                flushed = batch;
+            }
+        }
+        logger.info("Upload {} joined append batch {} of {} ({} files, {} bytes)", uploadId, batch.id,
+                tableId.getTable(), batch.getFiles(), batch.getBytes());
+        if (flushed != null) {
+            submit(flushed);
+        }
+        return batch;
+    }
+
+    /**
+     * Loads the open batch of a table now.
+     *
+     * @param tableId target table, or {@code null} for every open batch.
+     * @return the batches flushed.
+     */
+    public List<Batch> flush(TableId tableId) {
+        List<Batch> flushed = new ArrayList<>();
+        synchronized (open) {
+            if (tableId == null) {
+                flushed.addAll(open.values());
+                open.clear();
+            } else if (open.containsKey(tableId)) {
+                flushed.add(open.remove(tableId));
+            }
+        }
+        flushed.forEach(this::submit);
+        return flushed;
+    }
+
+    /**
+     * @return the batch with this id, or {@code null} if unknown or evicted.
+     */
+    public Batch get(String id) {
+        synchronized (open) {
+            return batches.get(id);
+        }
+    }
+
+    /**
+     * Stops the window timer. Batches still open are not loaded; their files
+     * stay in the bucket and can be appended again.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        synchronized (open) {
+            if (!open.isEmpty()) {
+                logger.warn("{} append batches were still open at shutdown: {}", open.size(), open.keySet());
+            }
+        }
+    }
+
+    // Window expiry; the batch may have been flushed since.
+    private void flush(Batch batch) {
+        synchronized (open) {
+            if (open.get(batch.tableId) != batch) {
+                return;
+            }
+            open.remove(batch.tableId);
+        }
+        submit(batch);
+    }
+
+    private void submit(Batch batch) {
+        batch.timeout.cancel(false);
+        Schema schema;
+        synchronized (open) {
+            batch.state = State.FLUSHED;
+            batch.flushedAt = Instant.now();
+            schema = batch.schema;
+        }
+        List<String> sourceUris = batch.getUris();
+        String source = sourceUris.size() == 1 ? sourceUris.get(0)
+                : sourceUris.get(0) + " (+" + (sourceUris.size() - 1) + " more)";
+        PipelineMetrics.Trace trace = metrics.trace("append", source);
+        LoadJobStatus load;
+        try {
+            load = loadJobs.register(source, batch.tableId, trace, () -> loaded(batch));
+        } catch (RuntimeException e) {
+            batch.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            logger.error("Failed to queue append batch {} of {}: {}", batch.id, batch.tableId.getTable(),
+                    batch.error);
+            return;
+        }
+        batch.task = status -> {
+            // An earlier batch may have created the table since the files were checked
+            Table table = bigQuery.getTable(batch.tableId);
+            Schema tableSchema = table == null ? null : table.getDefinition().getSchema();
+            if (tableSchema != null) {
+                checkAppendable(tableSchema, schema, batch.tableId);
+            }
+            LoadJobConfiguration loadConfig = LoadJobConfiguration.newBuilder(batch.tableId, sourceUris)
+                    .setSchema(tableSchema != null ? tableSchema : schema)
+                    .setFormatOptions(formatOptions)
+                    .setWriteDisposition(JobInfo.WriteDisposition.WRITE_APPEND)
+                    .setCreateDisposition(JobInfo.CreateDisposition.CREATE_IF_NEEDED)
+                    .build();
+
+            logger.info("Submitting append batch {} into {} from {} files", batch.id, batch.tableId.getTable(),
+                    sourceUris.size());
+            Job job = bigQuery.create(JobInfo.of(JobId.of(UUID.randomUUID().toString()), loadConfig));
+            return job.getJobId();
+        };
+        batch.load = load;
+
+        // Queued now, or once the load of the previous batch of the table has ended
+        Batch previous;
+        synchronized (open) {
+            previous = loading.put(batch.tableId, batch);
+            if (previous != null) {
+                previous.next = batch;
+            }
+        }
+        if (previous == null) {
+            loadJobs.start(load, batch.task);
+        }
+    }
+
+    // The load of a batch has ended, successful or not; queues the next batch of the table.
+    private void loaded(Batch batch) {
+        Batch next;
+        synchronized (open) {
+            next = batch.next;
+            if (next == null) {
+                loading.remove(batch.tableId);
+            }
+        }
+        if (next != null) {
+            loadJobs.start(next.load, next.task);
+        }
+    }
+
+    // Caller holds the open lock.
+    private void remember(Batch batch) {
+        batches.put(batch.id, batch);
+        if (batches.size() > capacity) {
+            batches.values().removeIf(old -> old.flushedAt != null && batches.size() > capacity);
+        }
+    }
+
+    /**
+     * Checks a file can be appended to an existing table: CSV columns are
+     * loaded by position, so names must match in order and every inferred
+     * type must load into the table column.
+     */
+    static void checkAppendable(Schema tableSchema, Schema schema, TableId tableId) {
+        List<Field> columns = tableSchema.getFields();
+        List<Field> fields = schema.getFields();
+        if (columns.size() != fields.size()) {
+            throw new IllegalArgumentException("Table " + tableId.getTable() + " has " + columns.size()
+                    + " columns, the file has " + fields.size());
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            Field column = columns.get(i);
+            Field field = fields.get(i);
+            if (!column.getName().equalsIgnoreCase(field.getName())) {
+                throw new IllegalArgumentException("Column " + (i + 1) + " of table " + tableId.getTable()
+                        + " is " + column.getName() + ", the file has " + field.getName());
+            }
+            StandardSQLTypeName columnType = column.getType().getStandardType();
+            StandardSQLTypeName type = field.getType().getStandardType();
+            if (widen(columnType, type) != columnType) {
+                throw new IllegalArgumentException("Column " + column.getName() + " of table " + tableId.getTable()
+                        + " is " + columnType + ", the file holds " + type);
+            }
+        }
+    }
+
+    /**
+     * Schema fitting the files of a batch and another file with the same
+     * columns.
+     */
+    private static Schema widen(Schema batchSchema, Schema schema, TableId tableId) {
+        List<Field> fields = batchSchema.getFields();
+        List<Field> others = schema.getFields();
+        if (fields.size() != others.size()) {
+            throw new IllegalArgumentException("Files appended to " + tableId.getTable() + " have "
+                    + fields.size() + " columns, this one has " + others.size());
+        }
+        Field[] widened = new Field[fields.size()];
+        for (int i = 0; i < widened.length; i++) {
+            if (!fields.get(i).getName().equalsIgnoreCase(others.get(i).getName())) {
+                throw new IllegalArgumentException("Column " + (i + 1) + " of the files appended to "
+                        + tableId.getTable() + " is " + fields.get(i).getName() + ", this one has "
+                        + others.get(i).getName());
+            }
+            widened[i] = Field.of(fields.get(i).getName(), widen(fields.get(i).getType().getStandardType(),
+                    others.get(i).getType().getStandardType()));
+        }
+        return Schema.of(widened);
+    }
+
+    /**
+     * Narrowest type both types load into: INT64 widens to NUMERIC then
+     * FLOAT64, DATE to DATETIME then TIMESTAMP, anything else to STRING.
+     */
+    static StandardSQLTypeName widen(StandardSQLTypeName a, StandardSQLTypeName b) {
+        if (a == b) {
+            return a;
+        }
+        for (List<StandardSQLTypeName> ladder : WIDENING) {
+            int i = ladder.indexOf(a);
+            int j = ladder.indexOf(b);
+            if (i >= 0 && j >= 0) {
+                return ladder.get(Math.max(i, j));
+            }
+        }
+        return StandardSQLTypeName.STRING;
+    }
+
+    /**
+     * State of a batch.
+     */
+    public enum State {
+        // Still taking files.
+        OPEN,
+        // Closed and handed to the load registry.
+        FLUSHED
+    }
+
+    /**
+     * Files appended to one table and loaded together.
+     */
+    public static final class Batch {
+        private final String id = UUID.randomUUID().toString();
+        private final TableId tableId;
+        private final Instant createdAt = Instant.now();
+        private final List<String> uploadIds = new ArrayList<>();
+        private final List<String> uris = new ArrayList<>();
+        private long bytes;
+        private Schema schema;
+        private ScheduledFuture<?> timeout;
+        private LoadJobRegistry.LoadTask task; // Creates the load job once the batch is queued
+        private Batch next; // Batch of the same table queued after this one's load, guarded by the open lock
+        private volatile State state = State.OPEN;
+        private volatile Instant flushedAt;
+        private volatile LoadJobStatus load;
+        private volatile String error;
+
+        Batch(TableId tableId, Schema schema) {
+            this.tableId = tableId;
+            this.schema = schema;
+        }
+
+        private synchronized void add(String uploadId, String uri, long size) {
+            uploadIds.add(uploadId);
+            uris.add(uri);
+            bytes += size;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTable() {
+            return tableId.getDataset() + "." + tableId.getTable();
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public synchronized List<String> getUploadIds() {
+            return List.copyOf(uploadIds);
+        }
+
+        synchronized List<String> getUris() {
+            return List.copyOf(uris);
+        }
+
+        public synchronized int getFiles() {
+            return uris.size();
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public Instant getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return when the batch was flushed, {@code null} while open.
+         */
+        public Instant getFlushedAt() {
+            return flushedAt;
+        }
+
+        /**
+         * @return the load of the batch, {@code null} while open or if it
+         *         could not be queued.
+         */
+        public LoadJobStatus getLoad() {
+            return load;
+        }
+
+        /**
+         * @return why the load could not be queued, {@code null} otherwise.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
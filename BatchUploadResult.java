@@ -0,0 +1,141 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.List;
+
+/**
+ * Outcome of a multi-file batch upload: one entry per file, in request order,
+ * and the combined load when one was requested.
+ */
+public class BatchUploadResult {
+
+    /**
+     * Loads started once the files of a batch are stored.
+     */
+    public enum LoadMode {
+        // Store the files only.
+        NONE,
+        // One load per file, into a table named after the file.
+        PER_FILE,
+        // One load of every stored file into the same table.
+        COMBINED
+    }
+
+    /**
+     * Result of one file of the batch.
+     */
+    public static final class FileResult {
+        private final String fileName;
+        private final UploadSession session;
+        private final long size;
+        private final long waitMillis;
+        private final long uploadMillis;
+        private volatile String error;
+        private volatile LoadJobStatus load;
+
+        FileResult(String fileName, UploadSession session, long size, long waitMillis, long uploadMillis,
+                String error) {
+            this.fileName = fileName;
+            this.session = session;
+            this.size = size;
+            this.waitMillis = waitMillis;
+            this.uploadMillis = uploadMillis;
+            this.error = error;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isStored() {
+            return session != null;
+        }
+
+        /**
+         * @return id of the upload session, {@code null} if the file was not
+         *         stored.
+         */
+        public String getUploadId() {
+            return session == null ? null : session.getId();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public List<String> getColumns() {
+            return session == null ? null : session.getColumns();
+        }
+
+        UploadSession session() {
+            return session;
+        }
+
+        /**
+         * @return time spent waiting for an upload slot.
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public long getUploadMillis() {
+            return uploadMillis;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return the load of this file in {@link LoadMode#PER_FILE} mode.
+         */
+        public LoadJobStatus getLoad() {
+            return load;
+        }
+
+        void setLoad(LoadJobStatus load) {
+            this.load = load;
+        }
+
+        void setError(String error) {
+            this.error = error;
+        }
+    }
+
+    private final List<FileResult> files;
+    private final long totalMillis;
+    private final LoadJobStatus combinedLoad;
+
+    BatchUploadResult(List<FileResult> files, long totalMillis, LoadJobStatus combinedLoad) {
+        this.files = files;
+        this.totalMillis = totalMillis;
+        this.combinedLoad = combinedLoad;
+    }
+
+    public List<FileResult> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return wall-clock time of the whole batch, roughly that of its slowest
+     *         file.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public long getStored() {
+        return files.stream().filter(FileResult::isStored).count();
+    }
+
+    public long getFailed() {
+        return files.size() - getStored();
+    }
+
+    /**
+     * @return the load of every stored file in {@link LoadMode#COMBINED}
+     *         mode.
+     */
+    public LoadJobStatus getCombinedLoad() {
+        return combinedLoad;
+    }
+}
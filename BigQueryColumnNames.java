@@ -0,0 +1,56 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Turns CSV header cells into valid, unique BigQuery column names.
+ */
+public final class BigQueryColumnNames {
+
+    // BigQuery column names are limited to 300 characters.
+    private static final int MAX_LENGTH = 300;
+
+    private BigQueryColumnNames() {
+    }
+
+    /**
+     * Lowercases and trims every header cell, replaces characters BigQuery does
+     * not accept with underscores and suffixes duplicates with {@code _2},
+     * {@code _3}, ...
+     *
+     * @param headerColumns raw header cells, in file order.
+     * @return one column name per header cell, in the same order.
+     */
+    public static List<String> normalize(List<String> headerColumns) {
+        List<String> names = new ArrayList<>(headerColumns.size());
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < headerColumns.size(); i++) {
+            String name = sanitize(headerColumns.get(i).trim().toLowerCase(Locale.ROOT), i);
+            String unique = name;
+            for (int n = 2; !seen.add(unique); n++) {
+                unique = name + "_" + n;
+            }
+            names.add(unique);
+        }
+        return names;
+    }
+
+    private static String sanitize(String name, int position) {
+        if (name.isEmpty()) {
+            return "column_" + (position + 1);
+        }
+        StringBuilder sb = new StringBuilder(name.length() + 1);
+        if (!Character.isLetter(name.charAt(0)) && name.charAt(0) != '_') {
+            sb.append('_');
+        }
+        for (int i = 0; i < name.length() && sb.length() < MAX_LENGTH; i++) {
+            char c = name.charAt(i);
+            sb.append(c < 128 && (Character.isLetterOrDigit(c) || c == '_') ? c : '_');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,336 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+
+/**
+ * In-memory listing of the uploaded objects of a bucket, sorted by name, so a
+ * page of it costs a lookup and the page itself however many objects there
+ * are.
+ *
+ * Only the objects directly under the upload prefix are listed: objects
+ * under a further {@code /}, where sessions, shards, quarantined rows and
+ * temporary objects are kept, are not. At most {@code maxEntries} objects are
+ * held; a larger listing is cut there, and its pages say so.
+ *
+ * The listing is taken in the background by {@link #refreshInBackground()},
+ * at startup, and again once it is older than {@code ttlMs}, counted from the
+ * end of the previous one and never shorter than it took, so listings never
+ * overlap. Pages are served from the previous listing meanwhile; a page asked
+ * for before the first listing ends waits for it.
+ *
+ * Objects this application stores or deletes are applied to the listing as
+ * they are, with {@link #put(Blob)} and {@link #remove(String)}, so they show
+ * without waiting for the next one; changes made while a listing is being
+ * taken are applied to it as well.
+ */
+public class BucketIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(BucketIndex.class);
+
+    // Objects asked for per listing request; the most GCS returns at once.
+    private static final long LIST_PAGE_SIZE = 1000;
+    // Only the fields shown in listings and needed to serve downloads.
+    private static final Storage.BlobListOption LIST_FIELDS = Storage.BlobListOption.fields(
+            Storage.BlobField.NAME, Storage.BlobField.SIZE, Storage.BlobField.UPDATED,
+            Storage.BlobField.CONTENT_TYPE);
+
+    /**
+     * An object of the listing.
+     */
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final Instant updated;
+        private final String contentType;
+
+        Entry(String name, long size, Instant updated, String contentType) {
+            this.name = name;
+            this.size = size;
+            this.updated = updated;
+            this.contentType = contentType;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Instant getUpdated() {
+            return updated;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    /**
+     * A page of the listing.
+     */
+    public static final class Page {
+        private final List<Entry> entries;
+        private final String nextPageToken;
+        private final Instant listedAt;
+        private final boolean truncated;
+
+        Page(List<Entry> entries, String nextPageToken, Instant listedAt, boolean truncated) {
+            this.entries = entries;
+            this.nextPageToken = nextPageToken;
+            this.listedAt = listedAt;
+            this.truncated = truncated;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return token of the next page, {@code null} on the last one.
+         */
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        /**
+         * @return when the listing the page was cut from was taken.
+         */
+        public Instant getListedAt() {
+            return listedAt;
+        }
+
+        /**
+         * @return whether the listing was cut at its maximum size, so objects
+         *         past it are missing.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String prefix;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final Object changeLock = new Object(); // Guards changes against swapping in a new listing
+    private volatile NavigableMap<String, Entry> objects; // null until the first listing
+    private Map<String, Entry> changed; // Changes made during a listing, null entries for removals
+    private volatile Instant listedAt;
+    private volatile boolean truncated;
+    private volatile long nextRefreshMillis; // Earliest time the listing is taken again
+
+    /**
+     * @param storage    GCS client (or stand-in) the bucket is listed with.
+     * @param bucketName bucket listed.
+     * @param prefix     name prefix of the uploaded objects, empty for the
+     *                   top of the bucket.
+     * @param maxEntries most objects held.
+     * @param ttlMs      age after which the listing is taken again.
+     */
+    public BucketIndex(Storage storage, String bucketName, String prefix, int maxEntries, long ttlMs) {
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.prefix = prefix == null ? "" : prefix;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Returns the objects whose name starts with {@code prefix}, in name
+     * order, after the one the page token was issued for.
+     *
+     * @param prefix    name prefix, may be {@code null} or empty for all.
+     * @param pageToken token of a previous page, {@code null} for the first.
+     * @param pageSize  most objects returned.
+     */
+    public Page page(String prefix, String pageToken, int pageSize) {
+        NavigableMap<String, Entry> current = current();
+        String from = prefix == null ? "" : prefix;
+        NavigableMap<String, Entry> tail = pageToken != null && pageToken.compareTo(from) >= 0
+                ? current.tailMap(pageToken, false)
+                : current.tailMap(from, true);
+        List<Entry> entries = new ArrayList<>(Math.min(pageSize, 256));
+        String nextPageToken = null;
+        for (Entry entry : tail.values()) {
+            if (!entry.name.startsWith(from)) {
+                break;
+            }
+            if (entries.size() == pageSize) {
+                nextPageToken = entries.get(pageSize - 1).name;
+                break;
+            }
+            entries.add(entry);
+        }
+        return new Page(entries, nextPageToken, listedAt, truncated);
+    }
+
+    /**
+     * @return the listed object with this name, or {@code null} if it was not
+     *         in the bucket when last listed.
+     */
+    public Entry get(String name) {
+        return current().get(name);
+    }
+
+    /**
+     * Adds a stored object to the listing, or updates it, if it is one the
+     * listing holds: directly under the upload prefix.
+     */
+    public void put(Blob blob) {
+        String name = blob.getName();
+        if (!listed(name)) {
+            return;
+        }
+        Entry entry = entry(blob);
+        synchronized (changeLock) {
+            if (changed != null) {
+                changed.put(name, entry);
+            }
+            NavigableMap<String, Entry> current = objects;
+            if (current == null) {
+                return;
+            }
+            if (!current.containsKey(name) && current.size() >= maxEntries) {
+                truncated = true;
+                return;
+            }
+            current.put(name, entry);
+        }
+    }
+
+    /**
+     * Drops a deleted object from the listing.
+     */
+    public void remove(String name) {
+        if (!listed(name)) {
+            return;
+        }
+        synchronized (changeLock) {
+            if (changed != null) {
+                changed.put(name, null);
+            }
+            NavigableMap<String, Entry> current = objects;
+            if (current != null) {
+                current.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Takes the listing again now, on the calling thread.
+     */
+    public synchronized void refresh() {
+        long started = System.nanoTime();
+        Instant now = Instant.now();
+        NavigableMap<String, Entry> listed = new ConcurrentSkipListMap<>();
+        boolean cut = false;
+        synchronized (changeLock) {
+            changed = new HashMap<>();
+        }
+        try {
+            for (Blob blob : storage.list(bucketName, LIST_FIELDS, Storage.BlobListOption.prefix(prefix),
+                    Storage.BlobListOption.currentDirectory(), Storage.BlobListOption.pageSize(LIST_PAGE_SIZE))
+                    .iterateAll()) {
+                // Prefixes of the objects further down are returned as directories
+                if (blob.isDirectory()) {
+                    continue;
+                }
+                if (listed.size() == maxEntries) {
+                    cut = true;
+                    break;
+                }
+                listed.put(blob.getName(), entry(blob));
+            }
+        } catch (RuntimeException e) {
+            synchronized (changeLock) {
+                changed = null;
+            }
+            throw e;
+        }
+        synchronized (changeLock) {
+            // Objects stored or deleted since the listing began may be missing from it, or still in it
+            for (Map.Entry<String, Entry> change : changed.entrySet()) {
+                if (change.getValue() == null) {
+                    listed.remove(change.getKey());
+                } else if (listed.size() < maxEntries || listed.containsKey(change.getKey())) {
+                    listed.put(change.getKey(), change.getValue());
+                }
+            }
+            changed = null;
+            objects = listed;
+            listedAt = now;
+            truncated = cut;
+        }
+        long tookMs = (System.nanoTime() - started) / 1_000_000;
+        nextRefreshMillis = System.currentTimeMillis() + Math.max(ttlMs, tookMs);
+        if (cut) {
+            logger.warn("Listing of bucket {} cut at {} objects", bucketName, maxEntries);
+        }
+        logger.info("Listed {} objects of bucket {} in {} ms", listed.size(), bucketName, tookMs);
+    }
+
+    /**
+     * Takes the listing again in the background, unless a listing is already
+     * being taken.
+     */
+    public void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("bucket-index-refresh").start(() -> {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to list bucket {}, serving the previous listing: {}", bucketName,
+                        e.getMessage());
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    // Whether an object is one the listing holds: directly under the upload prefix.
+    private boolean listed(String name) {
+        return name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0;
+    }
+
+    private static Entry entry(Blob blob) {
+        return new Entry(blob.getName(), blob.getSize() == null ? 0 : blob.getSize(),
+                blob.getUpdateTime() == null ? null : Instant.ofEpochMilli(blob.getUpdateTime()),
+                blob.getContentType());
+    }
+
+    // Waits for the first listing, and starts the next in the background once due.
+    private NavigableMap<String, Entry> current() {
+        NavigableMap<String, Entry> current = objects;
+        if (current == null) {
+            synchronized (this) {
+                if (objects == null) {
+                    refresh();
+                }
+                return objects;
+            }
+        }
+        if (System.currentTimeMillis() >= nextRefreshMillis) {
+            refreshInBackground();
+        }
+        return current;
+    }
+}
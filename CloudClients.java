@@ -0,0 +1,246 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.cvs.anbc.ahreports.dao.StorageProperties;
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.http.HttpTransportOptions;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Google Cloud clients shared by the whole application.
+ *
+ * Every client goes through one pooled HTTP transport and one set of
+ * credentials, looked up once, so neither a request nor a new client pays
+ * for a credential lookup or fresh connections. Clients are built on first
+ * use and then reused; components built at startup hold the lazy stand-ins of
+ * {@link #lazyStorage()} and {@link #lazyBigQuery()}, so neither a client nor
+ * the credential lookup is made while the application starts. Once it is
+ * ready a background warm-up makes a first call through each client, which
+ * fetches its access token and opens its first connection, so the first
+ * request does not either.
+ *
+ * The pooled transport is the Apache HTTP client one, from
+ * {@code com.google.http-client:google-http-client-apache-v2}, which the
+ * build declares next to the GCS and BigQuery clients.
+ */
+@Component
+public class CloudClients {
+
+    private static final Logger logger = LoggerFactory.getLogger(CloudClients.class);
+
+    private final String projectId; // Project of the bucket and tables
+    private final String computeProjectId; // Project BigQuery jobs run and are billed in
+    private final String bucketName;
+    private final int maxConnections;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final boolean warmUp;
+    private volatile GoogleCredentials credentials;
+    private volatile HttpTransport transport;
+    private volatile Storage storage;
+    private volatile BigQuery bigQuery;
+
+    /**
+     * @param properties       Configuration object contains details of Gcs bucket.
+     * @param computeProjectId Project BigQuery jobs run in.
+     * @param maxConnections   Pooled connections, in total and per host.
+     * @param connectTimeoutMs Timeout of opening a connection.
+     * @param readTimeoutMs    Timeout of reading a response.
+     * @param warmUp           Whether clients are warmed up once the application is ready.
+     */
+    public CloudClients(StorageProperties properties,
+            @Value("${bigquery.compute.projectId}") String computeProjectId,
+            @Value("${gcp.http.maxConnections:64}") int maxConnections,
+            @Value("${gcp.http.connectTimeoutMs:20000}") int connectTimeoutMs,
+            @Value("${gcp.http.readTimeoutMs:60000}") int readTimeoutMs,
+            @Value("${gcp.warmUp:true}") boolean warmUp) {
+        this.projectId = properties.getProjectId();
+        this.computeProjectId = computeProjectId;
+        this.bucketName = properties.getBucketName();
+        this.maxConnections = maxConnections;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.warmUp = warmUp;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getComputeProjectId() {
+        return computeProjectId;
+    }
+
+    /**
+     * @return the GCS client, built on first use.
+     */
+    public Storage storage() {
+        Storage current = storage;
+        if (current == null) {
+            synchronized (this) {
+                if (storage == null) {
+                    storage = StorageOptions.newBuilder()
+                            .setProjectId(projectId)
+                            .setCredentials(credentials())
+                            .setTransportOptions(transportOptions())
+                            .build()
+                            .getService();
+                    logger.info("Built GCS client for project {}", projectId);
+                }
+                current = storage;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the BigQuery client of the compute project, which jobs are
+     *         created in; tables are named with their own project. Built on
+     *         first use.
+     */
+    public BigQuery bigQuery() {
+        BigQuery current = bigQuery;
+        if (current == null) {
+            synchronized (this) {
+                if (bigQuery == null) {
+                    bigQuery = BigQueryOptions.newBuilder()
+                            .setProjectId(computeProjectId)
+                            .setCredentials(credentials())
+                            .setTransportOptions(transportOptions())
+                            .build()
+                            .getService();
+                    logger.info("Built BigQuery client for project {}", computeProjectId);
+                }
+                current = bigQuery;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return a GCS client that resolves the shared one on each call, so it
+     *         is only built once something is actually requested.
+     */
+    public Storage lazyStorage() {
+        return lazy(Storage.class, this::storage);
+    }
+
+    /**
+     * @return a BigQuery client that resolves the shared one on each call, so
+     *         it is only built once something is actually requested.
+     */
+    public BigQuery lazyBigQuery() {
+        return lazy(BigQuery.class, this::bigQuery);
+    }
+
+    /**
+     * Builds the clients and makes a first call through each in the
+     * background, once the application serves requests. Each client fetches
+     * the access token of its own scoped credentials on that call, along with
+     * its first connection.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!warmUp) {
+            return;
+        }
+        Thread.ofVirtual().name("cloud-clients-warm-up").start(() -> {
+            long started = System.nanoTime();
+            try {
+                storage().get(bucketName, Storage.BucketGetOption.fields(Storage.BucketField.NAME));
+                bigQuery().getDataset("_warm_up_");
+                logger.info("Cloud clients warmed up in {} ms", (System.nanoTime() - started) / 1_000_000);
+            } catch (RuntimeException e) {
+                logger.warn("Cloud client warm-up failed, first requests will connect: {}", e.getMessage());
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        HttpTransport current = transport;
+        if (current != null) {
+            try {
+                current.shutdown();
+            } catch (IOException e) {
+                logger.warn("Failed to shut down the HTTP transport: {}", e.getMessage());
+            }
+        }
+    }
+
+    private GoogleCredentials credentials() {
+        GoogleCredentials current = credentials;
+        if (current == null) {
+            synchronized (this) {
+                if (credentials == null) {
+                    try {
+                        credentials = GoogleCredentials.getApplicationDefault();
+                    } catch (IOException e) {
+                        throw new StorageException("Failed to load Google application default credentials", e);
+                    }
+                }
+                current = credentials;
+            }
+        }
+        return current;
+    }
+
+    // Forwards every call of a client interface to the client of the supplier; Object methods stay on the proxy
+    private static <T> T lazy(Class<T> type, Supplier<T> client) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "Lazy " + type.getSimpleName();
+                        }
+                    }
+                    try {
+                        return method.invoke(client.get(), args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }));
+    }
+
+    // One pooled transport behind every client
+    private HttpTransportOptions transportOptions() {
+        synchronized (this) {
+            if (transport == null) {
+                transport = new ApacheHttpTransport(ApacheHttpTransport.newDefaultHttpClientBuilder()
+                        .setMaxConnTotal(maxConnections)
+                        .setMaxConnPerRoute(maxConnections)
+                        .build());
+            }
+        }
+        HttpTransport shared = transport;
+        return HttpTransportOptions.newBuilder()
+                .setHttpTransportFactory(() -> shared)
+                .setConnectTimeout(connectTimeoutMs)
+                .setReadTimeout(readTimeoutMs)
+                .build();
+    }
+}
@@ -0,0 +1,455 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Streams a CSV object from GCS into a typed Avro or Parquet object holding the
+ * selected columns, in the selected order.
+ *
+ * Records are tokenized by {@link CsvTokenizer} like in
+ * {@link CsvProjectionEngine}, but every selected cell is converted to its
+ * BigQuery type and written as a native value, so the load job neither parses
+ * text nor guesses types. Empty cells are NULL. Blocks are compressed with
+ * Snappy or ZSTD; both formats stay splittable, so BigQuery loads a single
+ * large object in parallel, unlike gzip-compressed CSV.
+ *
+ * Logical types follow what BigQuery maps back to its own types with
+ * {@code useAvroLogicalTypes}: NUMERIC is {@code decimal(38, 9)}, DATE is
+ * {@code date}, TIMESTAMP is {@code timestamp-micros}, and DATETIME is a
+ * {@code datetime} string in Avro and a {@code local-timestamp-micros} in
+ * Parquet.
+ */
+public class ColumnarConverter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ColumnarConverter.class);
+
+    // Parquet buffers a whole row group in memory before writing it out.
+    private static final int PARQUET_ROW_GROUP_SIZE = 64 * 1024 * 1024;
+    private static final int NUMERIC_PRECISION = 38;
+    private static final int NUMERIC_SCALE = 9;
+    // Canonical BigQuery DATETIME text, written to Avro "datetime" strings.
+    private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS");
+
+    /**
+     * Output file formats.
+     */
+    public enum Format {
+        AVRO(".avro"),
+        PARQUET(".parquet");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String extension() {
+            return extension;
+        }
+
+        /**
+         * @return the load job format of files written in this format.
+         */
+        public FormatOptions formatOptions() {
+            return this == AVRO ? FormatOptions.avro() : FormatOptions.parquet();
+        }
+    }
+
+    /**
+     * Block compression of the output.
+     */
+    public enum Codec {
+        SNAPPY,
+        ZSTD
+    }
+
+    private final Storage storage;
+    private final int chunkSize;
+    private final long progressInterval;
+    private final char delimiter;
+    private final Format format;
+    private final Codec codec;
+
+    /**
+     * @param storage          GCS client (or stand-in) used for both reading
+     *                         and writing.
+     * @param chunkSize        bytes sent per resumable upload request.
+     * @param progressInterval number of rows between progress reports.
+     * @param delimiter        field delimiter of the source.
+     * @param format           output file format.
+     * @param codec            block compression of the output.
+     */
+    public ColumnarConverter(Storage storage, int chunkSize, long progressInterval, char delimiter, Format format,
+            Codec codec) {
+        this.storage = storage;
+        this.chunkSize = chunkSize;
+        this.progressInterval = progressInterval;
+        this.delimiter = delimiter;
+        this.format = format;
+        this.codec = codec;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Converts the {@code selectedColumns} of {@code source} and writes them
+     * to {@code target}, failing on the first row that does not convert.
+     *
+     * @see #convert(BlobId, BlobInfo, List, Schema,
+     *      CsvProjectionEngine.ProgressListener, boolean, BlobId)
+     */
+    public CsvProjectionEngine.Result convert(BlobId source, BlobInfo target, List<String> selectedColumns,
+            Schema schema, CsvProjectionEngine.ProgressListener listener) throws IOException {
+        return convert(source, target, selectedColumns, schema, listener, false, null);
+    }
+
+    /**
+     * Converts the {@code selectedColumns} of {@code source} and writes them
+     * to {@code target}. With {@code validate}, rows are first checked by a
+     * {@link RowValidator} against the schema and the ones that fail go to the
+     * quarantine object instead of failing the conversion.
+     *
+     * @param source          CSV object to read, plain or compressed.
+     * @param target          object to write the converted file to.
+     * @param selectedColumns header names to keep, in output order.
+     * @param schema          BigQuery schema of the output, one field per
+     *                        selected column.
+     * @param listener        progress callback, may be {@code null}.
+     * @param validate        whether rows are validated before conversion.
+     * @param quarantine      object rejected rows are written to, may be
+     *                        {@code null} to drop them.
+     * @return row and byte totals of the conversion.
+     * @throws StorageException if the file has no header, a selected column is
+     *                          missing from it, or a cell does not parse as
+     *                          the type of its column.
+     * @throws IOException      if reading or writing GCS fails.
+     */
+    public CsvProjectionEngine.Result convert(BlobId source, BlobInfo target, List<String> selectedColumns,
+            Schema schema, CsvProjectionEngine.ProgressListener listener, boolean validate, BlobId quarantine)
+            throws IOException {
+        List<StandardSQLTypeName> types = new ArrayList<>(schema.getFields().size());
+        for (Field field : schema.getFields()) {
+            types.add(field.getType().getStandardType());
+        }
+        org.apache.avro.Schema avroSchema = avroSchema(schema);
+
+        try (ReadChannel reader = storage.reader(source);
+                CountingInputStream in = new CountingInputStream(Channels.newInputStream(reader));
+                QuarantineWriter quarantined = new QuarantineWriter(storage, quarantine, chunkSize, delimiter)) {
+            CsvTokenizer tokenizer = new CsvTokenizer(
+                    new InputStreamReader(Compression.decode(in), StandardCharsets.UTF_8), delimiter, true);
+            if (!tokenizer.next()) {
+                throw new StorageException("File is empty or doesn't contain a header.");
+            }
+            List<String> headerColumns = tokenizer.cells();
+            int[] projection = CsvProjectionEngine.projectionIndexes(headerColumns, selectedColumns);
+            RowValidator validator = validate
+                    ? new RowValidator(headerColumns.size(), projection, selectedColumns, types)
+                    : null;
+            logger.info("Converting {} of {} columns from {} to {} ({}, {})", projection.length,
+                    headerColumns.size(), source, target.getBlobId(), format, codec);
+
+            long rows = 0;
+            WriteChannel writeChannel = storage.writer(target);
+            writeChannel.setChunkSize(chunkSize);
+            CountingOutputStream out = new CountingOutputStream(Channels.newOutputStream(writeChannel));
+            try (RecordWriter writer = format == Format.AVRO ? new AvroRecordWriter(avroSchema, out)
+                    : new ParquetRecordWriter(avroSchema, out)) {
+                GenericData.Record record = new GenericData.Record(avroSchema);
+                while (tokenizer.next()) {
+                    if (tokenizer.isBlank()) {
+                        continue;
+                    }
+                    String reason = validator == null ? null : validator.validate(tokenizer);
+                    if (reason != null) {
+                        quarantined.write(tokenizer, reason);
+                        continue;
+                    }
+                    rows++;
+                    for (int i = 0; i < projection.length; i++) {
+                        // Without validation, ragged rows are padded with NULL rather than failing the load.
+                        String value = projection[i] < tokenizer.cellCount() ? tokenizer.cell(projection[i]) : "";
+                        record.put(i, toValue(types.get(i), value, rows, selectedColumns.get(i)));
+                    }
+                    writer.write(record);
+                    if (listener != null && rows % progressInterval == 0) {
+                        listener.onProgress(rows, in.getCount(), out.getCount());
+                    }
+                }
+            }
+            if (listener != null) {
+                listener.onProgress(rows, in.getCount(), out.getCount());
+            }
+            logger.info("Conversion finished: {} rows, {} rejected, {} bytes read, {} bytes written", rows,
+                    quarantined.getRows(), in.getCount(), out.getCount());
+            return new CsvProjectionEngine.Result(List.copyOf(selectedColumns), rows, in.getCount(),
+                    out.getCount(), quarantined.getRows(), quarantined.getBlobId(),
+                    validator == null ? Map.of() : validator.getRejectedByCheck());
+        }
+    }
+
+    /**
+     * Builds the Avro record schema of a BigQuery schema; every field is
+     * nullable.
+     */
+    org.apache.avro.Schema avroSchema(Schema schema) {
+        List<org.apache.avro.Schema.Field> fields = new ArrayList<>(schema.getFields().size());
+        for (Field field : schema.getFields()) {
+            org.apache.avro.Schema type = avroType(field.getType().getStandardType());
+            fields.add(new org.apache.avro.Schema.Field(field.getName(),
+                    org.apache.avro.Schema.createUnion(org.apache.avro.Schema.create(org.apache.avro.Schema.Type.NULL),
+                            type),
+                    null, org.apache.avro.Schema.Field.NULL_DEFAULT_VALUE));
+        }
+        return org.apache.avro.Schema.createRecord("Row", null, null, false, fields);
+    }
+
+    private org.apache.avro.Schema avroType(StandardSQLTypeName type) {
+        switch (type) {
+            case BOOL:
+                return org.apache.avro.Schema.create(org.apache.avro.Schema.Type.BOOLEAN);
+            case INT64:
+                return org.apache.avro.Schema.create(org.apache.avro.Schema.Type.LONG);
+            case FLOAT64:
+                return org.apache.avro.Schema.create(org.apache.avro.Schema.Type.DOUBLE);
+            case NUMERIC:
+                return LogicalTypes.decimal(NUMERIC_PRECISION, NUMERIC_SCALE)
+                        .addToSchema(org.apache.avro.Schema.create(org.apache.avro.Schema.Type.BYTES));
+            case DATE:
+                return LogicalTypes.date().addToSchema(org.apache.avro.Schema.create(org.apache.avro.Schema.Type.INT));
+            case TIMESTAMP:
+                return LogicalTypes.timestampMicros()
+                        .addToSchema(org.apache.avro.Schema.create(org.apache.avro.Schema.Type.LONG));
+            case DATETIME:
+                if (format == Format.PARQUET) {
+                    return LogicalTypes.localTimestampMicros()
+                            .addToSchema(org.apache.avro.Schema.create(org.apache.avro.Schema.Type.LONG));
+                }
+                // BigQuery reads the "datetime" logical type of Avro strings as DATETIME.
+                org.apache.avro.Schema datetime = org.apache.avro.Schema.create(org.apache.avro.Schema.Type.STRING);
+                datetime.addProp("logicalType", "datetime");
+                return datetime;
+            default:
+                return org.apache.avro.Schema.create(org.apache.avro.Schema.Type.STRING);
+        }
+    }
+
+    /**
+     * Converts one CSV cell to the Avro value of its column type.
+     *
+     * @return the value, or {@code null} for an empty cell.
+     * @throws StorageException if the cell does not parse as the type.
+     */
+    private Object toValue(StandardSQLTypeName type, String value, long row, String column) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            switch (type) {
+                case BOOL:
+                    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                        throw new IllegalArgumentException("not a boolean");
+                    }
+                    return Boolean.parseBoolean(value);
+                case INT64:
+                    return Long.parseLong(value);
+                case FLOAT64:
+                    return Double.parseDouble(value);
+                case NUMERIC:
+                    return ByteBuffer.wrap(new BigDecimal(value).setScale(NUMERIC_SCALE, RoundingMode.UNNECESSARY)
+                            .unscaledValue().toByteArray());
+                case DATE:
+                    return (int) LocalDate.parse(value).toEpochDay();
+                case TIMESTAMP:
+                    return timestampMicros(value);
+                case DATETIME:
+                    LocalDateTime dateTime = localDateTime(value, value.length());
+                    return format == Format.PARQUET ? micros(dateTime, ZoneOffset.UTC)
+                            : DATETIME_FORMAT.format(dateTime);
+                default:
+                    return value;
+            }
+        } catch (IllegalArgumentException | ArithmeticException | DateTimeException | IndexOutOfBoundsException e) {
+            throw new StorageException("Row " + row + ": value '" + value + "' of column '" + column
+                    + "' is not a valid " + type);
+        }
+    }
+
+    // yyyy-MM-dd[ T]HH:mm[:ss[.ffffff]][ ][Z|UTC|+HH[[:]MM]], as accepted by SchemaInference.
+    private static long timestampMicros(String value) {
+        int zone = 16;
+        while (zone < value.length() && (Character.isDigit(value.charAt(zone)) || value.charAt(zone) == ':'
+                || value.charAt(zone) == '.')) {
+            zone++;
+        }
+        String offset = value.substring(zone).trim();
+        ZoneOffset zoneOffset = offset.isEmpty() || offset.equals("Z") || offset.equalsIgnoreCase("UTC")
+                ? ZoneOffset.UTC
+                : ZoneOffset.of(offset);
+        return micros(localDateTime(value, zone), zoneOffset);
+    }
+
+    private static LocalDateTime localDateTime(String value, int end) {
+        return LocalDateTime.parse(value.substring(0, 10) + 'T' + value.substring(11, end));
+    }
+
+    private static long micros(LocalDateTime dateTime, ZoneOffset offset) {
+        return dateTime.toEpochSecond(offset) * 1_000_000L + dateTime.getNano() / 1_000;
+    }
+
+    /**
+     * Appends records to an output file.
+     */
+    private interface RecordWriter extends AutoCloseable {
+        void write(GenericRecord record) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private final class AvroRecordWriter implements RecordWriter {
+        private final DataFileWriter<GenericRecord> writer;
+
+        AvroRecordWriter(org.apache.avro.Schema schema, OutputStream out) throws IOException {
+            writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+            writer.setCodec(codec == Codec.ZSTD ? CodecFactory.zstandardCodec(CodecFactory.DEFAULT_ZSTANDARD_LEVEL)
+                    : CodecFactory.snappyCodec());
+            writer.create(schema, out);
+        }
+
+        @Override
+        public void write(GenericRecord record) throws IOException {
+            writer.append(record);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private final class ParquetRecordWriter implements RecordWriter {
+        private final ParquetWriter<GenericRecord> writer;
+
+        ParquetRecordWriter(org.apache.avro.Schema schema, CountingOutputStream out) throws IOException {
+            writer = AvroParquetWriter.<GenericRecord>builder(new StreamOutputFile(out))
+                    .withSchema(schema)
+                    .withCompressionCodec(codec == Codec.ZSTD ? CompressionCodecName.ZSTD
+                            : CompressionCodecName.SNAPPY)
+                    .withRowGroupSize(PARQUET_ROW_GROUP_SIZE)
+                    .build();
+        }
+
+        @Override
+        public void write(GenericRecord record) throws IOException {
+            writer.write(record);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Parquet output file over a stream, so row groups go straight into the
+     * resumable upload instead of through a Hadoop file system.
+     */
+    private static final class StreamOutputFile implements OutputFile {
+        private final CountingOutputStream out;
+
+        StreamOutputFile(CountingOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint) {
+            return new PositionOutputStream() {
+                @Override
+                public long getPos() {
+                    return out.getCount();
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+            return create(blockSizeHint);
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+}
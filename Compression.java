@@ -0,0 +1,109 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Compression formats of uploaded CSV, recognised by their magic bytes rather
+ * than by file name or content type.
+ *
+ * Compressed sources are decoded as streams, so header and type work reads
+ * the CSV text without the whole file ever being inflated. Objects are stored
+ * gzip-compressed since that is the format BigQuery loads directly; zstd is
+ * accepted on upload only.
+ */
+public enum Compression {
+    NONE,
+    GZIP,
+    ZSTD;
+
+    /**
+     * Content-Encoding of gzip-compressed objects.
+     */
+    public static final String GZIP_ENCODING = "gzip";
+
+    private static final int MAGIC_LENGTH = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Detects the format from the first bytes of a stream without consuming
+     * them.
+     *
+     * @param in source supporting {@link InputStream#mark(int)}.
+     * @throws IOException if reading the source fails.
+     */
+    public static Compression detect(InputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        in.mark(MAGIC_LENGTH);
+        int length = 0;
+        try {
+            int read;
+            while (length < MAGIC_LENGTH && (read = in.read(magic, length, MAGIC_LENGTH - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.reset();
+        }
+        return of(magic, length);
+    }
+
+    /**
+     * Detects the format from the first bytes of a content.
+     *
+     * @param magic  leading bytes of the content.
+     * @param length number of valid bytes in {@code magic}.
+     */
+    public static Compression of(byte[] magic, int length) {
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return GZIP;
+        }
+        if (length >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f
+                && (magic[3] & 0xff) == 0xfd) {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    /**
+     * Wraps a stream of any supported format into a stream of its decoded
+     * content.
+     *
+     * @param in source; closing the returned stream closes it.
+     * @throws IOException if reading the source fails.
+     */
+    public static InputStream decode(InputStream in) throws IOException {
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in, BUFFER_SIZE);
+        return detect(buffered).decoder(buffered);
+    }
+
+    /**
+     * @return a stream of the decoded content of {@code in}, which must be in
+     *         this format.
+     * @throws IOException if the stream header is invalid.
+     */
+    public InputStream decoder(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new BufferedInputStream(new ZstdInputStream(in), BUFFER_SIZE);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * @return a gzip stream writing to {@code out}; closing it finishes the
+     *         gzip trailer and closes {@code out}.
+     * @throws IOException if writing the gzip header fails.
+     */
+    public static OutputStream gzip(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,239 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * MD5 and CRC32C of a content, encoded the way GCS reports them (base64 of
+ * the big-endian digest), with its size.
+ *
+ * The hash of the bytes an object was received as, before any recompression,
+ * can be kept in the object metadata, so a later upload of the same bytes is
+ * recognised without knowing how they were stored.
+ */
+public final class ContentHash {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Object metadata keys of the received content.
+    private static final String SOURCE_MD5_KEY = "source-md5";
+    private static final String SOURCE_CRC32C_KEY = "source-crc32c";
+    private static final String SOURCE_SIZE_KEY = "source-size";
+
+    private final String md5;
+    private final String crc32c;
+    private final long size;
+
+    private ContentHash(String md5, String crc32c, long size) {
+        this.md5 = md5;
+        this.crc32c = crc32c;
+        this.size = size;
+    }
+
+    /**
+     * Hashes a stream in one pass.
+     *
+     * @param in source, read to the end but not closed.
+     * @throws IOException if reading the source fails.
+     */
+    public static ContentHash of(InputStream in) throws IOException {
+        MessageDigest md5 = newMd5();
+        CRC32C crc32c = new CRC32C();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            md5.update(buffer, 0, read);
+            crc32c.update(buffer, 0, read);
+            size += read;
+        }
+        return of(md5, crc32c, size);
+    }
+
+    /**
+     * @return the hash GCS reports for an object.
+     */
+    public static ContentHash of(String md5, String crc32c, long size) {
+        return new ContentHash(md5, crc32c, size);
+    }
+
+    private static ContentHash of(MessageDigest md5, CRC32C crc32c, long size) {
+        long crc = crc32c.getValue();
+        byte[] crcBytes = { (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc };
+        Base64.Encoder base64 = Base64.getEncoder();
+        return new ContentHash(base64.encodeToString(md5.digest()), base64.encodeToString(crcBytes), size);
+    }
+
+    /**
+     * Output stream hashing the bytes written through it, for content that is
+     * hashed on its way out rather than read twice.
+     */
+    public static final class HashingOutputStream extends FilterOutputStream {
+        private final MessageDigest md5 = newMd5();
+        private final CRC32C crc32c = new CRC32C();
+        private long size;
+
+        public HashingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            md5.update((byte) b);
+            crc32c.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            md5.update(b, off, len);
+            crc32c.update(b, off, len);
+            size += len;
+        }
+
+        /**
+         * @return the hash of everything written so far; call once, when
+         *         writing is over.
+         */
+        public ContentHash hash() {
+            return of(md5, crc32c, size);
+        }
+    }
+
+    /**
+     * Input stream hashing the bytes read through it, for content that is
+     * hashed on its way in. Skipped bytes are read and hashed too.
+     */
+    public static final class HashingInputStream extends FilterInputStream {
+        private final MessageDigest md5 = newMd5();
+        private final CRC32C crc32c = new CRC32C();
+        private long size;
+
+        public HashingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                md5.update((byte) b);
+                crc32c.update(b);
+                size++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                md5.update(b, off, read);
+                crc32c.update(b, off, read);
+                size += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) != -1) {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return bytes read so far.
+         */
+        public long getCount() {
+            return size;
+        }
+
+        /**
+         * @return the hash of everything read so far; call once, when
+         *         reading is over.
+         */
+        public ContentHash hash() {
+            return of(md5, crc32c, size);
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE ships MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return base64 MD5, comparable with {@code Blob.getMd5()}.
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @return base64 CRC32C, comparable with {@code Blob.getCrc32c()}.
+     */
+    public String getCrc32c() {
+        return crc32c;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return object metadata entries recording this as the hash of the
+     *         received content.
+     */
+    public Map<String, String> toSourceMetadata() {
+        return Map.of(SOURCE_MD5_KEY, md5, SOURCE_CRC32C_KEY, crc32c, SOURCE_SIZE_KEY, Long.toString(size));
+    }
+
+    /**
+     * @return whether an object whose metadata is given was received as this
+     *         content.
+     */
+    public boolean matchesSource(Map<String, String> metadata) {
+        return metadata != null && md5.equals(metadata.get(SOURCE_MD5_KEY))
+                && crc32c.equals(metadata.get(SOURCE_CRC32C_KEY)) && sourceSize(metadata) == size;
+    }
+
+    /**
+     * @return size of the received content recorded in object metadata, or
+     *         {@code -1} if none is.
+     */
+    public static long sourceSize(Map<String, String> metadata) {
+        String size = metadata == null ? null : metadata.get(SOURCE_SIZE_KEY);
+        return size == null ? -1 : Long.parseLong(size);
+    }
+
+    /**
+     * @return whether an object with these GCS hashes and size holds the
+     *         same content.
+     */
+    public boolean matches(String objectMd5, String objectCrc32c, Long objectSize) {
+        return md5.equals(objectMd5) && crc32c.equals(objectCrc32c) && objectSize != null && objectSize == size;
+    }
+}
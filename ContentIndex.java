@@ -0,0 +1,77 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.cloud.storage.BlobId;
+
+/**
+ * Recently uploaded objects by content, so an upload of content already in
+ * the bucket can be served by a server-side copy instead of a transfer.
+ *
+ * Entries are hints: callers check that the object still holds the content
+ * before relying on one. The least recently used entries are dropped beyond
+ * {@code capacity}. The sizes of the indexed contents are counted too, so an
+ * upload can tell whether hashing it ahead of the transfer has any chance of
+ * a hit.
+ */
+public class ContentIndex {
+
+    private final Map<String, BlobId> objects;
+    private final Map<Long, Integer> sizes = new HashMap<>(); // Indexed contents per size
+
+    /**
+     * @param capacity entries kept.
+     */
+    public ContentIndex(int capacity) {
+        this.objects = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BlobId> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                forget(sizeOf(eldest.getKey()));
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return an object last known to hold this content, or {@code null}.
+     */
+    public synchronized BlobId find(ContentHash hash) {
+        return objects.get(key(hash));
+    }
+
+    /**
+     * @return whether some indexed content has this size.
+     */
+    public synchronized boolean containsSize(long size) {
+        return sizes.containsKey(size);
+    }
+
+    public synchronized void put(ContentHash hash, BlobId blobId) {
+        if (objects.put(key(hash), blobId) == null) {
+            sizes.merge(hash.getSize(), 1, Integer::sum);
+        }
+    }
+
+    public synchronized void remove(ContentHash hash) {
+        if (objects.remove(key(hash)) != null) {
+            forget(hash.getSize());
+        }
+    }
+
+    private void forget(long size) {
+        sizes.computeIfPresent(size, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    private static long sizeOf(String key) {
+        return Long.parseLong(key.substring(key.lastIndexOf('/') + 1));
+    }
+
+    private static String key(ContentHash hash) {
+        return hash.getMd5() + '/' + hash.getCrc32c() + '/' + hash.getSize();
+    }
+}
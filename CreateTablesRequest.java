@@ -0,0 +1,138 @@
+package com.cvs.anbc.ahreports.controller;
+
+import java.util.List;
+
+/**
+ * JSON body of a fan-out table creation: several tables built from one upload,
+ * each from its own columns.
+ */
+public class CreateTablesRequest {
+
+    /**
+     * One table of the request. Partitioning fields mean the same as the
+     * parameters of {@code /create-table}.
+     */
+    public static class Table {
+        private String dataset;
+        private String table;
+        private List<String> columns;
+        private String partitionColumn;
+        private String partitionType;
+        private Long rangeStart;
+        private Long rangeEnd;
+        private Long rangeInterval;
+        private List<String> clusterBy;
+        private Long partitionExpirationDays;
+
+        public String getDataset() {
+            return dataset;
+        }
+
+        public void setDataset(String dataset) {
+            this.dataset = dataset;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public void setTable(String table) {
+            this.table = table;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public void setColumns(List<String> columns) {
+            this.columns = columns;
+        }
+
+        public String getPartitionColumn() {
+            return partitionColumn;
+        }
+
+        public void setPartitionColumn(String partitionColumn) {
+            this.partitionColumn = partitionColumn;
+        }
+
+        public String getPartitionType() {
+            return partitionType;
+        }
+
+        public void setPartitionType(String partitionType) {
+            this.partitionType = partitionType;
+        }
+
+        public Long getRangeStart() {
+            return rangeStart;
+        }
+
+        public void setRangeStart(Long rangeStart) {
+            this.rangeStart = rangeStart;
+        }
+
+        public Long getRangeEnd() {
+            return rangeEnd;
+        }
+
+        public void setRangeEnd(Long rangeEnd) {
+            this.rangeEnd = rangeEnd;
+        }
+
+        public Long getRangeInterval() {
+            return rangeInterval;
+        }
+
+        public void setRangeInterval(Long rangeInterval) {
+            this.rangeInterval = rangeInterval;
+        }
+
+        public List<String> getClusterBy() {
+            return clusterBy;
+        }
+
+        public void setClusterBy(List<String> clusterBy) {
+            this.clusterBy = clusterBy;
+        }
+
+        public Long getPartitionExpirationDays() {
+            return partitionExpirationDays;
+        }
+
+        public void setPartitionExpirationDays(Long partitionExpirationDays) {
+            this.partitionExpirationDays = partitionExpirationDays;
+        }
+    }
+
+    private String uploadId;
+    private List<String> types;
+    private List<Table> tables;
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    /**
+     * @return type overrides shared by every table, as {@code column:TYPE}.
+     */
+    public List<String> getTypes() {
+        return types;
+    }
+
+    public void setTypes(List<String> types) {
+        this.types = types;
+    }
+
+    public List<Table> getTables() {
+        return tables;
+    }
+
+    public void setTables(List<Table> tables) {
+        this.tables = tables;
+    }
+}
@@ -0,0 +1,273 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+/**
+ * Reads the header record of a CSV object with ranged reads.
+ *
+ * Only the first {@code initialRange} bytes are requested; the range is
+ * doubled until a full header record is found or {@code maxRange} is reached, so
+ * discovering the columns of a multi-GB object costs a few KB of transfer.
+ *
+ * When the header was captured during the upload it is kept in the object
+ * metadata under {@link #HEADER_METADATA_KEY}; reading it back then costs a
+ * single metadata request and no data transfer at all.
+ *
+ * Ranges of a compressed object cannot be decoded on their own, so such
+ * objects are read from the start and decoded as a stream instead, up to the
+ * same limits.
+ */
+public class CsvHeaderReader {
+
+    /**
+     * Custom metadata key holding the header record of an uploaded CSV.
+     */
+    public static final String HEADER_METADATA_KEY = "csv-header";
+
+    // GCS allows 8 KiB of custom metadata per object; longer headers are read from the data.
+    private static final int MAX_METADATA_HEADER = 4 * 1024;
+    // Samples nothing, for reads that only need the header.
+    private static final SchemaInference HEADER_ONLY = new SchemaInference(0);
+
+    private final Storage storage;
+    private final int initialRange;
+    private final int maxRange;
+    private final char delimiter;
+
+    /**
+     * @param storage      GCS client (or stand-in) to read from.
+     * @param initialRange bytes requested by the first ranged read.
+     * @param maxRange     largest header, in bytes, that will be searched for.
+     * @param delimiter    field delimiter.
+     */
+    public CsvHeaderReader(Storage storage, int initialRange, int maxRange, char delimiter) {
+        this.storage = storage;
+        this.initialRange = initialRange;
+        this.maxRange = maxRange;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Returns the cells of the first record of the object. Quoted header cells
+     * may contain delimiters and line breaks.
+     *
+     * @param blobId object to read.
+     * @return the header cells, or {@code null} if the object is empty.
+     * @throws StorageException if the header record does not end within the
+     *                          maximum range.
+     * @throws IOException      if the ranged read fails.
+     */
+    public List<String> readHeader(BlobId blobId) throws IOException {
+        if (isCompressed(blobId)) {
+            Head head = readCompressedHead(blobId, HEADER_ONLY, 0);
+            return head == null ? null : head.getHeader();
+        }
+        ByteArrayOutputStream head = new ByteArrayOutputStream(initialRange);
+        long offset = 0;
+        long range = initialRange;
+        while (offset < maxRange) {
+            long end = Math.min(offset + range, maxRange);
+            int read = readRange(blobId, offset, end, head);
+            boolean endOfObject = read < end - offset;
+            CsvTokenizer tokenizer = new CsvTokenizer(
+                    new StringReader(new String(head.toByteArray(), StandardCharsets.UTF_8)), delimiter, true);
+            boolean found = tokenizer.next();
+            if (found && tokenizer.isTerminated()) {
+                return tokenizer.cells();
+            }
+            if (endOfObject) {
+                // No line break before the end of the object: the whole object is the header.
+                return found ? tokenizer.cells() : null;
+            }
+            offset = end;
+            range *= 2;
+        }
+        throw new StorageException("No header record found in the first " + maxRange + " bytes of " + blobId);
+    }
+
+    /**
+     * Returns the header cells of an object, from its metadata when the
+     * header was recorded at upload time and with ranged reads otherwise.
+     *
+     * @param blobId object to read.
+     * @return the header cells, or {@code null} if the object does not exist
+     *         or is empty.
+     * @throws IOException if the ranged read fails.
+     */
+    public List<String> readColumns(BlobId blobId) throws IOException {
+        Blob blob = storage.get(blobId, Storage.BlobGetOption.fields(Storage.BlobField.METADATA));
+        if (blob == null) {
+            return null;
+        }
+        Map<String, String> metadata = blob.getMetadata();
+        if (metadata != null && metadata.containsKey(HEADER_METADATA_KEY)) {
+            return CsvTokenizer.parseRecord(metadata.get(HEADER_METADATA_KEY), delimiter);
+        }
+        return readHeader(blobId);
+    }
+
+    /**
+     * Parses the header record and a sample of the records after it at the
+     * start of a stream without consuming it, so the stream can still be
+     * uploaded from its first byte. At most {@code sampleRange} bytes, or
+     * {@code maxRange} if larger, are buffered; the sample holds the records
+     * that fit in them.
+     *
+     * @param in          source supporting {@link InputStream#mark(int)} with
+     *                    a read limit of at least the buffered range.
+     * @param inference   engine sizing the sample.
+     * @param sampleRange most bytes read to fill the sample.
+     * @return the header and sample, or {@code null} if the stream is empty.
+     * @throws StorageException if the header record does not end within the
+     *                          maximum range.
+     * @throws IOException      if reading the stream fails.
+     */
+    public Head peekHead(InputStream in, SchemaInference inference, int sampleRange) throws IOException {
+        int limit = Math.max(maxRange, sampleRange);
+        in.mark(limit);
+        try {
+            ByteArrayOutputStream head = new ByteArrayOutputStream(initialRange);
+            byte[] buffer = new byte[initialRange];
+            int range = initialRange;
+            while (true) {
+                boolean endOfStream = readFully(in, buffer, Math.min(range, limit) - head.size(), head);
+                boolean full = head.size() >= limit;
+                CsvTokenizer tokenizer = new CsvTokenizer(
+                        new StringReader(new String(head.toByteArray(), StandardCharsets.UTF_8)), delimiter, true);
+                if (!tokenizer.next()) {
+                    return null;
+                }
+                if (!tokenizer.isTerminated() && !endOfStream) {
+                    if (head.size() >= maxRange) {
+                        throw new StorageException("No header record found in the first " + maxRange + " bytes");
+                    }
+                } else {
+                    List<String> header = tokenizer.cells();
+                    SchemaInference.Sample sample = inference.newSample(header.size());
+                    while (!sample.isFull() && tokenizer.next()) {
+                        // The last record of a partial read may be cut short.
+                        if (!tokenizer.isTerminated() && !endOfStream) {
+                            break;
+                        }
+                        if (!tokenizer.isBlank()) {
+                            sample.add(tokenizer);
+                        }
+                    }
+                    if (sample.isFull() || endOfStream || full) {
+                        return new Head(header, sample);
+                    }
+                }
+                range *= 2;
+            }
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Encodes header cells as a metadata value for
+     * {@link #HEADER_METADATA_KEY}.
+     *
+     * @return the header as one CSV record, or {@code null} if it is too
+     *         large to be kept in object metadata.
+     */
+    public String toMetadata(List<String> header) {
+        StringWriter record = new StringWriter();
+        try {
+            for (int i = 0; i < header.size(); i++) {
+                if (i > 0) {
+                    record.write(delimiter);
+                }
+                CsvTokenizer.writeField(header.get(i), delimiter, record);
+            }
+        } catch (IOException e) {
+            // StringWriter does not throw.
+            throw new IllegalStateException(e);
+        }
+        String value = record.toString();
+        return value.getBytes(StandardCharsets.UTF_8).length <= MAX_METADATA_HEADER ? value : null;
+    }
+
+    /**
+     * Header cells and sampled records of an object.
+     */
+    public static final class Head {
+        private final List<String> header;
+        private final SchemaInference.Sample sample;
+
+        Head(List<String> header, SchemaInference.Sample sample) {
+            this.header = header;
+            this.sample = sample;
+        }
+
+        public List<String> getHeader() {
+            return header;
+        }
+
+        public SchemaInference.Sample getSample() {
+            return sample;
+        }
+    }
+
+    // Looks at the magic bytes of the object.
+    private boolean isCompressed(BlobId blobId) throws IOException {
+        ByteArrayOutputStream magic = new ByteArrayOutputStream(4);
+        readRange(blobId, 0, 4, magic);
+        return Compression.of(magic.toByteArray(), magic.size()) != Compression.NONE;
+    }
+
+    private Head readCompressedHead(BlobId blobId, SchemaInference inference, int sampleRange) throws IOException {
+        int limit = Math.max(maxRange, sampleRange);
+        try (ReadChannel reader = storage.reader(blobId);
+                InputStream in = new BufferedInputStream(Compression.decode(Channels.newInputStream(reader)),
+                        Math.min(limit, initialRange * 8))) {
+            return peekHead(in, inference, sampleRange);
+        }
+    }
+
+    // Reads up to length bytes into sink; true once the stream is exhausted.
+    private static boolean readFully(InputStream in, byte[] buffer, int length, ByteArrayOutputStream sink)
+            throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, 0, Math.min(length, buffer.length));
+            if (read == -1) {
+                return true;
+            }
+            sink.write(buffer, 0, read);
+            length -= read;
+        }
+        return false;
+    }
+
+    private int readRange(BlobId blobId, long from, long to, ByteArrayOutputStream sink) throws IOException {
+        int total = 0;
+        try (ReadChannel reader = storage.reader(blobId)) {
+            reader.setChunkSize((int) (to - from));
+            reader.seek(from);
+            reader.limit(to);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+            int read;
+            while (buffer.hasRemaining() && (read = reader.read(buffer)) > 0) {
+                total += read;
+            }
+            sink.write(buffer.array(), 0, total);
+        }
+        return total;
+    }
+}
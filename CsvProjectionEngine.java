@@ -0,0 +1,561 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Streams a CSV object from GCS into a new GCS object holding only the
+ * selected columns, in the selected order.
+ *
+ * The header is read once to build a projection index array; every following
+ * record is tokenized by {@link CsvTokenizer} and its selected cells are
+ * written straight to the target channel, so the work per row is proportional
+ * to the number of selected columns and memory use does not grow with the size
+ * of the file. Quoted cells keep their delimiters and line breaks.
+ *
+ * Compressed sources are decoded on the fly, and the output can be written
+ * gzip-compressed, which BigQuery loads as is. Byte counts are those
+ * transferred, i.e. compressed bytes for compressed objects.
+ *
+ * {@link #projectAll} writes several projections of the same source in one
+ * pass: rows are read and tokenized once, and each target gets its own
+ * uploader thread fed through a bounded queue of blocks, so compression and
+ * GCS writes of the targets run in parallel with the parse.
+ */
+public class CsvProjectionEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(CsvProjectionEngine.class);
+
+    // Character buffer size used on both the read and the write side.
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // Fan-out blocks handed to a target uploader, and blocks queued per target.
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int QUEUE_DEPTH = 4;
+    private static final ByteBuffer END_OF_TARGET = ByteBuffer.allocate(0);
+
+    /**
+     * Receives row and byte counts while a projection is running.
+     */
+    public interface ProgressListener {
+        void onProgress(long rows, long bytesRead, long bytesWritten);
+    }
+
+    /**
+     * Totals of a finished projection.
+     */
+    public static final class Result {
+        private final List<String> columns;
+        private final long rows;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long rejectedRows;
+        private final BlobId quarantine;
+        private final Map<String, Long> rejectedByCheck;
+
+        Result(List<String> columns, long rows, long bytesRead, long bytesWritten) {
+            this(columns, rows, bytesRead, bytesWritten, 0, null, Map.of());
+        }
+
+        Result(List<String> columns, long rows, long bytesRead, long bytesWritten, long rejectedRows,
+                BlobId quarantine, Map<String, Long> rejectedByCheck) {
+            this.columns = columns;
+            this.rows = rows;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.rejectedRows = rejectedRows;
+            this.quarantine = quarantine;
+            this.rejectedByCheck = rejectedByCheck;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return rows written to the output, rejected rows excluded.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getRejectedRows() {
+            return rejectedRows;
+        }
+
+        /**
+         * @return the object holding the rejected rows, {@code null} if none
+         *         was rejected or validation was off.
+         */
+        public BlobId getQuarantine() {
+            return quarantine;
+        }
+
+        /**
+         * @return rejected rows by failed {@link RowValidator.Check}.
+         */
+        public Map<String, Long> getRejectedByCheck() {
+            return rejectedByCheck;
+        }
+    }
+
+    /**
+     * One output of a fan-out projection.
+     */
+    public static final class Target {
+        private final BlobInfo blobInfo;
+        private final List<String> selectedColumns;
+        private final SchemaInference.Sample sample;
+        private final List<StandardSQLTypeName> types;
+        private final BlobId quarantine;
+
+        /**
+         * @param blobInfo        object to write the projected CSV to.
+         * @param selectedColumns header names to keep, in output order.
+         * @param sample          filled with the first projected rows, may be
+         *                        {@code null}.
+         * @param types           type of each selected column to validate
+         *                        rows against, {@code null} to keep every row.
+         * @param quarantine      object rejected rows are written to, may be
+         *                        {@code null}.
+         */
+        public Target(BlobInfo blobInfo, List<String> selectedColumns, SchemaInference.Sample sample,
+                List<StandardSQLTypeName> types, BlobId quarantine) {
+            this.blobInfo = blobInfo;
+            this.selectedColumns = List.copyOf(selectedColumns);
+            this.sample = sample;
+            this.types = types;
+            this.quarantine = quarantine;
+        }
+
+        public BlobInfo getBlobInfo() {
+            return blobInfo;
+        }
+
+        public List<String> getSelectedColumns() {
+            return selectedColumns;
+        }
+
+        public SchemaInference.Sample getSample() {
+            return sample;
+        }
+
+        public List<StandardSQLTypeName> getTypes() {
+            return types;
+        }
+
+        public BlobId getQuarantine() {
+            return quarantine;
+        }
+    }
+
+    private final Storage storage;
+    private final int chunkSize;
+    private final long progressInterval;
+    private final char delimiter;
+    private final boolean gzipOutput;
+
+    /**
+     * @param storage          GCS client (or stand-in) used for both reading
+     *                         and writing.
+     * @param chunkSize        bytes sent per resumable upload request.
+     * @param progressInterval number of rows between progress reports.
+     * @param delimiter        field delimiter of both source and output.
+     * @param gzipOutput       whether output objects are gzip-compressed.
+     */
+    public CsvProjectionEngine(Storage storage, int chunkSize, long progressInterval, char delimiter,
+            boolean gzipOutput) {
+        this.storage = storage;
+        this.chunkSize = chunkSize;
+        this.progressInterval = progressInterval;
+        this.delimiter = delimiter;
+        this.gzipOutput = gzipOutput;
+    }
+
+    /**
+     * Projects {@code source} onto {@code selectedColumns} and writes the
+     * result, header included, to {@code target}, keeping every row.
+     *
+     * @see #project(BlobId, BlobInfo, List, ProgressListener,
+     *      SchemaInference.Sample, List, BlobId)
+     */
+    public Result project(BlobId source, BlobInfo target, List<String> selectedColumns, ProgressListener listener,
+            SchemaInference.Sample sample) throws IOException {
+        return project(source, target, selectedColumns, listener, sample, null, null);
+    }
+
+    /**
+     * Projects {@code source} onto {@code selectedColumns} and writes the
+     * result, header included, to {@code target}. With {@code types}, every
+     * row is checked by a {@link RowValidator} and rows that fail go to the
+     * quarantine object instead of the target.
+     *
+     * @param source          CSV object to read, plain or compressed.
+     * @param target          object to write the projected CSV to.
+     * @param selectedColumns header names to keep, in output order.
+     * @param listener        progress callback, may be {@code null}.
+     * @param sample          filled with the first projected rows for schema
+     *                        inference, may be {@code null}.
+     * @param types           type of each selected column, {@code null} to
+     *                        keep every row.
+     * @param quarantine      object rejected rows are written to, only
+     *                        created if a row is rejected; may be
+     *                        {@code null} to drop them.
+     * @return row and byte totals of the projection.
+     * @throws StorageException if the file has no header or a selected column
+     *                          is missing from it.
+     * @throws IOException      if reading or writing GCS fails.
+     */
+    public Result project(BlobId source, BlobInfo target, List<String> selectedColumns, ProgressListener listener,
+            SchemaInference.Sample sample, List<StandardSQLTypeName> types, BlobId quarantine) throws IOException {
+        try (ReadChannel reader = storage.reader(source);
+                CountingInputStream in = new CountingInputStream(Channels.newInputStream(reader));
+                QuarantineWriter quarantined = new QuarantineWriter(storage, quarantine, chunkSize, delimiter)) {
+            CsvTokenizer tokenizer = new CsvTokenizer(
+                    new InputStreamReader(Compression.decode(in), StandardCharsets.UTF_8), delimiter, true);
+
+            if (!tokenizer.next()) {
+                throw new StorageException("File is empty or doesn't contain a header.");
+            }
+            List<String> headerColumns = tokenizer.cells();
+            int[] projection = projectionIndexes(headerColumns, selectedColumns);
+            RowValidator validator = types == null ? null
+                    : new RowValidator(headerColumns.size(), projection, selectedColumns, types);
+            logger.info("Projecting {} of {} columns from {} to {}", projection.length, headerColumns.size(),
+                    source, target.getBlobId());
+
+            long rows = 0;
+            WriteChannel writeChannel = storage.writer(gzipOutput
+                    ? target.toBuilder().setContentEncoding(Compression.GZIP_ENCODING).build()
+                    : target);
+            writeChannel.setChunkSize(chunkSize);
+            CountingOutputStream out = new CountingOutputStream(Channels.newOutputStream(writeChannel));
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(gzipOutput ? Compression.gzip(out) : out,
+                    StandardCharsets.UTF_8), IO_BUFFER_SIZE)) {
+                writeHeader(selectedColumns, writer);
+
+                while (tokenizer.next()) {
+                    if (tokenizer.isBlank()) {
+                        continue;
+                    }
+                    String reason = validator == null ? null : validator.validate(tokenizer);
+                    if (reason != null) {
+                        quarantined.write(tokenizer, reason);
+                        continue;
+                    }
+                    // Without validation, ragged rows are padded with empty cells rather than failing the load.
+                    tokenizer.writeCells(projection, writer);
+                    if (sample != null && !sample.isFull()) {
+                        sample.add(tokenizer, projection);
+                    }
+                    rows++;
+                    if (listener != null && rows % progressInterval == 0) {
+                        listener.onProgress(rows, in.getCount(), out.getCount());
+                    }
+                }
+            }
+            // Counted once the writer is closed, so the end of the gzip stream is included
+            if (listener != null) {
+                listener.onProgress(rows, in.getCount(), out.getCount());
+            }
+            logger.info("Projection finished: {} rows, {} rejected, {} bytes read, {} bytes written", rows,
+                    quarantined.getRows(), in.getCount(), out.getCount());
+            return new Result(List.copyOf(selectedColumns), rows, in.getCount(), out.getCount(),
+                    quarantined.getRows(), quarantined.getBlobId(),
+                    validator == null ? Map.of() : validator.getRejectedByCheck());
+        }
+    }
+
+    /**
+     * Projects {@code source} onto every target in a single read of the
+     * source. Each record is tokenized once and its cells are written to
+     * every target; targets are uploaded concurrently, one thread each.
+     *
+     * Objects are only finalized once every row has been written, so a failed
+     * fan-out leaves no partial target behind.
+     * Targets with types validate rows as {@link #project} does, each
+     * against its own columns and into its own quarantine object.
+     *
+     * @param source   CSV object to read, plain or compressed.
+     * @param targets  objects to write and the columns each keeps.
+     * @param listeners progress callbacks, one per target in {@code targets}
+     *                  order, or {@code null}; each is told the rows and bytes
+     *                  written to its own target.
+     * @return row and byte totals, one per target, in {@code targets} order.
+     * @throws StorageException if the file has no header, a selected column is
+     *                          missing from it or a target upload fails.
+     * @throws IOException      if reading GCS fails.
+     */
+    public List<Result> projectAll(BlobId source, List<Target> targets, List<ProgressListener> listeners)
+            throws IOException {
+        try (ReadChannel reader = storage.reader(source);
+                CountingInputStream in = new CountingInputStream(Channels.newInputStream(reader));
+                ExecutorService uploads = Executors.newVirtualThreadPerTaskExecutor()) {
+            CsvTokenizer tokenizer = new CsvTokenizer(
+                    new InputStreamReader(Compression.decode(in), StandardCharsets.UTF_8), delimiter, true);
+
+            if (!tokenizer.next()) {
+                throw new StorageException("File is empty or doesn't contain a header.");
+            }
+            List<String> headerColumns = tokenizer.cells();
+            int[][] projections = new int[targets.size()][];
+            RowValidator[] validators = new RowValidator[targets.size()];
+            for (int t = 0; t < projections.length; t++) {
+                Target target = targets.get(t);
+                projections[t] = projectionIndexes(headerColumns, target.getSelectedColumns());
+                if (target.getTypes() != null) {
+                    validators[t] = new RowValidator(headerColumns.size(), projections[t],
+                            target.getSelectedColumns(), target.getTypes());
+                }
+            }
+            logger.info("Projecting {} into {} targets in one pass", source, targets.size());
+
+            TargetStream[] streams = new TargetStream[targets.size()];
+            Writer[] writers = new Writer[targets.size()];
+            QuarantineWriter[] quarantines = new QuarantineWriter[targets.size()];
+            long records = 0;
+            long[] rows = new long[targets.size()];
+            try {
+                for (int t = 0; t < streams.length; t++) {
+                    BlobInfo blobInfo = targets.get(t).getBlobInfo();
+                    streams[t] = new TargetStream(gzipOutput
+                            ? blobInfo.toBuilder().setContentEncoding(Compression.GZIP_ENCODING).build()
+                            : blobInfo);
+                    // Every target must be drained concurrently, hence one thread each rather than a bounded pool.
+                    streams[t].future = uploads.submit(streams[t]);
+                    writers[t] = new BufferedWriter(new OutputStreamWriter(streams[t], StandardCharsets.UTF_8),
+                            IO_BUFFER_SIZE);
+                    writeHeader(targets.get(t).getSelectedColumns(), writers[t]);
+                    quarantines[t] = new QuarantineWriter(storage, targets.get(t).getQuarantine(), chunkSize,
+                            delimiter);
+                }
+
+                while (tokenizer.next()) {
+                    if (tokenizer.isBlank()) {
+                        continue;
+                    }
+                    for (int t = 0; t < writers.length; t++) {
+                        // Each target checks the row against its own columns
+                        String reason = validators[t] == null ? null : validators[t].validate(tokenizer);
+                        if (reason != null) {
+                            quarantines[t].write(tokenizer, reason);
+                            continue;
+                        }
+                        tokenizer.writeCells(projections[t], writers[t]);
+                        SchemaInference.Sample sample = targets.get(t).getSample();
+                        if (sample != null && !sample.isFull()) {
+                            sample.add(tokenizer, projections[t]);
+                        }
+                        rows[t]++;
+                    }
+                    records++;
+                    if (listeners != null && records % progressInterval == 0) {
+                        reportProgress(listeners, rows, in.getCount(), streams);
+                    }
+                }
+                for (Writer writer : writers) {
+                    writer.close();
+                }
+                for (QuarantineWriter quarantine : quarantines) {
+                    quarantine.close();
+                }
+
+                List<Result> results = new ArrayList<>(targets.size());
+                for (int t = 0; t < streams.length; t++) {
+                    results.add(new Result(targets.get(t).getSelectedColumns(), rows[t], in.getCount(),
+                            streams[t].future.get(), quarantines[t].getRows(), quarantines[t].getBlobId(),
+                            validators[t] == null ? Map.of() : validators[t].getRejectedByCheck()));
+                }
+                if (listeners != null) {
+                    reportProgress(listeners, rows, in.getCount(), streams);
+                }
+                logger.info("Fan-out projection finished: {} rows, {} bytes read, {} targets", records,
+                        in.getCount(), results.size());
+                return results;
+            } catch (InterruptedException e) {
+                uploads.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new StorageException("Projection of " + source + " was interrupted", e);
+            } catch (ExecutionException e) {
+                uploads.shutdownNow();
+                throw new StorageException("Failed to write a projection of " + source, e.getCause());
+            } catch (IOException | RuntimeException e) {
+                uploads.shutdownNow();
+                throw e;
+            } finally {
+                // Rejected rows of a failed projection are kept for diagnosis
+                for (QuarantineWriter quarantine : quarantines) {
+                    if (quarantine != null) {
+                        quarantine.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void reportProgress(List<ProgressListener> listeners, long[] rows, long bytesRead,
+            TargetStream[] streams) {
+        for (int t = 0; t < streams.length; t++) {
+            ProgressListener listener = listeners.get(t);
+            if (listener != null) {
+                listener.onProgress(rows[t], bytesRead, streams[t].written);
+            }
+        }
+    }
+
+    /**
+     * Resolves the position of every selected column in the header, once.
+     */
+    static int[] projectionIndexes(List<String> headerColumns, List<String> selectedColumns) {
+        int[] indexes = new int[selectedColumns.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = headerColumns.indexOf(selectedColumns.get(i));
+            if (indexes[i] < 0) {
+                throw new StorageException("Selected column '" + selectedColumns.get(i)
+                        + "' is not present in the file header " + headerColumns);
+            }
+        }
+        return indexes;
+    }
+
+    private void writeHeader(List<String> columns, Writer writer) throws IOException {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                writer.write(delimiter);
+            }
+            CsvTokenizer.writeField(columns.get(i), delimiter, writer);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Output stream of one fan-out target: bytes are cut into blocks on the
+     * reading thread and uploaded by {@link #call()} on another.
+     */
+    private final class TargetStream extends OutputStream implements Callable<Long> {
+        private final BlobInfo blobInfo;
+        private final BlockingQueue<ByteBuffer> blocks = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int length;
+        private volatile long written;
+        private Future<Long> future;
+
+        TargetStream(BlobInfo blobInfo) {
+            this.blobInfo = blobInfo;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == block.length) {
+                send();
+            }
+            block[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == block.length) {
+                    send();
+                }
+                int n = Math.min(len, block.length - length);
+                System.arraycopy(b, off, block, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (block == null) {
+                return;
+            }
+            if (length > 0) {
+                send();
+            }
+            block = null;
+            put(END_OF_TARGET);
+        }
+
+        // Hands the current block over to the uploader; it is not reused.
+        private void send() throws IOException {
+            put(ByteBuffer.wrap(block, 0, length));
+            block = new byte[BLOCK_SIZE];
+            length = 0;
+        }
+
+        private void put(ByteBuffer buffer) throws IOException {
+            try {
+                while (!blocks.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                    // Surface uploader failures instead of waiting on a queue nobody drains.
+                    if (future.isDone()) {
+                        future.get();
+                        throw new StorageException("Projection upload of " + blobInfo.getName() + " stopped early");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing " + blobInfo.getName());
+            } catch (ExecutionException e) {
+                throw new StorageException("Failed to write projection " + blobInfo.getName(), e.getCause());
+            }
+        }
+
+        @Override
+        public Long call() throws Exception {
+            WriteChannel writer = storage.writer(blobInfo);
+            writer.setChunkSize(chunkSize);
+            CountingOutputStream counted = new CountingOutputStream(Channels.newOutputStream(writer));
+            OutputStream out = gzipOutput ? Compression.gzip(counted) : counted;
+            ByteBuffer buffer;
+            while ((buffer = blocks.take()) != END_OF_TARGET) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                written = counted.getCount();
+            }
+            // Closing the channel finalizes the object, so it is only done once every block is in.
+            out.close();
+            written = counted.getCount();
+            return written;
+        }
+    }
+}
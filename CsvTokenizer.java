@@ -0,0 +1,320 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming RFC-4180 CSV tokenizer.
+ *
+ * Handles quoted fields, escaped quotes ({@code ""}), line breaks inside
+ * quoted fields, CRLF/LF/CR record ends and a configurable delimiter. Input is
+ * read through one reused char buffer and the unescaped cells of the current
+ * record are stored back to back in a second reused buffer; cells are exposed
+ * as offsets into it, so no {@code String} is allocated per cell unless
+ * {@link #cell(int)} is called.
+ *
+ * Instances are not thread-safe.
+ */
+public final class CsvTokenizer {
+
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final char QUOTE = '"';
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Reader reader;
+    private final char delimiter;
+    private final boolean trimUnquoted;
+
+    private final char[] input = new char[INPUT_BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+
+    private char[] row = new char[1024];
+    private int rowLength;
+    private int[] cellEnds = new int[64];
+    private boolean[] cellQuoted = new boolean[64];
+    private int cellCount;
+
+    private long line = 1;
+    private long recordLine;
+    private boolean terminated;
+    private boolean firstRecord = true;
+
+    /**
+     * @param reader       source of characters, read until exhausted.
+     * @param delimiter    field delimiter.
+     * @param trimUnquoted strip spaces and tabs around unquoted cells.
+     */
+    public CsvTokenizer(Reader reader, char delimiter, boolean trimUnquoted) {
+        this.reader = reader;
+        this.delimiter = delimiter;
+        this.trimUnquoted = trimUnquoted;
+    }
+
+    /**
+     * Parses a single record held in memory, such as a header line.
+     *
+     * @return the cells of the first record, or an empty list if there is none.
+     */
+    public static List<String> parseRecord(String text, char delimiter) {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader(text), delimiter, true);
+        try {
+            return tokenizer.next() ? tokenizer.cells() : List.of();
+        } catch (IOException e) {
+            // StringReader does not throw.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return {@code false} once the input is exhausted.
+     * @throws IOException if reading the source fails.
+     */
+    public boolean next() throws IOException {
+        rowLength = 0;
+        cellCount = 0;
+        terminated = false;
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+        if (firstRecord) {
+            firstRecord = false;
+            if (c == BYTE_ORDER_MARK && (c = read()) == -1) {
+                return false;
+            }
+        }
+        recordLine = line;
+
+        int cellStart = 0;
+        boolean quoted = false;
+        boolean inQuotes = false;
+        while (true) {
+            if (c == -1) {
+                endCell(cellStart, quoted);
+                return true;
+            }
+            char ch = (char) c;
+            if (inQuotes) {
+                if (ch == QUOTE) {
+                    if (peek() == QUOTE) {
+                        position++;
+                        append(QUOTE);
+                    } else {
+                        inQuotes = false;
+                    }
+                } else {
+                    if (ch == '\n' || (ch == '\r' && peek() != '\n')) {
+                        line++;
+                    }
+                    append(ch);
+                }
+            } else if (ch == delimiter) {
+                endCell(cellStart, quoted);
+                cellStart = rowLength;
+                quoted = false;
+            } else if (ch == '\n' || ch == '\r') {
+                if (ch == '\r' && peek() == '\n') {
+                    position++;
+                }
+                line++;
+                terminated = true;
+                endCell(cellStart, quoted);
+                return true;
+            } else if (ch == QUOTE && rowLength == cellStart && !quoted) {
+                quoted = true;
+                inQuotes = true;
+            } else if (!(trimUnquoted && !quoted && rowLength == cellStart && (ch == ' ' || ch == '\t'))) {
+                append(ch);
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * @return number of cells in the current record.
+     */
+    public int cellCount() {
+        return cellCount;
+    }
+
+    /**
+     * @return the buffer holding the cells of the current record; valid until
+     *         the next call to {@link #next()}.
+     */
+    public char[] buffer() {
+        return row;
+    }
+
+    /**
+     * @return offset of cell {@code i} in {@link #buffer()}.
+     */
+    public int start(int i) {
+        return i == 0 ? 0 : cellEnds[i - 1];
+    }
+
+    /**
+     * @return length of cell {@code i}.
+     */
+    public int length(int i) {
+        return cellEnds[i] - start(i);
+    }
+
+    /**
+     * @return cell {@code i} as a new {@code String}.
+     */
+    public String cell(int i) {
+        return new String(row, start(i), length(i));
+    }
+
+    /**
+     * @return every cell of the current record as strings.
+     */
+    public List<String> cells() {
+        List<String> cells = new ArrayList<>(cellCount);
+        for (int i = 0; i < cellCount; i++) {
+            cells.add(cell(i));
+        }
+        return cells;
+    }
+
+    /**
+     * @return whether the current record is an empty line.
+     */
+    public boolean isBlank() {
+        return cellCount == 1 && rowLength == 0 && !cellQuoted[0];
+    }
+
+    /**
+     * @return the physical line on which the current record starts, 1-based.
+     */
+    public long lineNumber() {
+        return recordLine;
+    }
+
+    /**
+     * @return whether the current record ended with a line break rather than
+     *         the end of the input.
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Writes cell {@code i}, quoting it if it contains the delimiter, a quote
+     * or a line break.
+     */
+    public void writeCell(int i, Writer out) throws IOException {
+        writeField(row, start(i), length(i), delimiter, out);
+    }
+
+    /**
+     * Writes the cells at {@code projection} as one record followed by a line
+     * feed. Indexes past the end of a short record are written as empty cells.
+     */
+    public void writeCells(int[] projection, Writer out) throws IOException {
+        for (int i = 0; i < projection.length; i++) {
+            if (i > 0) {
+                out.write(delimiter);
+            }
+            if (projection[i] < cellCount) {
+                writeCell(projection[i], out);
+            }
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Writes a value as a CSV field, quoting it only when needed.
+     */
+    public static void writeField(String value, char delimiter, Writer out) throws IOException {
+        char[] chars = value.toCharArray();
+        writeField(chars, 0, chars.length, delimiter, out);
+    }
+
+    private static void writeField(char[] chars, int offset, int length, char delimiter, Writer out)
+            throws IOException {
+        int end = offset + length;
+        boolean needsQuotes = false;
+        for (int i = offset; i < end && !needsQuotes; i++) {
+            char ch = chars[i];
+            needsQuotes = ch == delimiter || ch == QUOTE || ch == '\n' || ch == '\r';
+        }
+        if (!needsQuotes) {
+            out.write(chars, offset, length);
+            return;
+        }
+        out.write(QUOTE);
+        int from = offset;
+        for (int i = offset; i < end; i++) {
+            if (chars[i] == QUOTE) {
+                out.write(chars, from, i + 1 - from);
+                out.write(QUOTE);
+                from = i + 1;
+            }
+        }
+        out.write(chars, from, end - from);
+        out.write(QUOTE);
+    }
+
+    private void endCell(int cellStart, boolean quoted) {
+        if (trimUnquoted && !quoted) {
+            while (rowLength > cellStart && (row[rowLength - 1] == ' ' || row[rowLength - 1] == '\t')) {
+                rowLength--;
+            }
+        }
+        if (cellCount == cellEnds.length) {
+            cellEnds = Arrays.copyOf(cellEnds, cellCount * 2);
+            cellQuoted = Arrays.copyOf(cellQuoted, cellCount * 2);
+        }
+        cellEnds[cellCount] = rowLength;
+        cellQuoted[cellCount] = quoted;
+        cellCount++;
+    }
+
+    private void append(char ch) {
+        if (rowLength == row.length) {
+            row = Arrays.copyOf(row, rowLength * 2);
+        }
+        row[rowLength++] = ch;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return input[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return input[position];
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        int read;
+        do {
+            read = reader.read(input, 0, input.length);
+        } while (read == 0);
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+}
@@ -1,46 +1,67 @@
 package com.cvs.anbc.ahreports.storage;
 
  
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
  
+import jakarta.annotation.PreDestroy;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
 
  
 import com.cvs.anbc.ahreports.dao.StorageProperties;
 import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.cvs.anbc.ahreports.exceptions.StorageFileNotFoundException;
 import com.google.cloud.bigquery.BigQuery;
-import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.CsvOptions;
 import com.google.cloud.bigquery.Field;
-import com.google.cloud.bigquery.FormatOptions;
 import com.google.cloud.bigquery.Job;
 import com.google.cloud.bigquery.JobId;
 import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.LoadJobConfiguration;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.CloudStorageConfiguration;
+import com.google.cloud.storage.contrib.nio.CloudStorageFileSystem;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.io.ByteStreams;
 
  
 /**
@@ -52,24 +73,128 @@ public class FileSystemStorageService implements StorageService {
 
  
     private static final Logger logger = LoggerFactory.getLogger(FileSystemStorageService.class);
+    // Object fields needed to compare contents without downloading them
+    private static final Storage.BlobGetOption CONTENT_FIELDS = Storage.BlobGetOption.fields(
+            Storage.BlobField.MD5HASH, Storage.BlobField.CRC32C, Storage.BlobField.SIZE,
+            Storage.BlobField.GENERATION);
+    // Content fields, with the metadata holding the hash of the bytes an object was received as, and the
+    // fields shown in listings, for a reused object
+    private static final Storage.BlobGetOption SOURCE_FIELDS = Storage.BlobGetOption.fields(
+            Storage.BlobField.MD5HASH, Storage.BlobField.CRC32C, Storage.BlobField.SIZE,
+            Storage.BlobField.GENERATION, Storage.BlobField.METADATA, Storage.BlobField.CONTENT_ENCODING,
+            Storage.BlobField.UPDATED, Storage.BlobField.CONTENT_TYPE);
+    private static final int HEADER_PEEK_BUFFER = 64 * 1024; // Grows up to the sample limit while peeking
+    private static final int HEADER_MAX_RANGE = 1024 * 1024; // Largest header record searched for
+    private static final String TEMP_PREFIX = "tmp/"; // Rewrites and projections, kept out of the listing
 
  
     private final Storage storage; // GCS instance
     private final String bucketName; // Name of the GCS bucket where files are uploaded
     private final BigQuery bigQuery;
     private final String projectId;
-    //BigQuery compute project Id
-    @Value("${bigquery.compute.projectId}")
-    private String computeProjectId;
+    private final GcsStreamUploader uploader; // Streams uploads into GCS
+    private final char csvDelimiter; // Field delimiter of uploaded CSV files
+    private final CsvProjectionEngine projectionEngine; // Streams column subsets between GCS objects
+    private final ColumnarConverter converter; // Typed Avro or Parquet before loads, null to load CSV
+    private final String loadFormat; // Format and codec loads are made in, e.g. csv or parquet/snappy
+    private final CsvHeaderReader headerReader; // Ranged reads of header records
+    private final SchemaInference schemaInference; // Column types from sampled rows
+    private final boolean gzipStorage; // Stores plain uploads, rewrites and projections gzip-compressed
+    //Types columns from sampled rows instead of loading everything as STRING
+    @Value("${bigquery.inference.enabled:true}")
+    private boolean inferenceEnabled;
+    //Most bytes of an upload buffered to fill the inference sample
+    @Value("${bigquery.inference.sampleBytes:1048576}")
+    private int inferenceSampleBytes;
+    private final LoadJobRegistry loadJobs; // Tracks BigQuery loads off the request threads
+    private final PipelineMetrics metrics; // Per-stage timings and counters
+    private final UploadSessionStore sessions; // Upload id to object, header and types
+    private final ContentIndex contentIndex; // Objects by content hash, to skip repeated uploads
+    private final LoadLedger loadLedger; // Loads by content, columns and table, to skip repeated loads
+    //Skips uploads and loads of content already in the bucket or table
+    @Value("${storage.dedup.enabled:true}")
+    private boolean dedupEnabled;
+    private final ExecutorService shardUploads; // One virtual thread per shard upload
+    private final int shardParallelism; // Shards of one upload written at the same time
+    private final ShardedCsvUploader shardedUploader;
+    private final ExecutorService batchUploads; // One virtual thread per file of a batch
+    private final AppendBatcher appendBatcher; // Coalesces appends into multi-file loads
+    private final BucketIndex bucketIndex; // Cached, sorted listing of the bucket
+    private final Supplier<CloudStorageFileSystem> bucketFileSystem; // Paths of objects in the bucket, on first use
+    private final Semaphore batchSlots; // Caps the batch uploads running at once
+    //Number of shards a sharded upload is split into
+    @Value("${storage.shard.count:8}")
+    private int shardCount;
+    //Smallest shard worth a separate upload
+    @Value("${storage.shard.minSize:67108864}")
+    private long minShardSize;
+    //Loads the uploaded object directly instead of rewriting it first, unless rows are validated
+    @Value("${bigquery.load.fastPath:true}")
+    private boolean loadFastPath;
+    //Checks rows during rewrites and projections, quarantining bad ones instead of failing the load
+    @Value("${bigquery.validation.enabled:true}")
+    private boolean validateRows;
+    //Object name prefix of quarantined rows
+    @Value("${bigquery.validation.quarantinePrefix:quarantine/}")
+    private String quarantinePrefix;
+    //Most tables built from one upload by a single fan-out request
+    @Value("${bigquery.fanout.maxTables:8}")
+    private int maxFanOutTables;
 
  
     /**
      * Constructor initializes the GCS Client and Bucket where we upload the file.
      *
-     * @param properties Configuration object contains details of Gcs bucket.
+     * @param properties      Configuration object contains details of Gcs bucket.
+     * @param clients         Shared GCS and BigQuery clients.
+     * @param metrics         Pipeline instrumentation.
+     * @param sessions        Store of upload sessions, shared by every node.
+     * @param uploadChunkSize Bytes sent per resumable upload request.
+     * @param progressInterval Rows between projection progress reports.
+     * @param maxConcurrentLoads Loads allowed in flight at the same time.
+     * @param jobRegistryCapacity Load jobs remembered for status polling.
+     * @param jobPollIntervalMs Delay between two BigQuery job status polls.
+     * @param shardParallelism Shard uploads running at the same time.
+     * @param csvDelimiter Field delimiter of uploaded CSV files.
+     * @param inferenceSampleRows Rows sampled per file for type inference.
+     * @param batchConcurrency Files of a batch uploaded at the same time.
+     * @param contentIndexCapacity Uploaded objects remembered by content hash.
+     * @param loadLedgerCapacity Loads remembered for deduplication.
+     * @param gzipStorage Whether plain CSV is gzip-compressed as it is stored in a single object.
+     * @param gzipShards Whether shards are written gzip-compressed.
+     * @param loadFormat Format loads are converted to: csv, avro or parquet.
+     * @param loadCodec Block compression of converted files: snappy or zstd.
+     * @param appendMaxBytes Bytes of files that close an append batch.
+     * @param appendMaxFiles Files that close an append batch.
+     * @param appendWindowMs Longest time an append batch stays open.
+     * @param appendCapacity Append batches remembered for status polling.
+     * @param listingMaxEntries Most uploaded objects held by the bucket listing.
+     * @param listingTtlMs Age after which the bucket listing is taken again.
      * @throws StorageException if bucket name is empty.
      */
-    public FileSystemStorageService(StorageProperties properties) {
+    public FileSystemStorageService(StorageProperties properties, CloudClients clients, PipelineMetrics metrics,
+            UploadSessionStore sessions,
+            @Value("${storage.upload.chunkSize:8388608}") int uploadChunkSize,
+            @Value("${bigquery.projection.progressInterval:1000000}") long progressInterval,
+            @Value("${bigquery.load.maxConcurrent:4}") int maxConcurrentLoads,
+            @Value("${bigquery.load.registryCapacity:1000}") int jobRegistryCapacity,
+            @Value("${bigquery.load.pollIntervalMs:2000}") long jobPollIntervalMs,
+            @Value("${storage.shard.parallelism:8}") int shardParallelism,
+            @Value("${storage.csv.delimiter:,}") char csvDelimiter,
+            @Value("${bigquery.inference.sampleRows:1000}") int inferenceSampleRows,
+            @Value("${storage.batch.maxConcurrent:8}") int batchConcurrency,
+            @Value("${storage.dedup.indexCapacity:10000}") int contentIndexCapacity,
+            @Value("${bigquery.load.ledgerCapacity:1000}") int loadLedgerCapacity,
+            @Value("${storage.compression.gzip:false}") boolean gzipStorage,
+            @Value("${storage.shard.gzip:true}") boolean gzipShards,
+            @Value("${bigquery.load.format:csv}") String loadFormat,
+            @Value("${bigquery.load.codec:snappy}") String loadCodec,
+            @Value("${bigquery.append.maxBytes:1073741824}") long appendMaxBytes,
+            @Value("${bigquery.append.maxFiles:500}") int appendMaxFiles,
+            @Value("${bigquery.append.windowMs:60000}") long appendWindowMs,
+            @Value("${bigquery.append.capacity:1000}") int appendCapacity,
+            @Value("${storage.listing.maxEntries:100000}") int listingMaxEntries,
+            @Value("${storage.listing.ttlMs:300000}") long listingTtlMs) {
         // Validates that the bucket name is not empty
         if (properties.getBucketName().trim().length() == 0) {
             throw new StorageException("GCS bucket name cannot be empty.");
@@ -80,11 +205,40 @@ public class FileSystemStorageService implements StorageService {
        
 
  
-        // Initializes the GCS storage
-        this.storage = StorageOptions.getDefaultInstance().getService();
-        this.bigQuery = BigQueryOptions.getDefaultInstance().getService();
+        // Shared clients, built on their first call; BigQuery jobs are created in the compute project
+        this.storage = clients.lazyStorage();
+        this.bigQuery = clients.lazyBigQuery();
         this.bucketName = properties.getBucketName();
         this.projectId = properties.getProjectId();
+        this.uploader = new GcsStreamUploader(storage, uploadChunkSize);
+        this.csvDelimiter = csvDelimiter;
+        this.gzipStorage = gzipStorage;
+        this.projectionEngine = new CsvProjectionEngine(storage, uploadChunkSize, progressInterval, csvDelimiter,
+                gzipStorage);
+        this.converter = "csv".equalsIgnoreCase(loadFormat) ? null
+                : new ColumnarConverter(storage, uploadChunkSize, progressInterval, csvDelimiter,
+                        ColumnarConverter.Format.valueOf(loadFormat.toUpperCase(Locale.ROOT)),
+                        ColumnarConverter.Codec.valueOf(loadCodec.toUpperCase(Locale.ROOT)));
+        this.loadFormat = converter == null ? "csv"
+                : loadFormat.toLowerCase(Locale.ROOT) + '/' + loadCodec.toLowerCase(Locale.ROOT);
+        this.headerReader = new CsvHeaderReader(storage, 8 * 1024, HEADER_MAX_RANGE, csvDelimiter);
+        this.schemaInference = new SchemaInference(inferenceSampleRows);
+        this.metrics = metrics;
+        this.sessions = sessions;
+        this.contentIndex = new ContentIndex(contentIndexCapacity);
+        this.loadLedger = new LoadLedger(loadLedgerCapacity);
+        this.loadJobs = new LoadJobRegistry(bigQuery, maxConcurrentLoads, jobRegistryCapacity, jobPollIntervalMs);
+        this.shardUploads = Executors.newVirtualThreadPerTaskExecutor();
+        this.shardParallelism = shardParallelism;
+        this.shardedUploader = new ShardedCsvUploader(storage, shardUploads, uploadChunkSize, gzipShards);
+        this.batchUploads = Executors.newVirtualThreadPerTaskExecutor();
+        this.batchSlots = new Semaphore(batchConcurrency);
+        this.appendBatcher = new AppendBatcher(bigQuery, loadJobs, metrics, csvOptions(), appendMaxBytes,
+                appendMaxFiles, appendWindowMs, appendCapacity);
+        // Uploads are stored at the top of the bucket, everything internal under a prefix
+        this.bucketIndex = new BucketIndex(storage, bucketName, "", listingMaxEntries, listingTtlMs);
+        this.bucketFileSystem = Suppliers.memoize(() -> CloudStorageFileSystem.forBucket(bucketName,
+                CloudStorageConfiguration.DEFAULT, clients.storage().getOptions()));
        
         logger.info(" The Project iD is : " + this.projectId);
         logger.info(" FileSystemStorageService initialized with bucket: " + this.bucketName);
@@ -94,76 +248,760 @@ public class FileSystemStorageService implements StorageService {
 
  
     /**
-     * Stores the file in temp directory and then uploads it to the GCS bucket.
+     * Streams the uploaded file straight into the GCS bucket.
+     *
+     * The stored content is piped into a resumable upload channel, so heap
+     * use stays at one upload chunk regardless of file size. The header record
+     * and the column types are worked out from the first decoded bytes before
+     * the upload starts; the
+     * header is saved as object metadata and both are kept in an upload
+     * session, so later requests never read them back from the data.
+     *
+     * The file is hashed (MD5 and CRC32C, as GCS reports them) in the upload
+     * pipe, and the hash of the received bytes is kept with the object. Only
+     * when an object received with as many bytes is known is the spooled file
+     * hashed before anything is sent; if the bucket holds the same content the
+     * transfer is then skipped: an object with the same name is reused as is,
+     * and content under another name is copied server-side.
+     *
+     * Gzip and zstd uploads are recognised by their magic bytes and decoded as
+     * a stream for the header and types. They are stored gzip-compressed with
+     * {@code Content-Encoding: gzip}, so loads read them directly: gzip
+     * uploads as received, zstd uploads gzipped on their way to GCS. Plain
+     * uploads are too when {@code storage.compression.gzip} is on.
      *
      * @param file the uploaded file recieved.
+     * @return the upload session describing the stored object.
      * @throws StorageException if the file is empty or upload to the GCS bucket
      *                          fails.
-     *                          }
      */
     @Override
-    public void store(MultipartFile file) {
-        Path tempDir = null; // tempDir for storing file
-        Path tempFilePath = null; // Path to the temporary file
+    public UploadSession store(MultipartFile file) {
+        return store(file, metrics.trace("upload", file.getOriginalFilename()));
+    }
+
+    /**
+     * Stores an uploaded file under a trace started by the caller, on the
+     * request thread so the receive stage is part of it.
+     */
+    private UploadSession store(MultipartFile file, PipelineMetrics.Trace trace) {
+        logger.info("Starting the store process...");
+        // Checks if the file is empty
+        if (file.isEmpty()) {
+            StorageException e = new StorageException("failed to store empty file.");
+            trace.fail(e);
+            throw e;
+        }
 
- 
         try {
-            // Checks if the file is empty
-            logger.info("Starting the store process...");
-            if (file.isEmpty()) {
-                throw new StorageException("failed to store empty file.");
+            Compression compression;
+            try (InputStream in = new BufferedInputStream(file.getInputStream(), 16)) {
+                compression = Compression.detect(in);
             }
+            // BigQuery loads gzip as is; zstd, and plain CSV if switched on, is gzipped on its way to GCS
+            boolean storeGzip = compression != Compression.NONE || gzipStorage;
 
- 
-            // creates a temp directory to hold the file.
-            tempDir = Files.createTempDirectory("upload-temp");
-            // Resolves the path of temp file.
-            tempFilePath = tempDir.resolve(file.getOriginalFilename());
-
- 
-            // copies the file's input stream to the temp file
-            Files.copy(file.getInputStream(), tempFilePath, StandardCopyOption.REPLACE_EXISTING);
-            logger.info("File saved to temp directory: {}", tempFilePath);
+            // Parse the header and sample rows from the decoded start of the file and keep them with the object
+            CsvHeaderReader.Head head;
+            List<String> types = null;
+            try (InputStream in = new BufferedInputStream(compression.decoder(file.getInputStream()),
+                    HEADER_PEEK_BUFFER);
+                    PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.HEADER_PARSE)) {
+                head = headerReader.peekHead(in, schemaInference, inferenceSampleBytes);
+                if (head != null && inferenceEnabled) {
+                    types = schemaInference.inferTypes(head.getSample()).stream()
+                            .map(StandardSQLTypeName::name)
+                            .collect(Collectors.toList());
+                }
+            }
+            if (head == null) {
+                throw new StorageException("failed to store empty file.");
+            }
+            List<String> columns = head.getHeader();
+            String headerMetadata = headerReader.toMetadata(columns);
 
- 
             // Preapres the metadata for the GCS object
-            BlobInfo blobInfo = BlobInfo.newBuilder(bucketName, file.getOriginalFilename()).build();
+            String objectName = storedName(file.getOriginalFilename(), compression);
+            BlobInfo blobInfo = objectInfo(objectName, storeGzip, headerMetadata);
 
- 
-            // Upload the File to GCS
-            storage.create(blobInfo, Files.readAllBytes(tempFilePath));
-            logger.info("File uploaded to GCS bucket:{}/{}", bucketName, file.getOriginalFilename());
+            Blob stored = dedupEnabled ? reuseContent(file, blobInfo, trace) : null;
+            if (stored == null) {
+                try (InputStream in = file.getInputStream();
+                        PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.GCS_UPLOAD)) {
+                    // Upload the File to GCS
+                    stored = streamObject(in, compression, storeGzip && compression != Compression.GZIP, blobInfo,
+                            file.getSize(), file.getSize());
+                    span.bytes(stored.getSize());
+                }
+                logger.info("File streamed to GCS bucket:{}/{} ({} of {} bytes received, {})", bucketName,
+                        objectName, stored.getSize(), file.getSize(), storeGzip ? "gzip" : "uncompressed");
+            }
 
- 
+            UploadSession session = new UploadSession(objectName, stored.getGeneration(),
+                    ContentHash.of(stored.getMd5(), stored.getCrc32c(), stored.getSize()), columns, types);
+            sessions.save(session);
+            // Listed right away rather than from the next listing of the bucket
+            bucketIndex.put(stored);
+            trace.finish();
+            return session;
         } catch (IOException e) {
+            trace.fail(e);
             // Logs the error and throws a StorageException
-            e.printStackTrace();
             logger.error("Error during the file upload:{} ", e.getMessage(), e);
-            // handles Exception during file operations or GCS upload.
+            // handles Exception during stream read or GCS upload.
             throw new StorageException("Failed to upload file to GCS bucket", e);
+        } catch (RuntimeException e) {
+            trace.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Streams a raw request body straight into the GCS bucket, for files too
+     * large to be spooled by the multipart resolver.
+     *
+     * Nothing is written to disk and only the start of the body is buffered:
+     * the header and types are parsed from the first decoded bytes, then the
+     * body is piped into a resumable upload, gzipped on the way when it is
+     * stored compressed and not gzip already, and hashed as it is sent. Since the hash is only known at
+     * the end, the transfer cannot be skipped for known content; the hash is
+     * checked against the one GCS computed and indexed for later uploads.
+     *
+     * The object is only completed once exactly {@code contentLength} bytes
+     * have been received, or the end of a chunked body with at most
+     * {@code maxLength}, so an aborted request leaves nothing behind.
+     *
+     * @param fileName      object name, as for a multipart upload.
+     * @param body          request body, plain or gzip or zstd-compressed.
+     * @param contentLength declared length of the body, {@code -1} if chunked.
+     * @param maxLength     most bytes the body may hold.
+     * @return the upload session describing the stored object.
+     * @throws StorageException if the body is empty or truncated, or the
+     *                          upload to the GCS bucket fails.
+     * @throws MaxUploadSizeExceededException if the body holds more than
+     *                                        {@code maxLength} bytes.
+     */
+    @Override
+    public UploadSession storeStream(String fileName, InputStream body, long contentLength, long maxLength) {
+        if (contentLength > maxLength) {
+            throw new MaxUploadSizeExceededException(maxLength);
+        }
+        if (fileName == null || fileName.isBlank() || contentLength == 0) {
+            throw new StorageException("failed to store empty file.");
+        }
+
+        PipelineMetrics.Trace trace = metrics.trace("upload", fileName);
+        try {
+            BufferedInputStream in = new BufferedInputStream(body, HEADER_PEEK_BUFFER);
+            Compression compression = Compression.detect(in);
+            boolean storeGzip = compression != Compression.NONE || gzipStorage;
+
+            // Peek at the decoded start of the body, then rewind the raw stream to upload it from its first byte
+            CsvHeaderReader.Head head;
+            List<String> types = null;
+            in.mark(Math.max(inferenceSampleBytes, HEADER_MAX_RANGE) + 4 * HEADER_PEEK_BUFFER);
+            try (PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.HEADER_PARSE)) {
+                head = headerReader.peekHead(new BufferedInputStream(compression.decoder(in), HEADER_PEEK_BUFFER),
+                        schemaInference, inferenceSampleBytes);
+                if (head != null && inferenceEnabled) {
+                    types = schemaInference.inferTypes(head.getSample()).stream()
+                            .map(StandardSQLTypeName::name)
+                            .collect(Collectors.toList());
+                }
+            }
+            in.reset();
+            if (head == null) {
+                throw new StorageException("failed to store empty file.");
+            }
+            List<String> columns = head.getHeader();
+            String headerMetadata = headerReader.toMetadata(columns);
+
+            String objectName = storedName(fileName, compression);
+            BlobInfo blobInfo = objectInfo(objectName, storeGzip, headerMetadata);
+
+            Blob stored;
+            try (PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.GCS_UPLOAD)) {
+                stored = streamObject(in, compression, storeGzip && compression != Compression.GZIP, blobInfo,
+                        contentLength, maxLength);
+                span.bytes(stored.getSize());
+            }
+            logger.info("Request body streamed to GCS bucket:{}/{} ({} bytes received, {} stored, {})", bucketName,
+                    objectName, ContentHash.sourceSize(stored.getMetadata()), stored.getSize(),
+                    storeGzip ? "gzip" : "uncompressed");
+
+            UploadSession session = new UploadSession(objectName, stored.getGeneration(),
+                    ContentHash.of(stored.getMd5(), stored.getCrc32c(), stored.getSize()), columns, types);
+            sessions.save(session);
+            // Listed right away rather than from the next listing of the bucket
+            bucketIndex.put(stored);
+            trace.finish();
+            return session;
+        } catch (IOException e) {
+            trace.fail(e);
+            logger.error("Error during the streaming upload of {}: {}", fileName, e.getMessage(), e);
+            throw new StorageException("Failed to upload file to GCS bucket", e);
+        } catch (RuntimeException e) {
+            trace.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Metadata of a new upload object: CSV, gzip-encoded when stored so, with
+     * the header record when there is one.
+     */
+    private BlobInfo objectInfo(String objectName, boolean storeGzip, String headerMetadata) {
+        BlobInfo.Builder blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, objectName)).setContentType("text/csv");
+        if (storeGzip) {
+            blobInfo.setContentEncoding(Compression.GZIP_ENCODING);
+        }
+        if (headerMetadata != null) {
+            blobInfo.setMetadata(Map.of(CsvHeaderReader.HEADER_METADATA_KEY, headerMetadata));
+        }
+        return blobInfo.build();
+    }
+
+    /**
+     * Pipes uploaded bytes into a new object, decoded and gzipped on the way
+     * when {@code recompress}, hashing both what is received and what is
+     * stored as they go through. Nothing is buffered beyond one upload chunk
+     * and nothing is read twice.
+     *
+     * The object is completed only once the source has ended with
+     * {@code expectedLength} bytes, and no more than {@code maxLength}, so a
+     * truncated or oversized source leaves nothing behind; the source is
+     * never read past {@code maxLength}. The stored hash is then checked against the one GCS computed,
+     * and the received hash is kept in the object metadata and in the content
+     * index, for later uploads of the same bytes.
+     *
+     * @param expectedLength bytes the source is declared to hold, {@code -1}
+     *                       if unknown.
+     * @param maxLength      most bytes the source may hold.
+     * @return the stored object.
+     * @throws MaxUploadSizeExceededException if the source holds more than
+     *                                        {@code maxLength} bytes.
+     */
+    private Blob streamObject(InputStream source, Compression compression, boolean recompress, BlobInfo blobInfo,
+            long expectedLength, long maxLength) throws IOException {
+        ContentHash.HashingInputStream received = new ContentHash.HashingInputStream(
+                ByteStreams.limit(source, maxLength + 1));
+        ContentHash.HashingOutputStream hashed = new ContentHash.HashingOutputStream(uploader.open(blobInfo));
+        OutputStream out = recompress ? Compression.gzip(hashed) : hashed;
+        (recompress ? compression.decoder(received) : received).transferTo(out);
+        // Anything a decoder left after the end of the compressed content is part of what was received
+        received.transferTo(OutputStream.nullOutputStream());
+        if (received.getCount() > maxLength) {
+            throw new MaxUploadSizeExceededException(maxLength);
+        }
+        if (expectedLength >= 0 && received.getCount() != expectedLength) {
+            throw new StorageException("Upload of " + blobInfo.getName() + " ended after " + received.getCount()
+                    + " of " + expectedLength + " bytes");
+        }
+        // Completes the object only now that the whole source is in
+        out.close();
+        ContentHash hash = hashed.hash();
+        ContentHash sourceHash = received.hash();
+
+        BlobId blobId = blobInfo.getBlobId();
+        Blob stored = storage.get(blobId, CONTENT_FIELDS);
+        if (stored == null || !hash.matches(stored.getMd5(), stored.getCrc32c(), stored.getSize())) {
+            storage.delete(blobId);
+            bucketIndex.remove(blobInfo.getName());
+            throw new StorageException("Object " + blobInfo.getName() + " does not match the content sent");
+        }
+        Map<String, String> metadata = new HashMap<>();
+        if (blobInfo.getMetadata() != null) {
+            metadata.putAll(blobInfo.getMetadata());
+        }
+        metadata.putAll(sourceHash.toSourceMetadata());
+        stored = storage.update(BlobInfo.newBuilder(stored.getBlobId()).setMetadata(metadata).build(),
+                Storage.BlobTargetOption.generationMatch());
+        contentIndex.put(sourceHash, blobId);
+        return stored;
+    }
+
+    /**
+     * Object name of an upload: its file name, with a {@code .zst} extension
+     * turned into {@code .gz} since the object is stored gzip-compressed.
+     */
+    private static String storedName(String fileName, Compression compression) {
+        if (compression == Compression.ZSTD && fileName.endsWith(".zst")) {
+            return fileName.substring(0, fileName.length() - ".zst".length()) + ".gz";
+        }
+        return fileName;
+    }
 
  
-        } finally {
-            // Cleans up temporary files and directories
-            try {
-                if (tempFilePath != null && Files.exists(tempFilePath)) {
-                    Files.delete(tempFilePath);
+    /**
+     * Returns the header columns of an uploaded object.
+     *
+     * The header saved in the object metadata at upload time is used when
+     * present; otherwise only the first few KB of the object are fetched with
+     * ranged reads.
+     *
+     * @param fileName name of the uploaded object in the bucket.
+     * @return header cells, in file order.
+     * @throws StorageFileNotFoundException if the object does not exist.
+     * @throws StorageException if the object cannot be read.
+     */
+    @Override
+    public List<String> getColumnsFromFile(String fileName) {
+        try {
+            List<String> columns = headerReader.readColumns(BlobId.of(bucketName, fileName));
+            if (columns == null) {
+                throw new StorageFileNotFoundException("Could not read columns of file: " + fileName);
+            }
+            return columns;
+        } catch (IOException e) {
+            logger.error("Error reading file header: {}", e.getMessage(), e);
+            throw new StorageException("Error reading file header", e);
+        }
+    }
+
+ 
+    /**
+     * Returns the upload session created by {@link #store(MultipartFile)}.
+     *
+     * @param uploadId id returned by the upload.
+     * @return the session.
+     * @throws StorageFileNotFoundException if the id is unknown or expired.
+     */
+    @Override
+    public UploadSession getUploadSession(String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null) {
+            throw new StorageFileNotFoundException("Unknown or expired upload id: " + uploadId);
+        }
+        return session;
+    }
+
+    /**
+     * Serves an upload from content already in the bucket.
+     *
+     * Hashing the spooled file means reading it once more, so it is only done
+     * when some object was received with exactly as many bytes: the target
+     * object itself, or one in the content index. The target object is then
+     * checked first, then the object last known to hold the same content,
+     * which is copied server-side to the target.
+     *
+     * @param file   the uploaded file.
+     * @param target object to create, with its metadata.
+     * @return the target object, or {@code null} if the content has to be
+     *         uploaded.
+     */
+    private Blob reuseContent(MultipartFile file, BlobInfo target, PipelineMetrics.Trace trace) throws IOException {
+        Blob existing = storage.get(target.getBlobId(), SOURCE_FIELDS);
+        boolean sameSize = existing != null && ContentHash.sourceSize(existing.getMetadata()) == file.getSize();
+        if (!sameSize && !contentIndex.containsSize(file.getSize())) {
+            metrics.cacheLookup("upload", false);
+            return null;
+        }
+        ContentHash hash;
+        try (InputStream in = file.getInputStream();
+                PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.HASH)) {
+            hash = ContentHash.of(in);
+            span.bytes(hash.getSize());
+        }
+        if (existing != null && hash.matchesSource(existing.getMetadata())) {
+            metrics.cacheLookup("upload", true);
+            logger.info("Skipped upload of {}: the bucket already holds the same content", target.getName());
+            contentIndex.put(hash, target.getBlobId());
+            return existing;
+        }
+
+        BlobId known = contentIndex.find(hash);
+        Blob source = known == null ? null : storage.get(known, SOURCE_FIELDS);
+        if (source == null || !hash.matchesSource(source.getMetadata())) {
+            if (known != null) {
+                contentIndex.remove(hash);
+            }
+            metrics.cacheLookup("upload", false);
+            return null;
+        }
+        // The copy keeps the source object's encoding, which the content was stored with
+        Map<String, String> metadata = new HashMap<>(source.getMetadata());
+        if (target.getMetadata() != null) {
+            metadata.putAll(target.getMetadata());
+        }
+        Blob copy = storage.copy(Storage.CopyRequest.newBuilder()
+                .setSource(known)
+                .setTarget(target.toBuilder().setContentEncoding(source.getContentEncoding()).setMetadata(metadata)
+                        .build())
+                .build()).getResult();
+        metrics.cacheLookup("upload", true);
+        logger.info("Copied {} from {} in the bucket instead of uploading it", target.getName(), known.getName());
+        return copy;
+    }
+
+    /**
+     * Settings that shape a load beyond its content and target, as part of the
+     * ledger key: a load made under other settings is not reused.
+     */
+    private String loadSettings() {
+        return "fastPath=" + loadFastPath + ",format=" + loadFormat + ",validate=" + validateRows
+                + ",quarantine=" + quarantinePrefix;
+    }
+
+    /**
+     * Looks up an identical earlier load in the ledger. A load still in
+     * flight is shared; a finished one is reused only if it succeeded and the
+     * table has not been modified since.
+     *
+     * @return the earlier load, or {@code null} if a new load is needed.
+     */
+    private LoadJobStatus previousLoad(String ledgerKey, TableId tableId) {
+        LoadJobStatus previous = dedupEnabled && ledgerKey != null ? loadLedger.get(ledgerKey) : null;
+        boolean reusable = previous != null
+                && (!previous.getState().isTerminal()
+                        || previous.getState() == LoadJobStatus.State.SUCCEEDED && tableUnchangedSince(tableId,
+                                previous.getFinishedAt().toEpochMilli()));
+        if (dedupEnabled && ledgerKey != null) {
+            metrics.cacheLookup("load", reusable);
+        }
+        if (!reusable) {
+            return null;
+        }
+        logger.info("Load into {} answered by identical load {}", tableId, previous.getId());
+        return previous;
+    }
+
+    private LoadJobStatus rememberLoad(String ledgerKey, LoadJobStatus load) {
+        if (ledgerKey != null) {
+            loadLedger.put(ledgerKey, load);
+        }
+        return load;
+    }
+
+    // Allows for the delay between the end of a load and the poll that notices it.
+    private boolean tableUnchangedSince(TableId tableId, long loadedAtMillis) {
+        Table table = bigQuery.getTable(tableId, BigQuery.TableOption.fields(BigQuery.TableField.LAST_MODIFIED_TIME));
+        return table != null && table.getLastModifiedTime() != null
+                && table.getLastModifiedTime() <= loadedAtMillis;
+    }
+
+    /**
+     * @return the live generation of an object, or {@code null} if it does not
+     *         exist.
+     */
+    private Long currentGeneration(BlobId blobId) {
+        Blob blob = storage.get(blobId, Storage.BlobGetOption.fields(Storage.BlobField.GENERATION));
+        return blob == null ? null : blob.getGeneration();
+    }
+
+    /**
+     * Fails a load whose object was overwritten or removed since the upload,
+     * e.g. by another user uploading a file with the same name.
+     */
+    private void checkGeneration(UploadSession session) {
+        if (session.getGeneration() == null) {
+            return;
+        }
+        Long generation = currentGeneration(BlobId.of(bucketName, session.getObjectName()));
+        if (!session.getGeneration().equals(generation)) {
+            throw new StorageException("File " + session.getObjectName()
+                    + " was replaced or deleted after upload " + session.getId() + "; upload it again.");
+        }
+    }
+
+    /**
+     * Builds the load schema from the header and types recorded at upload
+     * time, with the caller's overrides applied on top.
+     */
+    private Schema sessionSchema(UploadSession session, Map<String, StandardSQLTypeName> typeOverrides) {
+        Map<String, StandardSQLTypeName> types = new HashMap<>();
+        if (session.getTypes() != null) {
+            List<String> columnNames = BigQueryColumnNames.normalize(session.getColumns());
+            for (int i = 0; i < columnNames.size(); i++) {
+                types.put(columnNames.get(i), StandardSQLTypeName.valueOf(session.getTypes().get(i)));
+            }
+        }
+        if (typeOverrides != null) {
+            types.putAll(typeOverrides);
+        }
+        return inferSchema(session.getColumns(), null, types);
+    }
+
+    /**
+     * Stores several uploaded files concurrently and optionally loads them.
+     *
+     * Each file is streamed by {@link #store(MultipartFile)} on its own
+     * virtual thread; at most {@code storage.batch.maxConcurrent} uploads run
+     * at once, so a batch takes about as long as its slowest files instead of
+     * the sum of all of them. A failed file does not stop the others; it is
+     * reported in its own result.
+     *
+     * @param files         the uploaded files.
+     * @param loadMode      loads to start once the files are stored.
+     * @param datasetName   target dataset, required unless no load is made.
+     * @param tableName     target table of a combined load, or the prefix of
+     *                      the per-file table names; may be {@code null} for
+     *                      per-file loads.
+     * @param typeOverrides column types forced by the caller, may be empty.
+     * @return one result per file, in request order, with timings.
+     * @throws StorageException if the request thread is interrupted.
+     */
+    @Override
+    public BatchUploadResult storeBatch(List<MultipartFile> files, BatchUploadResult.LoadMode loadMode,
+            String datasetName, String tableName, Map<String, StandardSQLTypeName> typeOverrides) {
+        long start = System.nanoTime();
+        List<Future<BatchUploadResult.FileResult>> uploads = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            // Traced here: the receive start is only visible from the request thread
+            PipelineMetrics.Trace trace = metrics.trace("upload", file.getOriginalFilename());
+            uploads.add(batchUploads.submit(() -> storeBatchFile(file, trace)));
+        }
+        List<BatchUploadResult.FileResult> results = new ArrayList<>(files.size());
+        try {
+            for (Future<BatchUploadResult.FileResult> upload : uploads) {
+                results.add(upload.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            uploads.forEach(upload -> upload.cancel(true));
+            throw new StorageException("Batch upload was interrupted", e);
+        } catch (ExecutionException e) {
+            // storeBatchFile reports failures in its result
+            throw new StorageException("Batch upload failed", e.getCause());
+        }
+        logger.info("Stored {} of {} files in {} ms", results.stream().filter(BatchUploadResult.FileResult::isStored)
+                .count(), files.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        LoadJobStatus combinedLoad = null;
+        if (loadMode == BatchUploadResult.LoadMode.PER_FILE) {
+            for (BatchUploadResult.FileResult result : results) {
+                if (!result.isStored()) {
+                    continue;
                 }
-                if (tempDir != null && Files.exists(tempDir)) {
-                    Files.delete(tempDir);
+                try {
+                    result.setLoad(createOrReplaceBigQueryTable(result.getUploadId(), datasetName,
+                            batchTableName(tableName, result.getFileName()), typeOverrides, TableLayout.NONE));
+                } catch (RuntimeException e) {
+                    logger.error("Failed to submit load of {}: {}", result.getFileName(), e.getMessage(), e);
+                    result.setError("Load not submitted: " + e.getMessage());
                 }
-                logger.info("Temporary files cleaned up.");
-            } catch (IOException e) {
-                // Logs the error and continues.
-                e.printStackTrace();
-                logger.warn("failed to clean up temp files: {}", e.getMessage(), e);
             }
+        } else if (loadMode == BatchUploadResult.LoadMode.COMBINED) {
+            combinedLoad = submitCombinedLoad(results, TableId.of(projectId, datasetName, tableName), typeOverrides);
         }
+        return new BatchUploadResult(results, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                combinedLoad);
+    }
+
+    /**
+     * Stores one file of a batch once an upload slot is free; never throws.
+     */
+    private BatchUploadResult.FileResult storeBatchFile(MultipartFile file, PipelineMetrics.Trace trace) {
+        long queued = System.nanoTime();
+        try {
+            batchSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            trace.fail(e);
+            return new BatchUploadResult.FileResult(file.getOriginalFilename(), null, file.getSize(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued), 0, "Interrupted");
+        }
+        long started = System.nanoTime();
+        try {
+            UploadSession session = store(file, trace);
+            return new BatchUploadResult.FileResult(session.getObjectName(), session, session.getSize(),
+                    TimeUnit.NANOSECONDS.toMillis(started - queued),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), null);
+        } catch (RuntimeException e) {
+            logger.error("Failed to store batch file {}: {}", file.getOriginalFilename(), e.getMessage(), e);
+            return new BatchUploadResult.FileResult(file.getOriginalFilename(), null, file.getSize(),
+                    TimeUnit.NANOSECONDS.toMillis(started - queued),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                    e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            batchSlots.release();
+        }
+    }
+
+    /**
+     * Loads every stored file of a batch with one multi-URI load job. Files
+     * whose header differs from the first stored file are left out and
+     * flagged in their result.
+     *
+     * @return the load, or {@code null} if no file was stored.
+     */
+    private LoadJobStatus submitCombinedLoad(List<BatchUploadResult.FileResult> results, TableId tableId,
+            Map<String, StandardSQLTypeName> typeOverrides) {
+        UploadSession first = null;
+        List<String> sourceUris = new ArrayList<>();
+        for (BatchUploadResult.FileResult result : results) {
+            if (!result.isStored()) {
+                continue;
+            }
+            if (first == null) {
+                first = result.session();
+            } else if (!first.getColumns().equals(result.getColumns())) {
+                result.setError("Header differs from the first file of the batch; left out of the combined load");
+                continue;
+            }
+            sourceUris.add("gs://" + bucketName + "/" + result.getFileName());
+        }
+        if (sourceUris.isEmpty()) {
+            return null;
+        }
+
+        // Every file shares the header; the types of the first one are used
+        Schema schema = sessionSchema(first, typeOverrides);
+        String source = sourceUris.size() == 1 ? sourceUris.get(0)
+                : sourceUris.get(0) + " (+" + (sourceUris.size() - 1) + " more)";
+        PipelineMetrics.Trace trace = metrics.trace("load", source);
+        return loadJobs.submit(source, tableId, trace, status -> {
+            LoadJobConfiguration loadConfig = LoadJobConfiguration.newBuilder(tableId, sourceUris)
+                    .setSchema(schema)
+                    .setFormatOptions(csvOptions())
+                    .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE)
+                    .build();
+
+            logger.info("Submitting BigQuery load job for {} from {} files", tableId.getTable(), sourceUris.size());
+            Job job = bigQuery.create(JobInfo.of(JobId.of(UUID.randomUUID().toString()), loadConfig));
+            return job.getJobId();
+        }, null);
+    }
+
+    /**
+     * Table name for a per-file load: the file name without extension,
+     * made a valid identifier, after the optional prefix.
+     */
+    private static String batchTableName(String prefix, String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String name = BigQueryColumnNames.normalize(List.of(base)).get(0);
+        return prefix == null || prefix.isBlank() ? name : prefix + "_" + name;
     }
 
  
+    /**
+     * Splits the uploaded CSV into shards while streaming it, uploads the
+     * shards in parallel and loads all of them with one wildcard load job.
+     *
+     * The shard size is the file size divided by the configured shard count,
+     * but never below the configured minimum, so small files stay in a single
+     * shard. Up to {@code storage.shard.parallelism} shards are written at the
+     * same time, records being dealt out to them in turn. A gzip or zstd
+     * upload is decoded while it is split; its size is the compressed one, so
+     * it yields more, smaller shards. Shards are written gzip-compressed
+     * unless {@code storage.compression.gzip} is off.
+     * The shards are temporary: they are deleted once the load finishes,
+     * successfully or not.
+     *
+     * @param file        the uploaded file recieved.
+     * @param datasetName target dataset.
+     * @param tableName   target table.
+     * @param typeOverrides column types forced by the caller, may be empty.
+     * @return handle of the queued load job.
+     * @throws StorageException if the file is empty or a shard upload fails.
+     */
     @Override
-    public void createOrReplaceBigQueryTable(String fileName, String datasetName, String tableName) {
+    public LoadJobStatus storeShardedAndLoad(MultipartFile file, String datasetName, String tableName,
+            Map<String, StandardSQLTypeName> typeOverrides) {
+        if (file.isEmpty()) {
+            throw new StorageException("failed to store empty file.");
+        }
+        String prefix = "sharded/" + UUID.randomUUID() + "/";
+        long shardSize = Math.max(minShardSize, file.getSize() / shardCount + 1);
+        int lanes = (int) Math.max(1, Math.min(shardParallelism, (file.getSize() + shardSize - 1) / shardSize));
+        logger.info("Sharding {} ({} bytes) into shards of ~{} bytes, {} at a time, under {}",
+                file.getOriginalFilename(), file.getSize(), shardSize, lanes, prefix);
+
+        // One trace follows the file from the request to the end of the load
+        PipelineMetrics.Trace trace = metrics.trace("ingest", file.getOriginalFilename());
+        ShardedCsvUploader.Result result;
+        try (InputStream in = Compression.decode(file.getInputStream());
+                PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.GCS_UPLOAD)) {
+            result = shardedUploader.upload(in, bucketName, prefix, shardSize, lanes);
+            span.bytes(result.getBytes());
+        } catch (IOException e) {
+            trace.fail(e);
+            logger.error("Error during the sharded upload:{} ", e.getMessage(), e);
+            throw new StorageException("Failed to upload file to GCS bucket", e);
+        } catch (RuntimeException e) {
+            trace.fail(e);
+            throw e;
+        }
+
+        TableId tableId = TableId.of(projectId, datasetName, tableName);
+
+        try {
+            return submitShardedLoad(result, tableId, trace, typeOverrides);
+        } catch (RuntimeException e) {
+            storage.delete(result.getShards());
+            throw e;
+        }
+    }
+
+    /**
+     * Queues the wildcard load of the shards of an upload, deleting them once
+     * it finishes.
+     */
+    private LoadJobStatus submitShardedLoad(ShardedCsvUploader.Result result, TableId tableId,
+            PipelineMetrics.Trace trace, Map<String, StandardSQLTypeName> typeOverrides) {
+        return loadJobs.submit(result.getWildcardUri(), tableId, trace, status -> {
+            status.updateProgress(0, result.getBytes());
+            // Infer the schema from the head of the file kept by the uploader
+            Schema schema;
+            try (PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.HEADER_PARSE)) {
+                CsvTokenizer tokenizer = new CsvTokenizer(new InputStreamReader(
+                        new ByteArrayInputStream(result.getHead()), StandardCharsets.UTF_8), csvDelimiter, true);
+                tokenizer.next();
+                List<String> headerColumns = tokenizer.cells();
+                SchemaInference.Sample sample = sampleOf(tokenizer, headerColumns.size());
+                schema = inferSchema(headerColumns, sample, typeOverrides);
+            }
+
+            LoadJobConfiguration loadConfig = LoadJobConfiguration.newBuilder(tableId, result.getWildcardUri())
+                    .setSchema(schema)
+                    .setFormatOptions(csvOptions())
+                    .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE)
+                    .build();
+
+            logger.info("Submitting BigQuery load job for {} from {} shards", tableId.getTable(),
+                    result.getShards().size());
+            Job job = bigQuery.create(JobInfo.of(JobId.of(UUID.randomUUID().toString()), loadConfig));
+            return job.getJobId();
+        }, () -> storage.delete(result.getShards()));
+    }
+
+    /**
+     * Creates or replaces a BigQuery table with every column of the uploaded
+     * file.
+     *
+     * The schema is built from the header and the column types recorded in the
+     * upload session, so nothing is read back from the object. The load job
+     * then reads the original object
+     * directly and skips its header row, so the data is neither downloaded nor
+     * rewritten. BigQuery reads a gzip object with a single worker and only up
+     * to 4 GB; larger files belong on the sharded endpoint. When the fast path
+     * is switched off, or rows are validated, the file is first streamed
+     * through {@link CsvProjectionEngine} into a temporary object. When
+     * {@code bigquery.load.format} is avro or parquet the file is always
+     * converted by {@link ColumnarConverter} and the typed file is loaded.
+     * Rows of a rewritten or converted file are validated and quarantined as
+     * in {@link #createOrReplaceBigQueryTableWithColumns}; only an unvalidated
+     * load takes the fast path.
+     *
+     * The work runs on the {@link LoadJobRegistry}; this method returns as soon
+     * as the load is queued.
+     *
+     * @param uploadId    id of the upload session of the file.
+     * @param datasetName target dataset.
+     * @param tableName   target table.
+     * @param typeOverrides column types forced by the caller, keyed by header
+     *                    or column name; may be empty.
+     * @param layout      partitioning and clustering of the table.
+     * @return handle of the queued load job.
+     * @throws StorageFileNotFoundException if the upload id is unknown.
+     * @throws IllegalArgumentException if the layout does not fit the columns.
+     * @throws StorageException if too many loads are already in progress.
+     */
+    @Override
+    public LoadJobStatus createOrReplaceBigQueryTable(String uploadId, String datasetName, String tableName,
+            Map<String, StandardSQLTypeName> typeOverrides, TableLayout layout) {
+        UploadSession session = getUploadSession(uploadId);
+        String fileName = session.getObjectName();
         String gcsFilePath = "gs://" + bucketName + "/" + fileName;
         logger.info("GCS File Path: {}", gcsFilePath);
         logger.info("Project ID = {}", projectId);
@@ -171,106 +1009,550 @@ public class FileSystemStorageService implements StorageService {
         TableId tableId = TableId.of(projectId, datasetName, tableName);
         logger.info("Table ID: = {}", tableId.toString());
 
-        // Read the file and extract the header to get the actual column names
-        final List<String> headerColumns = new ArrayList<>();
-        List<List<String>> rows = new ArrayList<>();
-        
-        // Use Google Cloud Storage client to read the file
-        Storage storage = StorageOptions.getDefaultInstance().getService();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                new ByteArrayInputStream(storage.readAllBytes(BlobId.of(bucketName, fileName))), StandardCharsets.UTF_8))) {
-            // Read the header to get the column names
-            String headerLine = br.readLine();
-            if (headerLine != null) {
-                headerColumns.addAll(Arrays.stream(headerLine.split(","))
-                        .map(String::trim)
-                        .map(String::toLowerCase)
-                        .collect(Collectors.toList()));
-                logger.info("Detected columns: {}", headerColumns);
-            } else {
-                throw new RuntimeException("File is empty or doesn't contain a header.");
-            }
+        // An identical load, done or still running, is answered from the ledger
+        layout.validate(session.getColumns(), sessionSchema(session, typeOverrides));
+        String ledgerKey = LoadLedger.key(session.getMd5(), null, typeOverrides, tableId, layout,
+                loadSettings());
+        LoadJobStatus previous = previousLoad(ledgerKey, tableId);
+        if (previous != null) {
+            return previous;
+        }
+
+        BlobId sourceBlobId = BlobId.of(bucketName, fileName);
+        // Rows can only be validated while the file is rewritten
+        BlobId rewrittenBlobId = loadFastPath && converter == null && !validateRows ? null
+                : BlobId.of(bucketName, tempObjectName("reordered-", converter != null));
 
-            // Read all rows to infer types
-            String line;
-            while ((line = br.readLine()) != null) {
-                List<String> row = Arrays.stream(line.split(","))
-                        .map(String::trim)
-                        .collect(Collectors.toList());
-                if (row.size() > 0) {
-                    rows.add(row);
-                } else {
-                    logger.warn("Skipping empty row");
+        PipelineMetrics.Trace trace = metrics.trace("load", gcsFilePath);
+        LoadJobStatus load = loadJobs.submit(gcsFilePath, tableId, trace, status -> {
+            checkGeneration(session);
+            List<String> headerColumns = session.getColumns();
+            Schema schema = sessionSchema(session, typeOverrides);
+            logger.info("Upload {} schema: {}", uploadId, schema);
+
+            // Load the original object as it is unless it has to be rewritten first
+            String sourceUri = gcsFilePath;
+            if (rewrittenBlobId != null) {
+                try (PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.REWRITE)) {
+                    CsvProjectionEngine.ProgressListener listener = (rows, bytesRead, bytesWritten) -> status
+                            .updateProgress(rows, bytesRead);
+                    BlobId quarantine = validateRows ? quarantineId(tableId) : null;
+                    CsvProjectionEngine.Result result = converter != null
+                            ? converter.convert(sourceBlobId, BlobInfo.newBuilder(rewrittenBlobId).build(),
+                                    headerColumns, schema, listener, validateRows, quarantine)
+                            : projectionEngine.project(sourceBlobId,
+                                    BlobInfo.newBuilder(rewrittenBlobId).setContentType("text/csv").build(),
+                                    headerColumns, listener, null, validateRows ? typesOf(schema) : null,
+                                    quarantine);
+                    span.bytes(result.getBytesWritten());
+                    span.rows(result.getRows());
+                    recordQuarantine(status, result);
                 }
+                sourceUri = "gs://" + bucketName + "/" + rewrittenBlobId.getName();
             }
-        } catch (IOException e) {
-            logger.error("Error reading file header: {}", e.getMessage(), e);
-            throw new RuntimeException("Error reading file header", e);
+
+            prepareTable(tableId, layout, headerColumns, schema);
+            LoadJobConfiguration loadConfig = layout.applyTo(
+                    withSourceFormat(LoadJobConfiguration.newBuilder(tableId, sourceUri), schema, converter != null),
+                    headerColumns, schema)
+                    .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE)
+                    .build();
+
+            logger.info("Submitting BigQuery load job for {} from {}", tableName, sourceUri);
+            Job job = bigQuery.create(JobInfo.of(JobId.of(UUID.randomUUID().toString()), loadConfig));
+            return job.getJobId();
+        }, rewrittenBlobId == null ? null : () -> storage.delete(rewrittenBlobId));
+        return rememberLoad(ledgerKey, load);
+    }
+
+    private String tempObjectName(String prefix, boolean converted) {
+        String extension = converted ? converter.getFormat().extension() : gzipStorage ? ".csv.gz" : ".csv";
+        return TEMP_PREFIX + prefix + UUID.randomUUID() + extension;
+    }
+
+    /**
+     * Sets the source format of a load from a temporary object: the typed
+     * Avro or Parquet of the converter, which carries its own schema, or CSV
+     * with the given schema.
+     */
+    private LoadJobConfiguration.Builder withSourceFormat(LoadJobConfiguration.Builder loadConfig, Schema schema,
+            boolean converted) {
+        if (converted) {
+            return loadConfig.setFormatOptions(converter.getFormat().formatOptions()).setUseAvroLogicalTypes(true);
         }
+        return loadConfig.setSchema(schema).setFormatOptions(csvOptions());
+    }
 
-        // Create a temporary CSV file with the reordered columns
-        Path tempFilePath;
-        try {
-            tempFilePath = Files.createTempFile("reordered-", ".csv");
-            try (BufferedWriter writer = Files.newBufferedWriter(tempFilePath, StandardCharsets.UTF_8)) {
-                // Write the header
-                writer.write(String.join(",", headerColumns));
-                writer.newLine();
-                // Write the rows
-                for (List<String> row : rows) {
-                    writer.write(String.join(",", row));
-                    writer.newLine();
+    /**
+     * Drops the target table when its partitioning or clustering differs from
+     * the requested layout, since a truncating load cannot change either.
+     */
+    private void prepareTable(TableId tableId, TableLayout layout, List<String> headerColumns, Schema schema) {
+        Table table = bigQuery.getTable(tableId);
+        if (table == null || !(table.getDefinition() instanceof StandardTableDefinition)) {
+            return;
+        }
+        if (!layout.matches((StandardTableDefinition) table.getDefinition(), headerColumns, schema)) {
+            logger.info("Dropping {}: its partitioning or clustering differs from {}", tableId, layout);
+            bigQuery.delete(tableId);
+        }
+    }
+
+    /**
+     * Builds the schema of a column selection from the types recorded in the
+     * upload session, with the caller's overrides applied on top.
+     */
+    private Schema selectedSchema(UploadSession session, List<String> selectedColumns,
+            Map<String, StandardSQLTypeName> typeOverrides) {
+        Schema full = sessionSchema(session, typeOverrides);
+        List<String> names = BigQueryColumnNames.normalize(selectedColumns);
+        List<Field> fields = new ArrayList<>(selectedColumns.size());
+        for (int i = 0; i < selectedColumns.size(); i++) {
+            int index = session.getColumns().indexOf(selectedColumns.get(i));
+            if (index < 0) {
+                throw new StorageException("Selected column '" + selectedColumns.get(i)
+                        + "' is not present in the file header " + session.getColumns());
+            }
+            StandardSQLTypeName type = typeOverrides != null && typeOverrides.containsKey(names.get(i))
+                    ? typeOverrides.get(names.get(i))
+                    : full.getFields().get(index).getType().getStandardType();
+            fields.add(Field.of(names.get(i), type));
+        }
+        return Schema.of(fields);
+    }
+
+    /**
+     * CSV options shared by every load: one header row, the configured
+     * delimiter and quoted line breaks allowed.
+     */
+    private CsvOptions csvOptions() {
+        return CsvOptions.newBuilder()
+                .setSkipLeadingRows(1)
+                .setFieldDelimiter(String.valueOf(csvDelimiter))
+                .setAllowQuotedNewLines(true)
+                .build();
+    }
+
+    /**
+     * Builds the load schema: normalized column names, with types inferred
+     * from the sample (all STRING without one) unless overridden.
+     *
+     * @param headerColumns raw header cells.
+     * @param sample        sampled values of those columns, may be
+     *                      {@code null}.
+     * @param typeOverrides types keyed by raw header or normalized name.
+     */
+    private Schema inferSchema(List<String> headerColumns, SchemaInference.Sample sample,
+            Map<String, StandardSQLTypeName> typeOverrides) {
+        List<String> columnNames = BigQueryColumnNames.normalize(headerColumns);
+        Map<String, StandardSQLTypeName> overrides = new HashMap<>();
+        if (typeOverrides != null) {
+            for (int i = 0; i < columnNames.size(); i++) {
+                StandardSQLTypeName type = typeOverrides.getOrDefault(headerColumns.get(i),
+                        typeOverrides.get(columnNames.get(i)));
+                if (type != null) {
+                    overrides.put(columnNames.get(i), type);
                 }
             }
-        } catch (IOException e) {
-            logger.error("Error creating temporary file: {}", e.getMessage(), e);
-            throw new RuntimeException("Error creating temporary file", e);
         }
+        return schemaInference.inferSchema(columnNames, inferenceEnabled ? sample : null, overrides);
+    }
 
-        // Upload the temporary file to GCS
-        String tempGcsFilePath = "gs://" + bucketName + "/" + tempFilePath.getFileName().toString();
-        try {
-            BlobId blobId = BlobId.of(bucketName, tempFilePath.getFileName().toString());
-            BlobInfo blobInfo = BlobInfo.newBuilder(blobId).build();
-            storage.create(blobInfo, Files.readAllBytes(tempFilePath));
-        } catch (IOException e) {
-            logger.error("Error uploading temporary file to GCS: {}", e.getMessage(), e);
-            throw new RuntimeException("Error uploading temporary file to GCS", e);
+    /**
+     * Samples the records following the header from a tokenizer.
+     */
+    private SchemaInference.Sample sampleOf(CsvTokenizer tokenizer, int columnCount) throws IOException {
+        SchemaInference.Sample sample = schemaInference.newSample(columnCount);
+        while (!sample.isFull() && tokenizer.next()) {
+            // The last record of a partial block may be cut short.
+            if (tokenizer.isTerminated() && !tokenizer.isBlank()) {
+                sample.add(tokenizer);
+            }
         }
+        return sample;
+    }
 
-        // Create the BigQuery table with the reordered columns
-        Schema schema = Schema.of(headerColumns.stream()
-                .map(column -> Field.of(column, StandardSQLTypeName.STRING))
-                .collect(Collectors.toList()));
+    /**
+     * Creates or replaces a BigQuery table holding only the selected columns of
+     * the uploaded file.
+     *
+     * The source object is streamed through {@link CsvProjectionEngine} into a
+     * temporary GCS object, which is loaded and then removed. The file is never
+     * held in memory, so there is no limit on the number of rows.
+     *
+     * With {@code bigquery.validation.enabled}, each row is checked during the
+     * projection against the column types of the upload session; rows with
+     * the wrong column count, a value of the wrong type or invalid UTF-8 are
+     * written to a quarantine object with their line number and reason, and
+     * only clean rows are loaded. The job status reports the quarantined rows
+     * and where they are. Without validation, the column types are inferred
+     * from the first projected rows and any bad row fails the load.
+     *
+     * The work runs on the {@link LoadJobRegistry}; this method returns as soon
+     * as the load is queued.
+     *
+     * @param uploadId        id of the upload session of the file.
+     * @param datasetName     target dataset.
+     * @param tableName       target table.
+     * @param selectedColumns header names to keep, in table column order.
+     * @param typeOverrides   column types forced by the caller, keyed by
+     *                        header or column name; may be empty.
+     * @param layout          partitioning and clustering of the table, on
+     *                        selected columns.
+     * @return handle of the queued load job.
+     * @throws StorageFileNotFoundException if the upload id is unknown.
+     * @throws IllegalArgumentException if the layout does not fit the selected
+     *                                  columns.
+     * @throws StorageException if too many loads are already in progress.
+     */
+    @Override
+    public LoadJobStatus createOrReplaceBigQueryTableWithColumns(String uploadId, String datasetName,
+            String tableName, List<String> selectedColumns, Map<String, StandardSQLTypeName> typeOverrides,
+            TableLayout layout) {
+        UploadSession session = getUploadSession(uploadId);
+        String fileName = session.getObjectName();
+        String gcsFilePath = "gs://" + bucketName + "/" + fileName;
+        logger.info("GCS File Path: {}", gcsFilePath);
+        logger.info("Project ID = {}", projectId);
 
-        LoadJobConfiguration loadConfig = LoadJobConfiguration.builder(tableId, tempGcsFilePath)
-                .setSchema(schema)
-                .setSourceFormat(FormatOptions.csv())
-                .setSkipLeadingRows(1)
-                .build();
+        TableId tableId = TableId.of(projectId, datasetName, tableName);
+        logger.info("Table ID: = {}", tableId.toString());
+
+        // An identical load, done or still running, is answered from the ledger
+        layout.validate(selectedColumns, selectedSchema(session, selectedColumns, typeOverrides));
+        String ledgerKey = LoadLedger.key(session.getMd5(), selectedColumns, typeOverrides, tableId, layout,
+                loadSettings());
+        LoadJobStatus previous = previousLoad(ledgerKey, tableId);
+        if (previous != null) {
+            return previous;
+        }
+
+        // Stream the selected columns into a temporary object next to the source
+        BlobId projectedBlobId = BlobId.of(bucketName, tempObjectName("projected-", converter != null));
+
+        PipelineMetrics.Trace trace = metrics.trace("load", gcsFilePath);
+        LoadJobStatus load = loadJobs.submit(gcsFilePath, tableId, trace, status -> {
+            checkGeneration(session);
+            // Typed output and validated rows need the schema up front; otherwise CSV is typed from its first rows
+            Schema schema = converter != null || validateRows
+                    ? selectedSchema(session, selectedColumns, typeOverrides)
+                    : null;
+            SchemaInference.Sample sample = schemaInference.newSample(selectedColumns.size());
+            BlobId quarantine = validateRows ? quarantineId(tableId) : null;
+            CsvProjectionEngine.Result result;
+            try (PipelineMetrics.Span span = trace.stage(PipelineMetrics.Stage.REWRITE)) {
+                CsvProjectionEngine.ProgressListener listener = (rows, bytesRead, bytesWritten) -> status
+                        .updateProgress(rows, bytesRead);
+                result = converter != null
+                        ? converter.convert(BlobId.of(bucketName, fileName),
+                                BlobInfo.newBuilder(projectedBlobId).build(), selectedColumns, schema, listener,
+                                validateRows, quarantine)
+                        : projectionEngine.project(BlobId.of(bucketName, fileName),
+                                BlobInfo.newBuilder(projectedBlobId).setContentType("text/csv").build(),
+                                selectedColumns, listener, sample, validateRows ? typesOf(schema) : null,
+                                quarantine);
+                span.bytes(result.getBytesWritten());
+                span.rows(result.getRows());
+                recordQuarantine(status, result);
+            }
+            logger.info("Projected {} rows of {} into {}", result.getRows(), gcsFilePath, projectedBlobId);
+
+            // Map the schema to the selected columns, typed from the first projected rows
+            if (schema == null) {
+                schema = inferSchema(result.getColumns(), sample, typeOverrides);
+            }
+            logger.info("Schema: {}", schema);
+
+            // Now proceed to load the projected data into BigQuery
+            logger.info("Submitting BigQuery job for table creation with selected columns: {}", tableName);
+            return submitProjectedLoad(tableId, projectedBlobId, result.getColumns(), schema, layout,
+                    converter != null);
+        }, () -> storage.delete(projectedBlobId));
+        return rememberLoad(ledgerKey, load);
+    }
+
+    /**
+     * Creates every table of {@code tables} from one upload, each from its own
+     * column subset. The upload is read and parsed once: every row is routed
+     * to one projection per table, the projections are written to GCS in
+     * parallel, then one load job per table is submitted.
+     *
+     * Each table gets its own handle on the {@link LoadJobRegistry}, but only
+     * the first load is queued: it runs the shared projection, and the others
+     * are queued once the projection is written, so they hold neither a
+     * worker nor a load slot while it runs. Each handle reports the rows and
+     * bytes projected for its own table.
+     * Tables whose identical load is in the ledger are left out of the
+     * projection and answered from it.
+     *
+     * Projections are always CSV, gzip-compressed when storage is, even when
+     * a columnar format is configured for single loads. Rows are validated
+     * per table, each with its own quarantine object.
+     *
+     * @param uploadId      id of the upload session of the file.
+     * @param tables        tables to create and the columns each keeps.
+     * @param typeOverrides column types forced by the caller, keyed by header
+     *                      or column name; may be empty.
+     * @return handles of the queued load jobs, in {@code tables} order.
+     * @throws StorageFileNotFoundException if the upload id is unknown.
+     * @throws IllegalArgumentException if there are no or too many tables, or
+     *                                  a layout does not fit its columns.
+     * @throws StorageException if too many loads are already in progress.
+     */
+    @Override
+    public List<LoadJobStatus> createOrReplaceBigQueryTables(String uploadId, List<TableSpec> tables,
+            Map<String, StandardSQLTypeName> typeOverrides) {
+        if (tables.isEmpty() || tables.size() > maxFanOutTables) {
+            throw new IllegalArgumentException("Between 1 and " + maxFanOutTables
+                    + " tables can be created at once, got " + tables.size());
+        }
+        UploadSession session = getUploadSession(uploadId);
+        String fileName = session.getObjectName();
+        String gcsFilePath = "gs://" + bucketName + "/" + fileName;
+        logger.info("Creating {} tables from {}", tables.size(), gcsFilePath);
 
+        // Validate every table before anything is queued, and answer identical loads from the ledger
+        List<LoadJobStatus> loads = new ArrayList<>(tables.size());
+        List<String> ledgerKeys = new ArrayList<>(tables.size());
+        List<Integer> pending = new ArrayList<>();
+        List<CsvProjectionEngine.Target> targets = new ArrayList<>();
+        for (int i = 0; i < tables.size(); i++) {
+            TableSpec spec = tables.get(i);
+            TableId tableId = TableId.of(projectId, spec.getDatasetName(), spec.getTableName());
+            spec.getLayout().validate(spec.getSelectedColumns(),
+                    selectedSchema(session, spec.getSelectedColumns(), typeOverrides));
+            String ledgerKey = LoadLedger.key(session.getMd5(), spec.getSelectedColumns(), typeOverrides, tableId,
+                    spec.getLayout(), loadSettings());
+            LoadJobStatus previous = previousLoad(ledgerKey, tableId);
+            loads.add(previous);
+            ledgerKeys.add(ledgerKey);
+            if (previous == null) {
+                pending.add(i);
+                BlobId projectedBlobId = BlobId.of(bucketName, tempObjectName("projected-", false));
+                // Validated rows are checked against the upload types; otherwise each table is typed from its rows
+                targets.add(new CsvProjectionEngine.Target(
+                        BlobInfo.newBuilder(projectedBlobId).setContentType("text/csv").build(),
+                        spec.getSelectedColumns(),
+                        validateRows ? null : schemaInference.newSample(spec.getSelectedColumns().size()),
+                        validateRows ? typesOf(selectedSchema(session, spec.getSelectedColumns(), typeOverrides))
+                                : null,
+                        validateRows ? quarantineId(tableId) : null));
+            }
+        }
+        if (targets.isEmpty()) {
+            return loads;
+        }
+
+        // Every table gets its handle now, but only the first is queued: it runs the single read of the source
+        List<LoadJobStatus> registered = new ArrayList<>(targets.size());
+        List<PipelineMetrics.Trace> traces = new ArrayList<>(targets.size());
+        CompletableFuture<List<CsvProjectionEngine.Result>> projection = new CompletableFuture<>();
         try {
-            JobId jobId = JobId.of(UUID.randomUUID().toString());
-            Job job = bigQuery.create(JobInfo.of(jobId, loadConfig));
-            job = job.waitFor();
-            if (job.isDone()) {
-                logger.info("Table created/replaced successfully with columns: {}.{}.{}", projectId,
-                        datasetName, tableName);
-            } else {
-                throw new RuntimeException("BigQuery create table job failed: " + job.getStatus().getError());
+            for (int k = 0; k < targets.size(); k++) {
+                TableSpec spec = tables.get(pending.get(k));
+                BlobId projectedBlobId = targets.get(k).getBlobInfo().getBlobId();
+                TableId tableId = TableId.of(projectId, spec.getDatasetName(), spec.getTableName());
+                PipelineMetrics.Trace trace = metrics.trace("load", gcsFilePath);
+                LoadJobStatus load = loadJobs.register(gcsFilePath, tableId, trace,
+                        () -> storage.delete(projectedBlobId));
+                registered.add(load);
+                traces.add(trace);
+                loads.set(pending.get(k), rememberLoad(ledgerKeys.get(pending.get(k)), load));
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("BigQuery job was interrupted", e);
-        } finally {
-            // Clean up the temporary file
+        } catch (RuntimeException e) {
+            // Loads already registered fail instead of projecting for tables that were never registered
+            projection.completeExceptionally(e);
+            for (int k = 0; k < registered.size(); k++) {
+                loadJobs.start(registered.get(k), fanOutLoad(session, tables.get(pending.get(k)), targets.get(k),
+                        typeOverrides, projection, k, traces.get(k)));
+            }
+            throw e;
+        }
+
+        // The other loads are queued once the projection is written, so none holds a worker or slot meanwhile
+        for (int k = 1; k < registered.size(); k++) {
+            LoadJobStatus load = registered.get(k);
+            LoadJobRegistry.LoadTask task = fanOutLoad(session, tables.get(pending.get(k)), targets.get(k),
+                    typeOverrides, projection, k, traces.get(k));
+            projection.whenComplete((results, error) -> loadJobs.start(load, task));
+        }
+        List<CsvProjectionEngine.ProgressListener> listeners = new ArrayList<>(registered.size());
+        for (LoadJobStatus load : registered) {
+            listeners.add((rows, bytesRead, bytesWritten) -> load.updateProgress(rows, bytesWritten));
+        }
+
+        PipelineMetrics.Trace trace = traces.get(0);
+        LoadJobRegistry.LoadTask first = fanOutLoad(session, tables.get(pending.get(0)), targets.get(0),
+                typeOverrides, projection, 0, trace);
+        loadJobs.start(registered.get(0), status -> {
+            long started = System.nanoTime();
             try {
-                Files.deleteIfExists(tempFilePath);
-            } catch (IOException e) {
-                logger.warn("Failed to delete temporary file: {}", tempFilePath, e);
+                checkGeneration(session);
+                projection.complete(projectionEngine.projectAll(BlobId.of(bucketName, fileName), targets,
+                        listeners));
+            } catch (Exception e) {
+                projection.completeExceptionally(e);
             }
+            trace.record(PipelineMetrics.Stage.REWRITE, System.nanoTime() - started);
+            return first.start(status);
+        });
+        return loads;
+    }
+
+    /**
+     * Load of one table of a fan-out, once the shared projection is written:
+     * reports what was projected for the table, then submits its load.
+     *
+     * @param index position of the table among the projection targets.
+     */
+    private LoadJobRegistry.LoadTask fanOutLoad(UploadSession session, TableSpec spec,
+            CsvProjectionEngine.Target target, Map<String, StandardSQLTypeName> typeOverrides,
+            CompletableFuture<List<CsvProjectionEngine.Result>> projection, int index, PipelineMetrics.Trace trace) {
+        return status -> {
+            CsvProjectionEngine.Result result;
+            try {
+                result = projection.get().get(index);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            trace.rows(PipelineMetrics.Stage.REWRITE, result.getRows());
+            status.updateProgress(result.getRows(), result.getBytesWritten());
+            recordQuarantine(status, result);
+            BlobId projectedBlobId = target.getBlobInfo().getBlobId();
+            TableId tableId = TableId.of(projectId, spec.getDatasetName(), spec.getTableName());
+            logger.info("Projected {} rows of {} into {}", result.getRows(), session.getObjectName(),
+                    projectedBlobId);
+
+            Schema schema = validateRows
+                    ? selectedSchema(session, spec.getSelectedColumns(), typeOverrides)
+                    : inferSchema(result.getColumns(), target.getSample(), typeOverrides);
+            logger.info("Schema of {}: {}", tableId, schema);
+            return submitProjectedLoad(tableId, projectedBlobId, result.getColumns(), schema, spec.getLayout(),
+                    false);
+        };
+    }
+
+    /**
+     * Object the rows of a load into {@code tableId} that fail validation are
+     * written to; only created if a row fails.
+     */
+    private BlobId quarantineId(TableId tableId) {
+        return BlobId.of(bucketName, quarantinePrefix + tableId.getDataset() + "/" + tableId.getTable() + "-"
+                + UUID.randomUUID() + ".csv");
+    }
+
+    private static List<StandardSQLTypeName> typesOf(Schema schema) {
+        List<StandardSQLTypeName> types = new ArrayList<>(schema.getFields().size());
+        for (Field field : schema.getFields()) {
+            types.add(field.getType().getStandardType());
+        }
+        return types;
+    }
+
+    /**
+     * Reports the rows a projection set aside on the load status and in the
+     * metrics.
+     */
+    private void recordQuarantine(LoadJobStatus status, CsvProjectionEngine.Result result) {
+        if (result.getRejectedRows() == 0) {
+            return;
+        }
+        BlobId quarantine = result.getQuarantine();
+        status.quarantined(result.getRejectedRows(),
+                quarantine == null ? null : "gs://" + quarantine.getBucket() + "/" + quarantine.getName(),
+                result.getRejectedByCheck());
+        result.getRejectedByCheck().forEach(metrics::quarantined);
+        logger.warn("{} rows of {} were quarantined to {}: {}", result.getRejectedRows(), status.getSource(),
+                status.getQuarantineUri(), result.getRejectedByCheck());
+    }
+
+    /**
+     * Drops a table whose layout differs and submits the load of a projected
+     * object into it.
+     *
+     * @param converted whether the object was written by the converter rather
+     *                  than as CSV.
+     * @return id of the submitted BigQuery job.
+     */
+    private JobId submitProjectedLoad(TableId tableId, BlobId projectedBlobId, List<String> columns, Schema schema,
+            TableLayout layout, boolean converted) {
+        prepareTable(tableId, layout, columns, schema);
+        LoadJobConfiguration loadConfig = layout.applyTo(withSourceFormat(LoadJobConfiguration
+                .newBuilder(tableId, "gs://" + bucketName + "/" + projectedBlobId.getName()), schema, converted),
+                columns, schema)
+                .setWriteDisposition(JobInfo.WriteDisposition.WRITE_TRUNCATE)
+                .build();
+
+        Job job = bigQuery.create(JobInfo.of(JobId.of(UUID.randomUUID().toString()), loadConfig));
+        return job.getJobId();
+    }
+
+    /**
+     * Appends an upload to a table through the micro-batcher: the file joins
+     * the open batch of the table, which is loaded with one
+     * {@code WRITE_APPEND} job once full or when its time window ends.
+     *
+     * The file is loaded as stored, with no rewrite; its columns must match
+     * those of the table, when it exists, by name and in order.
+     *
+     * @param uploadId      id of the upload session of the file.
+     * @param datasetName   target dataset.
+     * @param tableName     target table, created by the first load if needed.
+     * @param typeOverrides column types forced by the caller, keyed by header
+     *                      or column name; may be empty.
+     * @return the batch the file joined.
+     * @throws StorageFileNotFoundException if the upload id is unknown.
+     * @throws IllegalArgumentException if the file does not fit the table.
+     */
+    @Override
+    public AppendBatcher.Batch appendToBigQueryTable(String uploadId, String datasetName, String tableName,
+            Map<String, StandardSQLTypeName> typeOverrides) {
+        UploadSession session = getUploadSession(uploadId);
+        checkGeneration(session);
+        TableId tableId = TableId.of(projectId, datasetName, tableName);
+        return appendBatcher.append(tableId, uploadId, "gs://" + bucketName + "/" + session.getObjectName(),
+                session.getSize(), sessionSchema(session, typeOverrides));
+    }
+
+    /**
+     * Loads open append batches now instead of at the end of their window.
+     *
+     * @param datasetName dataset of the table, or {@code null} with
+     *                    {@code tableName} to flush every table.
+     * @param tableName   table whose batch is flushed, may be {@code null}.
+     * @return the batches flushed.
+     */
+    @Override
+    public List<AppendBatcher.Batch> flushAppends(String datasetName, String tableName) {
+        return appendBatcher.flush(tableName == null ? null : TableId.of(projectId, datasetName, tableName));
+    }
+
+    /**
+     * @param batchId id returned by {@link #appendToBigQueryTable}.
+     * @throws StorageFileNotFoundException if the id is unknown or evicted.
+     */
+    @Override
+    public AppendBatcher.Batch getAppendBatch(String batchId) {
+        AppendBatcher.Batch batch = appendBatcher.get(batchId);
+        if (batch == null) {
+            throw new StorageFileNotFoundException("Unknown or expired append batch: " + batchId);
         }
+        return batch;
     }
-    
+
+    /**
+     * Returns the status of a load submitted by one of the create-table
+     * methods.
+     *
+     * @param jobId id of the load job handle.
+     * @return the job status, or {@code null} if it is unknown or has been
+     *         evicted from the registry.
+     */
+    @Override
+    public LoadJobStatus getLoadJob(String jobId) {
+        return loadJobs.get(jobId);
+    }
+
     /**
      * Initializes the Storage Service.
      * this is placeholder to indicate initialization.
@@ -280,16 +1562,38 @@ public class FileSystemStorageService implements StorageService {
         logger.info("GCS Storage bucket initializad.");
     }
 
+    /**
+     * Takes the first bucket listing in the background once the application
+     * is ready, so no request waits for it.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void listBucket() {
+        bucketIndex.refreshInBackground();
+    }
+
  
     /**
-     * Unsporrted operation: Loading a file from GCS is not implemented.
+     * Stops the load job workers, the status poller, the shard uploaders and
+     * the append window timer.
+     */
+    @PreDestroy
+    public void shutdown() {
+        appendBatcher.shutdown();
+        loadJobs.shutdown();
+        shardUploads.shutdownNow();
+        batchUploads.shutdownNow();
+    }
+
+ 
+    /**
+     * Path of an object of the bucket, for the {@code java.nio.file} API.
      *
-     * @param filename the name of file of load.
-     * @throws UnsupportedOperationException when invoked.
+     * @param filename name of the object.
+     * @return a {@code gs://} path, whether or not the object exists.
      */
     @Override
     public Path load(String filename) {
-        throw new UnsupportedOperationException("load operation is not supported for gcs.");
+        return bucketFileSystem.get().getPath(filename);
     }
 
  
@@ -303,33 +1607,33 @@ public class FileSystemStorageService implements StorageService {
 
  
     /**
-     * Loads all files in a temporary directory.
+     * Lists a page of the uploaded objects of the bucket from the cached
+     * listing, without a request to GCS unless the listing was never taken.
      *
-     * @throws StorageException if reading files fails.
+     * @param prefix    object name prefix, may be {@code null} for all.
+     * @param pageToken token of the previous page, {@code null} for the first.
+     * @param pageSize  most objects returned.
+     * @return the page, in object name order.
      */
     @Override
-    public Stream<Path> loadAll() {
-        try {
-            // Use the systems's temp directory
-            Path tempDir = Paths.get(System.getProperty("java.io.tmpdir"));
-            return Files.walk(tempDir, 1).filter(path -> !path.equals(tempDir))
-                    .map(Path::normalize);
-        } catch (IOException e) {
-            throw new StorageException("Failed to read stored files", e);
-        }
-
- 
+    public BucketIndex.Page loadAll(String prefix, String pageToken, int pageSize) {
+        return bucketIndex.page(prefix, pageToken, pageSize);
     }
 
  
     /**
-     * Unsporrted operation: Loading a file as a resource.
+     * Serves an object as a resource streamed from GCS, with seekable reads
+     * so range requests only download the requested bytes.
      *
-     * @param filename the name of file of load.
-     * @throws UnsupportedOperationException when invoked.
+     * @param filename name of the object.
+     * @throws StorageFileNotFoundException if the object does not exist.
      */
     @Override
     public Resource loadAsResource(String filename) {
-        throw new UnsupportedOperationException("LoadasResource operation is not supported.");
+        Blob blob = storage.get(BlobId.of(bucketName, filename));
+        if (blob == null) {
+            throw new StorageFileNotFoundException("Could not read file: " + filename);
+        }
+        return new GcsResource(storage, blob);
     }
 }
\ No newline at end of file
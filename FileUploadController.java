@@ -1,13 +1,19 @@
 package com.cvs.anbc.ahreports.controller;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -15,88 +21,340 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
-import org.springframework.web.servlet.mvc.method.annotation.MvcUriComponentsBuilder;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
 import com.cvs.anbc.ahreports.exceptions.StorageFileNotFoundException;
+import com.cvs.anbc.ahreports.storage.AppendBatcher;
+import com.cvs.anbc.ahreports.storage.BatchUploadResult;
+import com.cvs.anbc.ahreports.storage.BucketIndex;
+import com.cvs.anbc.ahreports.storage.GcsResource;
+import com.cvs.anbc.ahreports.storage.LoadJobStatus;
 import com.cvs.anbc.ahreports.storage.StorageService;
+import com.cvs.anbc.ahreports.storage.TableLayout;
+import com.cvs.anbc.ahreports.storage.TableSpec;
+import com.cvs.anbc.ahreports.storage.UploadAdmission;
+import com.cvs.anbc.ahreports.storage.UploadSession;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.TimePartitioning;
+
+import jakarta.servlet.http.HttpServletRequest;
 
 @Controller
 public class FileUploadController {
 
     private static final Logger logger = LoggerFactory.getLogger(FileUploadController.class);
+    private static final int MAX_PAGE_SIZE = 1000; // Most files listed per page
     private final StorageService storageService;
-    private String uploadedFileName;
+    private final UploadAdmission uploadAdmission;
 
-    public FileUploadController(StorageService storageService) {
+    public FileUploadController(StorageService storageService, UploadAdmission uploadAdmission) {
         this.storageService = storageService;
+        this.uploadAdmission = uploadAdmission;
     }
 
-    // Displays uploaded files list
+    // Displays a page of the uploaded files list, optionally under a name prefix
     @GetMapping("/")
-    public String listUploadedFiles(Model model) throws IOException {
-        model.addAttribute("files", storageService.loadAll().map(
-                path -> MvcUriComponentsBuilder.fromMethodName(FileUploadController.class,
-                        "serveFile", path.getFileName().toString()).build().toUri().toString())
+    public String listUploadedFiles(@RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "pageToken", required = false) String pageToken,
+            @RequestParam(value = "pageSize", defaultValue = "100") int pageSize,
+            Model model) throws IOException {
+        BucketIndex.Page page = storageService.loadAll(prefix, pageToken,
+                Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE)));
+        model.addAttribute("files", page.getEntries().stream().map(
+                entry -> ServletUriComponentsBuilder.fromCurrentContextPath().path("/files/")
+                        .path(entry.getName()).build().encode().toUriString())
                 .collect(Collectors.toList()));
+        model.addAttribute("prefix", prefix);
+        model.addAttribute("nextPageToken", page.getNextPageToken());
+        model.addAttribute("listingTruncated", page.isTruncated());
 
         return "uploadForm";
     }
 
-    // Serves uploaded files
-    @GetMapping("/files/{filename:.+}")
+    // Serves uploaded files streamed from the bucket; Range requests are answered with partial content
+    @GetMapping("/files/{*filename}")
     @ResponseBody
     public ResponseEntity<Resource> serveFile(@PathVariable String filename) {
-        Resource file = storageService.loadAsResource(filename);
+        if (filename.length() <= 1)
+            return ResponseEntity.notFound().build();
+
+        Resource file = storageService.loadAsResource(filename.substring(1));
         if (file == null)
             return ResponseEntity.notFound().build();
 
-        return ResponseEntity.ok().header(HttpHeaders.CONTENT_DISPOSITION,
-                "attachment; filename=\"" + file.getFilename() + "\"").body(file);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().header(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + file.getFilename() + "\"");
+        if (file instanceof GcsResource object) {
+            if (object.getContentType() != null)
+                response.header(HttpHeaders.CONTENT_TYPE, object.getContentType());
+            if (object.getContentEncoding() != null)
+                response.header(HttpHeaders.CONTENT_ENCODING, object.getContentEncoding());
+        }
+        return response.body(file);
     }
 
-    // Handles file upload
+    // Handles file upload, answering with the header columns for the column selection UI
     @PostMapping("/")
-    public String handleFileUpload(@RequestParam("file") MultipartFile file,
-            RedirectAttributes redirectAttributes) {
+    @ResponseBody
+    public ResponseEntity<?> handleFileUpload(@RequestParam("file") MultipartFile file) {
         logger.info("Received file upload request. File name: {}, Size: {} bytes",
                 file.getOriginalFilename(), file.getSize());
         try {
-            storageService.store(file);
-            uploadedFileName = file.getOriginalFilename();
-            List<String> columnNames = storageService.getColumnsFromFile(file);
-            logger.info("File: {} uploaded successfully.", file.getOriginalFilename());
-            redirectAttributes.addFlashAttribute("columns", columnNames);
-            redirectAttributes.addFlashAttribute("message",
-                    "You successfully uploaded " + file.getOriginalFilename() + "!");
+            UploadSession session = storageService.store(file);
+            logger.info("File: {} uploaded successfully as upload {}.", file.getOriginalFilename(), session.getId());
+            return ResponseEntity.ok(uploadBody(session, file.getOriginalFilename()));
         } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("Failed to upload file: {}", file.getOriginalFilename(), e.getMessage());
-            redirectAttributes.addFlashAttribute("message",
-                    "Failed to upload file: " + e.getMessage());
+            logger.error("Failed to upload file: {}", file.getOriginalFilename(), e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
         }
-        return "redirect:/";
+    }
+
+    // Raw request body streamed into GCS as it arrives, for files too large for multipart; may be chunked
+    @PutMapping("/upload-stream/{filename:.+}")
+    @ResponseBody
+    public ResponseEntity<?> handleStreamingUpload(@PathVariable String filename, HttpServletRequest request) {
+        logger.info("Received streaming upload request. File name: {}, Size: {} bytes", filename,
+                request.getContentLengthLong());
+        try {
+            UploadSession session = storageService.storeStream(filename, request.getInputStream(),
+                    request.getContentLengthLong(), uploadAdmission.getMaxStreamBytes());
+            logger.info("File: {} streamed successfully as upload {}.", filename, session.getId());
+            return ResponseEntity.ok(uploadBody(session, filename));
+        } catch (MaxUploadSizeExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to stream file: {}", filename, e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+    }
+
+    // Upload session: object, header and inferred types of an upload
+    @GetMapping("/uploads/{id}")
+    @ResponseBody
+    public ResponseEntity<UploadSession> getUploadSession(@PathVariable String id) {
+        return ResponseEntity.ok(storageService.getUploadSession(id));
+    }
+
+    // Header columns of an uploaded file, read from its metadata or a ranged read
+    @GetMapping("/columns/{filename:.+}")
+    @ResponseBody
+    public ResponseEntity<List<String>> getColumns(@PathVariable String filename) {
+        return ResponseEntity.ok(storageService.getColumnsFromFile(filename));
     }
 
     // BigQuery Table Creation Handler
     @PostMapping("/create-table")
-    public String createBigQueryTable(@RequestParam("dataset") String datasetName,
+    public String createBigQueryTable(@RequestParam("uploadId") String uploadId,
+            @RequestParam("dataset") String datasetName,
             @RequestParam("table") String tableName,
+            @RequestParam(value = "columns", required = false) List<String> selectedColumns,
+            @RequestParam(value = "types", required = false) List<String> types,
+            @RequestParam(value = "partitionColumn", required = false) String partitionColumn,
+            @RequestParam(value = "partitionType", required = false) String partitionType,
+            @RequestParam(value = "rangeStart", required = false) Long rangeStart,
+            @RequestParam(value = "rangeEnd", required = false) Long rangeEnd,
+            @RequestParam(value = "rangeInterval", required = false) Long rangeInterval,
+            @RequestParam(value = "clusterBy", required = false) List<String> clusterBy,
+            @RequestParam(value = "partitionExpirationDays", required = false) Long partitionExpirationDays,
             RedirectAttributes redirectAttributes) {
         try {
-            storageService.createOrReplaceBigQueryTable(uploadedFileName, datasetName, tableName);
-            redirectAttributes.addFlashAttribute("message", "Table created with all columns");
-            redirectAttributes.addFlashAttribute("message", "Table created successfully.");
+            LoadJobStatus job;
+            Map<String, StandardSQLTypeName> typeOverrides = parseTypeOverrides(types);
+            TableLayout layout = parseLayout(partitionColumn, partitionType, rangeStart, rangeEnd, rangeInterval,
+                    clusterBy, partitionExpirationDays);
+            if (selectedColumns == null || selectedColumns.isEmpty()) {
+                job = storageService.createOrReplaceBigQueryTable(uploadId, datasetName, tableName, typeOverrides,
+                        layout);
+            } else {
+                job = storageService.createOrReplaceBigQueryTableWithColumns(uploadId, datasetName,
+                        tableName, selectedColumns, typeOverrides, layout);
+            }
+            redirectAttributes.addFlashAttribute("jobId", job.getId());
+            redirectAttributes.addFlashAttribute("message",
+                    "Table load submitted. Track it at /jobs/" + job.getId());
+        } catch (IllegalArgumentException e) {
+            // A layout or types the selected columns cannot take, e.g. partitioning on a column left out
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Failed to create table {}.{}", datasetName, tableName, e);
             redirectAttributes.addFlashAttribute("message", "Failed to create table: " + e.getMessage());
         }
         return "redirect:/";
     }
 
+    // Several tables from one upload, each with its own columns, in a single read of the file
+    @PostMapping("/create-tables")
+    @ResponseBody
+    public ResponseEntity<?> createBigQueryTables(@RequestBody CreateTablesRequest request) {
+        if (request.getUploadId() == null || request.getTables() == null)
+            return ResponseEntity.badRequest().body("An upload id and a list of tables are required.");
+        try {
+            List<TableSpec> tables = new ArrayList<>();
+            for (CreateTablesRequest.Table table : request.getTables()) {
+                tables.add(new TableSpec(table.getDataset(), table.getTable(), table.getColumns(),
+                        parseLayout(table.getPartitionColumn(), table.getPartitionType(), table.getRangeStart(),
+                                table.getRangeEnd(), table.getRangeInterval(), table.getClusterBy(),
+                                table.getPartitionExpirationDays())));
+            }
+            List<LoadJobStatus> jobs = storageService.createOrReplaceBigQueryTables(request.getUploadId(), tables,
+                    parseTypeOverrides(request.getTypes()));
+            return ResponseEntity.accepted().body(jobs);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Stores many files concurrently, optionally loading them per file or into one table
+    @PostMapping("/batch")
+    @ResponseBody
+    public ResponseEntity<?> handleBatchUpload(@RequestParam("files") List<MultipartFile> files,
+            @RequestParam(value = "load", defaultValue = "NONE") BatchUploadResult.LoadMode loadMode,
+            @RequestParam(value = "dataset", required = false) String datasetName,
+            @RequestParam(value = "table", required = false) String tableName,
+            @RequestParam(value = "types", required = false) List<String> types) {
+        logger.info("Received batch upload request of {} files, load mode {}", files.size(), loadMode);
+        if (loadMode != BatchUploadResult.LoadMode.NONE && (datasetName == null || datasetName.isBlank()))
+            return ResponseEntity.badRequest().body("A dataset is required to load the batch.");
+        if (loadMode == BatchUploadResult.LoadMode.COMBINED && (tableName == null || tableName.isBlank()))
+            return ResponseEntity.badRequest().body("A table is required for a combined load.");
+        Map<String, StandardSQLTypeName> typeOverrides;
+        try {
+            typeOverrides = parseTypeOverrides(types);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+
+        BatchUploadResult result = storageService.storeBatch(files, loadMode, datasetName, tableName,
+                typeOverrides);
+        return ResponseEntity.ok(result);
+    }
+
+    // Sharded upload of a large CSV followed by a single wildcard load
+    @PostMapping("/ingest-sharded")
+    @ResponseBody
+    public ResponseEntity<?> ingestSharded(@RequestParam("file") MultipartFile file,
+            @RequestParam("dataset") String datasetName,
+            @RequestParam("table") String tableName,
+            @RequestParam(value = "types", required = false) List<String> types) {
+        logger.info("Received sharded ingest request. File name: {}, Size: {} bytes",
+                file.getOriginalFilename(), file.getSize());
+        try {
+            LoadJobStatus job = storageService.storeShardedAndLoad(file, datasetName, tableName,
+                    parseTypeOverrides(types));
+            return ResponseEntity.accepted().body(job);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Queues an upload for a micro-batched append into an existing or new table
+    @PostMapping("/append")
+    @ResponseBody
+    public ResponseEntity<?> appendToTable(@RequestParam("uploadId") String uploadId,
+            @RequestParam("dataset") String datasetName,
+            @RequestParam("table") String tableName,
+            @RequestParam(value = "types", required = false) List<String> types) {
+        try {
+            AppendBatcher.Batch batch = storageService.appendToBigQueryTable(uploadId, datasetName, tableName,
+                    parseTypeOverrides(types));
+            return ResponseEntity.accepted().body(batch);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Loads the open append batch of a table, or of every table, without waiting for its window
+    @PostMapping("/append/flush")
+    @ResponseBody
+    public ResponseEntity<?> flushAppends(@RequestParam(value = "dataset", required = false) String datasetName,
+            @RequestParam(value = "table", required = false) String tableName) {
+        if (tableName != null && datasetName == null)
+            return ResponseEntity.badRequest().body("A dataset is required to flush a table.");
+
+        return ResponseEntity.ok(storageService.flushAppends(datasetName, tableName));
+    }
+
+    // Append batch status: its files and, once flushed, its load
+    @GetMapping("/append/{id}")
+    @ResponseBody
+    public ResponseEntity<AppendBatcher.Batch> getAppendBatch(@PathVariable String id) {
+        return ResponseEntity.ok(storageService.getAppendBatch(id));
+    }
+
+    // BigQuery load job status, polled by the UI
+    @GetMapping("/jobs/{id}")
+    @ResponseBody
+    public ResponseEntity<LoadJobStatus> getLoadJob(@PathVariable String id) {
+        LoadJobStatus job = storageService.getLoadJob(id);
+        if (job == null)
+            return ResponseEntity.notFound().build();
+
+        return ResponseEntity.ok(job);
+    }
+
+    // Response to a stored upload: its id, object, header and types
+    private static Map<String, Object> uploadBody(UploadSession session, String fileName) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("uploadId", session.getId());
+        body.put("fileName", session.getObjectName());
+        body.put("size", session.getSize());
+        body.put("columns", session.getColumns());
+        body.put("types", session.getTypes());
+        // First DATE/TIMESTAMP column, offered as the default partition column
+        body.put("suggestedPartitionColumn",
+                TableLayout.suggestPartitionColumn(session.getColumns(), session.getTypes()));
+        body.put("message", "You successfully uploaded " + fileName + "!");
+        return body;
+    }
+
+    // Parses "column:TYPE" entries overriding inferred column types
+    private static Map<String, StandardSQLTypeName> parseTypeOverrides(List<String> types) {
+        Map<String, StandardSQLTypeName> overrides = new HashMap<>();
+        if (types == null)
+            return overrides;
+
+        for (String entry : types) {
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0)
+                throw new IllegalArgumentException("Type override must look like column:TYPE, got " + entry);
+
+            String type = entry.substring(separator + 1).trim().toUpperCase(Locale.ROOT);
+            try {
+                overrides.put(entry.substring(0, separator).trim(), StandardSQLTypeName.valueOf(type));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown BigQuery type " + type + " for " + entry, e);
+            }
+        }
+        return overrides;
+    }
+
+    // Builds the table layout; a RANGE partition type partitions on integer ranges
+    private static TableLayout parseLayout(String partitionColumn, String partitionType, Long rangeStart,
+            Long rangeEnd, Long rangeInterval, List<String> clusterBy, Long partitionExpirationDays) {
+        String column = partitionColumn == null || partitionColumn.isBlank() ? null : partitionColumn.trim();
+        TimePartitioning.Type type = null;
+        if (column != null && partitionType != null && !partitionType.isBlank()
+                && !partitionType.equalsIgnoreCase("RANGE")) {
+            try {
+                type = TimePartitioning.Type.valueOf(partitionType.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown partition type " + partitionType, e);
+            }
+        }
+        List<String> clustering = clusterBy == null ? null
+                : clusterBy.stream().map(String::trim).filter(c -> !c.isEmpty()).collect(Collectors.toList());
+        return new TableLayout(column, type, rangeStart, rangeEnd, rangeInterval, clustering,
+                partitionExpirationDays);
+    }
+
     // Exception Handler
     @ExceptionHandler(StorageFileNotFoundException.class)
     public ResponseEntity<?> handleStorageFileNotFound(StorageFileNotFoundException exc) {
@@ -0,0 +1,132 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.springframework.core.io.AbstractResource;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+/**
+ * A GCS object as a Spring {@link org.springframework.core.io.Resource},
+ * streamed from the bucket rather than buffered.
+ *
+ * Skipping in the stream seeks the underlying read channel, so the ranges
+ * Spring MVC serves for {@code Range} requests only download the bytes they
+ * return. Bytes are served as stored: a gzip-compressed object reads as gzip,
+ * with {@link #getContentEncoding()} telling so.
+ */
+public class GcsResource extends AbstractResource {
+
+    private final Storage storage;
+    private final Blob blob;
+
+    /**
+     * @param storage GCS client (or stand-in) the object is read with.
+     * @param blob    metadata of the object; the generation it names is the
+     *                one read.
+     */
+    public GcsResource(Storage storage, Blob blob) {
+        this.storage = storage;
+        this.blob = blob;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return blob.getSize();
+    }
+
+    @Override
+    public long lastModified() {
+        return blob.getUpdateTime() == null ? 0 : blob.getUpdateTime();
+    }
+
+    /**
+     * @return the last segment of the object name.
+     */
+    @Override
+    public String getFilename() {
+        String name = blob.getName();
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public String getDescription() {
+        return "GCS object [gs://" + blob.getBucket() + "/" + blob.getName() + "]";
+    }
+
+    public String getContentType() {
+        return blob.getContentType();
+    }
+
+    /**
+     * @return Content-Encoding of the stored bytes, e.g. {@code gzip}, or
+     *         {@code null}.
+     */
+    public String getContentEncoding() {
+        return blob.getContentEncoding();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        BlobId blobId = BlobId.of(blob.getBucket(), blob.getName(), blob.getGeneration());
+        ReadChannel channel = storage.reader(blobId, Storage.BlobSourceOption.shouldReturnRawInputStream(true));
+        return new ChannelInputStream(channel, blob.getSize());
+    }
+
+    /**
+     * Stream over a read channel whose skips are seeks.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final ReadChannel channel;
+        private final long size;
+        private long position;
+
+        ChannelInputStream(ReadChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, len));
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, size - position));
+            if (skipped > 0) {
+                position += skipped;
+                channel.seek(position);
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+/**
+ * Streams content into a GCS object through a resumable upload channel.
+ * Only one chunk of the upload is held on the heap at a time, no matter how
+ * large the source is.
+ *
+ * The {@link Storage} client is passed in so the uploader can run against a
+ * local or in-memory stand-in (e.g. {@code LocalStorageHelper}) as well as GCS.
+ */
+public class GcsStreamUploader {
+
+    // Size of the read buffer used to pull bytes from the source stream.
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Storage storage;
+    private final int chunkSize;
+
+    /**
+     * @param storage   GCS client (or stand-in) the object is written to.
+     * @param chunkSize number of bytes sent per resumable upload request. GCS
+     *                  rounds it up to a multiple of 256 KiB.
+     */
+    public GcsStreamUploader(Storage storage, int chunkSize) {
+        this.storage = storage;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Copies the stream into the object described by {@code blobInfo}.
+     *
+     * @param blobInfo target object.
+     * @param in       source stream, read to the end but not closed.
+     * @param options  write options, e.g. {@code md5Match()} to have GCS
+     *                 verify the hash set on {@code blobInfo}.
+     * @return the number of bytes written.
+     * @throws IOException if reading the source or writing to GCS fails.
+     */
+    public long upload(BlobInfo blobInfo, InputStream in, Storage.BlobWriteOption... options) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        try (WriteChannel writer = storage.writer(blobInfo, options)) {
+            writer.setChunkSize(chunkSize);
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    writer.write(chunk);
+                }
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Opens a stream into the object described by {@code blobInfo}, for
+     * content produced while it is sent. Closing the stream completes the
+     * upload; a stream left open when writing fails creates no object.
+     *
+     * @param blobInfo target object.
+     * @param options  write options.
+     * @return a stream over the resumable upload channel.
+     */
+    public OutputStream open(BlobInfo blobInfo, Storage.BlobWriteOption... options) {
+        WriteChannel writer = storage.writer(blobInfo, options);
+        writer.setChunkSize(chunkSize);
+        return Channels.newOutputStream(writer);
+    }
+}
@@ -0,0 +1,96 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.cvs.anbc.ahreports.dao.StorageProperties;
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+/**
+ * Shared {@link UploadSessionStore} for multi-node deployments: each session
+ * is a small JSON object under {@code storage.session.prefix} in the upload
+ * bucket, so every node behind the load balancer sees every upload.
+ *
+ * Expired sessions are treated as missing and deleted when read; a bucket
+ * lifecycle rule on the prefix can remove the ones never read again.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.session.store", havingValue = "gcs")
+public class GcsUploadSessionStore implements UploadSessionStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(GcsUploadSessionStore.class);
+
+    private final Storage storage;
+    private final ObjectMapper objectMapper;
+    private final String bucketName;
+    private final String prefix;
+    private final Duration ttl;
+
+    public GcsUploadSessionStore(StorageProperties properties, CloudClients clients, ObjectMapper objectMapper,
+            @Value("${storage.session.prefix:sessions/}") String prefix,
+            @Value("${storage.session.ttl:24h}") Duration ttl) {
+        this.storage = clients.lazyStorage();
+        this.objectMapper = objectMapper;
+        this.bucketName = properties.getBucketName();
+        this.prefix = prefix;
+        this.ttl = ttl;
+    }
+
+    @Override
+    public void save(UploadSession session) {
+        try {
+            storage.create(BlobInfo.newBuilder(blobId(session.getId())).setContentType("application/json").build(),
+                    objectMapper.writeValueAsBytes(session));
+        } catch (IOException e) {
+            throw new StorageException("Failed to save upload session " + session.getId(), e);
+        }
+    }
+
+    @Override
+    public UploadSession get(String id) {
+        byte[] json;
+        try {
+            json = storage.readAllBytes(blobId(id));
+        } catch (com.google.cloud.storage.StorageException e) {
+            if (e.getCode() == 404) {
+                return null;
+            }
+            throw new StorageException("Failed to read upload session " + id, e);
+        }
+        try {
+            UploadSession session = objectMapper.readValue(json, UploadSession.class);
+            if (session.getCreatedAt().plus(ttl).isBefore(Instant.now())) {
+                delete(id);
+                return null;
+            }
+            return session;
+        } catch (IOException e) {
+            logger.warn("Discarding unreadable upload session {}: {}", id, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void delete(String id) {
+        storage.delete(blobId(id));
+    }
+
+    // Session ids are UUIDs; anything else would escape the prefix.
+    private BlobId blobId(String id) {
+        if (!id.matches("[0-9a-fA-F-]{36}")) {
+            throw new StorageException("Invalid upload id: " + id);
+        }
+        return BlobId.of(bucketName, prefix + id + ".json");
+    }
+}
@@ -0,0 +1,65 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Default {@link UploadSessionStore}: sessions live on the node that took the
+ * upload and expire after {@code storage.session.ttl}. Expired sessions are
+ * dropped on access and swept on writes.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.session.store", havingValue = "memory", matchIfMissing = true)
+public class InMemoryUploadSessionStore implements UploadSessionStore {
+
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private volatile long nextSweep;
+
+    public InMemoryUploadSessionStore(@Value("${storage.session.ttl:24h}") Duration ttl) {
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    @Override
+    public void save(UploadSession session) {
+        long now = System.currentTimeMillis();
+        sessions.put(session.getId(), new Entry(session, now + ttlMillis));
+        if (now >= nextSweep) {
+            nextSweep = now + ttlMillis / 10;
+            sessions.values().removeIf(entry -> entry.expiresAt <= now);
+        }
+    }
+
+    @Override
+    public UploadSession get(String id) {
+        Entry entry = sessions.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            sessions.remove(id, entry);
+            return null;
+        }
+        return entry.session;
+    }
+
+    @Override
+    public void delete(String id) {
+        sessions.remove(id);
+    }
+
+    private static final class Entry {
+        private final UploadSession session;
+        private final long expiresAt;
+
+        Entry(UploadSession session, long expiresAt) {
+            this.session = session;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
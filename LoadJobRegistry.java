@@ -0,0 +1,269 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobStatistics.LoadStatistics;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Runs BigQuery loads off the request threads and keeps track of them.
+ *
+ * Preparation work (projection, rewrites) runs on a small worker pool and the
+ * number of loads in flight, from preparation to job completion, is capped by
+ * {@code maxConcurrent}. Completion is detected by a single poller thread that
+ * fetches job status periodically, so no thread ever blocks in
+ * {@code Job.waitFor()}. Finished entries are evicted oldest first once the
+ * registry holds more than {@code capacity} jobs.
+ */
+public class LoadJobRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadJobRegistry.class);
+
+    /**
+     * Preparation step of a load: does any work needed before the load, then
+     * creates the BigQuery job and returns its id.
+     */
+    public interface LoadTask {
+        JobId start(LoadJobStatus status) throws Exception;
+    }
+
+    private final BigQuery bigQuery;
+    private final int capacity;
+    private final Semaphore loadSlots;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService poller;
+    private final Map<String, LoadJobStatus> jobs = new LinkedHashMap<>();
+    private final Map<String, Runnable> cleanups = new LinkedHashMap<>();
+    private final Map<String, PipelineMetrics.Trace> traces = new HashMap<>();
+
+    /**
+     * @param bigQuery       client used to poll job status; any
+     *                       implementation, including a fake, will do.
+     * @param maxConcurrent  maximum number of loads in flight.
+     * @param capacity       maximum number of jobs remembered.
+     * @param pollIntervalMs delay between two status polls.
+     */
+    public LoadJobRegistry(BigQuery bigQuery, int maxConcurrent, int capacity, long pollIntervalMs) {
+        this.bigQuery = bigQuery;
+        this.capacity = capacity;
+        this.loadSlots = new Semaphore(maxConcurrent, true);
+        this.workers = Executors.newFixedThreadPool(maxConcurrent, namedThreads("bq-load-"));
+        this.poller = Executors.newSingleThreadScheduledExecutor(namedThreads("bq-poll-"));
+        this.poller.scheduleWithFixedDelay(this::pollRunningJobs, pollIntervalMs, pollIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a load and queues its preparation. Returns immediately.
+     *
+     * @param source  description of the data being loaded (e.g. a GCS URI).
+     * @param tableId target table.
+     * @param trace   pipeline trace the queue and BigQuery stages are
+     *                recorded in; finished with the job.
+     * @param task    preparation step that creates the BigQuery job.
+     * @param cleanup run once the job reaches a terminal state, may be
+     *                {@code null}.
+     * @return the job handle.
+     * @throws StorageException if the registry is full of unfinished jobs.
+     */
+    public LoadJobStatus submit(String source, TableId tableId, PipelineMetrics.Trace trace, LoadTask task,
+            Runnable cleanup) {
+        LoadJobStatus status = register(source, tableId, trace, cleanup);
+        start(status, task);
+        return status;
+    }
+
+    /**
+     * Registers a load whose preparation is queued later by
+     * {@link #start}, once whatever it waits for is ready. Until then the load
+     * is listed as queued but holds neither a worker nor a load slot.
+     *
+     * @return the job handle.
+     * @throws StorageException if the registry is full of unfinished jobs.
+     * @see #submit
+     */
+    public LoadJobStatus register(String source, TableId tableId, PipelineMetrics.Trace trace, Runnable cleanup) {
+        LoadJobStatus status = new LoadJobStatus(source, tableId);
+        synchronized (jobs) {
+            evictFinished();
+            if (jobs.size() >= capacity) {
+                StorageException e = new StorageException("Too many BigQuery loads in progress, try again later.");
+                trace.fail(e);
+                throw e;
+            }
+            jobs.put(status.getId(), status);
+            traces.put(status.getId(), trace);
+            if (cleanup != null) {
+                cleanups.put(status.getId(), cleanup);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Queues the preparation of a load registered by {@link #register}.
+     * Returns immediately.
+     *
+     * @param task preparation step that creates the BigQuery job.
+     */
+    public void start(LoadJobStatus status, LoadTask task) {
+        workers.execute(() -> prepare(status, task));
+        logger.info("Queued load job {} for {} from {}", status.getId(), status.getTable(), status.getSource());
+    }
+
+    /**
+     * @return the job with this id, or {@code null} if unknown or evicted.
+     */
+    public LoadJobStatus get(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * @return a snapshot of every remembered job, oldest first.
+     */
+    public List<LoadJobStatus> list() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    public void shutdown() {
+        poller.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void prepare(LoadJobStatus status, LoadTask task) {
+        try {
+            loadSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete(status, null, "Interrupted while waiting for a load slot");
+            return;
+        }
+        try {
+            status.preparing();
+            trace(status).record(PipelineMetrics.Stage.LOAD_QUEUE,
+                    TimeUnit.MILLISECONDS.toNanos(status.getQueuedMillis()));
+            JobId jobId = task.start(status);
+            status.running(jobId);
+            logger.info("Load job {} submitted to BigQuery as {}", status.getId(), jobId.getJob());
+        } catch (Exception e) {
+            logger.error("Load job {} failed before reaching BigQuery: {}", status.getId(), e.getMessage(), e);
+            trace(status).fail(e);
+            complete(status, null, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private PipelineMetrics.Trace trace(LoadJobStatus status) {
+        synchronized (jobs) {
+            return traces.get(status.getId());
+        }
+    }
+
+    private void pollRunningJobs() {
+        for (LoadJobStatus status : list()) {
+            if (status.getState() != LoadJobStatus.State.RUNNING) {
+                continue;
+            }
+            try {
+                Job job = bigQuery.getJob(status.bigQueryJobId());
+                if (job == null) {
+                    complete(status, null, "BigQuery job no longer exists");
+                } else if (job.getStatus().getState() == JobStatus.State.DONE) {
+                    BigQueryError error = job.getStatus().getError();
+                    complete(status, job, error == null ? null : error.getMessage());
+                }
+            } catch (RuntimeException e) {
+                // Transient polling errors are retried on the next tick.
+                logger.warn("Failed to poll BigQuery job {}: {}", status.getBigQueryJobId(), e.getMessage());
+            }
+        }
+    }
+
+    private void complete(LoadJobStatus status, Job job, String error) {
+        PipelineMetrics.Trace trace;
+        synchronized (jobs) {
+            trace = traces.remove(status.getId());
+        }
+        if (error != null) {
+            status.failed(error);
+            logger.error("Load job {} into {} failed: {}", status.getId(), status.getTable(), error);
+        } else {
+            LoadStatistics statistics = job.getStatistics();
+            status.succeeded(statistics == null ? null : statistics.getOutputRows(),
+                    statistics == null ? null : statistics.getInputBytes());
+            logger.info("Load job {} into {} finished in {} ms", status.getId(), status.getTable(),
+                    status.getTotalMillis());
+        }
+        if (trace != null) {
+            if (status.getLoadMillis() != null) {
+                trace.record(PipelineMetrics.Stage.BIGQUERY_WAIT,
+                        TimeUnit.MILLISECONDS.toNanos(status.getLoadMillis()));
+            }
+            if (error != null) {
+                trace.fail(job == null ? "LoadError" : "BigQueryError", error);
+            } else {
+                if (status.getRowsLoaded() != null) {
+                    trace.rows(PipelineMetrics.Stage.BIGQUERY_WAIT, status.getRowsLoaded());
+                }
+                trace.finish();
+            }
+        }
+        if (status.getStartedAt() != null) {
+            loadSlots.release();
+        }
+        Runnable cleanup;
+        synchronized (jobs) {
+            cleanup = cleanups.remove(status.getId());
+        }
+        if (cleanup != null) {
+            try {
+                cleanup.run();
+            } catch (RuntimeException e) {
+                logger.warn("Cleanup of load job {} failed: {}", status.getId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    // Caller holds the jobs lock.
+    private void evictFinished() {
+        Iterator<LoadJobStatus> it = jobs.values().iterator();
+        while (jobs.size() >= capacity && it.hasNext()) {
+            if (it.next().getState().isTerminal()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,200 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Handle and live status of a BigQuery load submitted through
+ * {@link LoadJobRegistry}. Fields are updated by the registry's worker and
+ * poller threads and read by request threads, hence the volatile fields.
+ */
+public class LoadJobStatus {
+
+    /**
+     * Lifecycle of a load job.
+     */
+    public enum State {
+        QUEUED, PREPARING, RUNNING, SUCCEEDED, FAILED;
+
+        public boolean isTerminal() {
+            return this == SUCCEEDED || this == FAILED;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String source;
+    private final TableId tableId;
+    private final Instant submittedAt = Instant.now();
+
+    private volatile State state = State.QUEUED;
+    private volatile JobId bigQueryJobId;
+    private volatile long bytesProcessed;
+    private volatile long rowsProcessed;
+    private volatile Long rowsLoaded;
+    private volatile String error;
+    private volatile long rowsQuarantined;
+    private volatile String quarantineUri;
+    private volatile Map<String, Long> quarantinedByCheck = Map.of();
+    private volatile Instant startedAt;
+    private volatile Instant loadStartedAt;
+    private volatile Instant finishedAt;
+
+    public LoadJobStatus(String source, TableId tableId) {
+        this.source = source;
+        this.tableId = tableId;
+    }
+
+    void preparing() {
+        startedAt = Instant.now();
+        state = State.PREPARING;
+    }
+
+    void running(JobId jobId) {
+        bigQueryJobId = jobId;
+        loadStartedAt = Instant.now();
+        state = State.RUNNING;
+    }
+
+    void succeeded(Long rowsLoaded, Long bytesLoaded) {
+        this.rowsLoaded = rowsLoaded;
+        if (bytesLoaded != null) {
+            this.bytesProcessed = bytesLoaded;
+        }
+        finish(State.SUCCEEDED);
+    }
+
+    void failed(String error) {
+        this.error = error;
+        finish(State.FAILED);
+    }
+
+    private void finish(State terminal) {
+        finishedAt = Instant.now();
+        state = terminal;
+    }
+
+    /**
+     * Records the rows set aside by validation during the preparation stage.
+     */
+    void quarantined(long rows, String uri, Map<String, Long> byCheck) {
+        this.quarantinedByCheck = Map.copyOf(byCheck);
+        this.quarantineUri = uri;
+        this.rowsQuarantined = rows;
+    }
+
+    /**
+     * Records progress of the preparation stage (e.g. a column projection).
+     */
+    public void updateProgress(long rows, long bytes) {
+        this.rowsProcessed = rows;
+        this.bytesProcessed = bytes;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getTable() {
+        return tableId.getProject() + "." + tableId.getDataset() + "." + tableId.getTable();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getBigQueryJobId() {
+        JobId jobId = bigQueryJobId;
+        return jobId == null ? null : jobId.getJob();
+    }
+
+    JobId bigQueryJobId() {
+        return bigQueryJobId;
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    public long getRowsProcessed() {
+        return rowsProcessed;
+    }
+
+    public Long getRowsLoaded() {
+        return rowsLoaded;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return rows rejected by validation and kept out of the load.
+     */
+    public long getRowsQuarantined() {
+        return rowsQuarantined;
+    }
+
+    /**
+     * @return {@code gs://} URI of the rejected rows, with their line numbers
+     *         and reasons, or {@code null} if none was rejected.
+     */
+    public String getQuarantineUri() {
+        return quarantineUri;
+    }
+
+    /**
+     * @return rejected rows by failed check, e.g. {@code type}.
+     */
+    public Map<String, Long> getQuarantinedByCheck() {
+        return quarantinedByCheck;
+    }
+
+    public Instant getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * @return time spent waiting for a free load slot, or {@code null} while
+     *         still queued.
+     */
+    public Long getQueuedMillis() {
+        Instant started = startedAt;
+        return started == null ? null : Duration.between(submittedAt, started).toMillis();
+    }
+
+    /**
+     * @return time spent in the BigQuery load job, or {@code null} if it has
+     *         not finished.
+     */
+    public Long getLoadMillis() {
+        Instant loadStarted = loadStartedAt;
+        Instant finished = finishedAt;
+        return loadStarted == null || finished == null ? null : Duration.between(loadStarted, finished).toMillis();
+    }
+
+    /**
+     * @return total time from submission to completion, or {@code null} if the
+     *         job has not finished.
+     */
+    public Long getTotalMillis() {
+        Instant finished = finishedAt;
+        return finished == null ? null : Duration.between(submittedAt, finished).toMillis();
+    }
+}
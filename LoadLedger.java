@@ -0,0 +1,70 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Remembers the loads made per (content hash, column selection, type
+ * overrides, target table, layout and load settings), so a repeated request
+ * can be answered with the load already made or still running instead of a
+ * new one. A change of the settings that shape a load, e.g. row validation or
+ * the load format, makes the next identical request load again.
+ *
+ * The least recently used entries are dropped beyond {@code capacity}.
+ */
+public class LoadLedger {
+
+    private final Map<String, LoadJobStatus> loads;
+
+    /**
+     * @param capacity loads remembered.
+     */
+    public LoadLedger(int capacity) {
+        this.loads = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LoadJobStatus> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Builds the ledger key of a load.
+     *
+     * @param md5             content hash of the source file.
+     * @param selectedColumns columns kept, {@code null} for all of them.
+     * @param typeOverrides   types forced by the caller, may be {@code null}.
+     * @param tableId         target table.
+     * @param layout          partitioning and clustering of the table.
+     * @param settings        configuration the load is made with, e.g.
+     *                        format and validation.
+     * @return the key, or {@code null} if the content hash is unknown.
+     */
+    public static String key(String md5, List<String> selectedColumns,
+            Map<String, StandardSQLTypeName> typeOverrides, TableId tableId, TableLayout layout, String settings) {
+        if (md5 == null) {
+            return null;
+        }
+        return md5 + '|' + (selectedColumns == null ? "*" : String.join(",", selectedColumns)) + '|'
+                + (typeOverrides == null ? "{}" : new TreeMap<>(typeOverrides)) + '|'
+                + tableId.getProject() + '.' + tableId.getDataset() + '.' + tableId.getTable() + '|' + layout + '|'
+                + settings;
+    }
+
+    public synchronized LoadJobStatus get(String key) {
+        return loads.get(key);
+    }
+
+    public synchronized void put(String key, LoadJobStatus load) {
+        loads.put(key, load);
+    }
+
+    public synchronized void remove(String key, LoadJobStatus load) {
+        loads.remove(key, load);
+    }
+}
@@ -0,0 +1,36 @@
+package com.cvs.anbc.ahreports.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import com.cvs.anbc.ahreports.storage.PipelineMetrics;
+
+/**
+ * {@code /actuator/pipeline}: the slowest recent uploads and loads with their
+ * per-stage breakdown, and the stages running right now.
+ */
+@Component
+@Endpoint(id = "pipeline")
+public class PipelineEndpoint {
+
+    private static final int DEFAULT_LIMIT = 20;
+
+    private final PipelineMetrics metrics;
+
+    public PipelineEndpoint(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @ReadOperation
+    public Map<String, Object> pipeline(@Nullable Integer limit) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("inFlight", metrics.inFlight());
+        body.put("slowest", metrics.slowest(limit == null ? DEFAULT_LIMIT : limit));
+        return body;
+    }
+}
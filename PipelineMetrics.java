@@ -0,0 +1,386 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer instrumentation of the upload-to-BigQuery pipeline.
+ *
+ * Every upload or load is followed by a {@link Trace}; each {@link Stage} it
+ * goes through is timed with a {@link Span}. Spans feed the meters below,
+ * tagged by stage, and the trace keeps its own per-stage breakdown so the
+ * slowest recent runs can be inspected through the {@code pipeline} actuator
+ * endpoint.
+ *
+ * <ul>
+ * <li>{@code pipeline.stage.duration} timer, with a percentile histogram</li>
+ * <li>{@code pipeline.stage.bytes} distribution summary of bytes per span</li>
+ * <li>{@code pipeline.bytes} and {@code pipeline.rows} counters</li>
+ * <li>{@code pipeline.inflight} gauge of spans currently open</li>
+ * <li>{@code pipeline.errors} counter, tagged by stage and exception type</li>
+ * <li>{@code pipeline.total} timer of whole runs, tagged by kind</li>
+ * <li>{@code pipeline.cache} counter of deduplication lookups, tagged by
+ * cache and hit or miss</li>
+ * <li>{@code pipeline.quarantine.rows} counter of rows rejected by
+ * validation, tagged by failed check</li>
+ * <li>{@code pipeline.admission.rejected} counter of uploads turned away,
+ * tagged by the saturated limit</li>
+ * </ul>
+ */
+@Component
+public class PipelineMetrics {
+
+    /**
+     * Request attribute holding the {@link System#nanoTime()} at which a
+     * request entered the servlet container, set before multipart parsing.
+     */
+    public static final String RECEIVE_START_ATTRIBUTE = PipelineMetrics.class.getName() + ".receiveStart";
+
+    /**
+     * Stages of the pipeline, in the order a run goes through them.
+     */
+    public enum Stage {
+        // Multipart request read and spooled to a temporary file by the container.
+        RECEIVE,
+        // Local gzip of an upload stored compressed.
+        COMPRESS,
+        // Content hash of the received file, for deduplication.
+        HASH,
+        // Stream into GCS, shards included.
+        GCS_UPLOAD,
+        // Ranged header and sample reads.
+        HEADER_PARSE,
+        // Projection or rewrite into a temporary GCS object.
+        REWRITE,
+        // Waiting for a free load slot.
+        LOAD_QUEUE,
+        // BigQuery load job from submission to completion.
+        BIGQUERY_WAIT;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final int recentCapacity;
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final Map<Stage, DistributionSummary> sizes = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> bytes = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> rows = new EnumMap<>(Stage.class);
+    private final Map<Stage, AtomicInteger> inFlight = new EnumMap<>(Stage.class);
+    private final Map<String, Timer> totals = new ConcurrentHashMap<>();
+    private final Deque<TraceSummary> recent = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger recentSize = new AtomicInteger();
+
+    /**
+     * @param registry       registry the meters are published to.
+     * @param recentCapacity finished runs kept for the pipeline endpoint.
+     */
+    public PipelineMetrics(MeterRegistry registry, @Value("${pipeline.metrics.recent:200}") int recentCapacity) {
+        this.registry = registry;
+        this.recentCapacity = recentCapacity;
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, Timer.builder("pipeline.stage.duration")
+                    .description("Time spent in a pipeline stage")
+                    .tag("stage", stage.tag())
+                    .publishPercentileHistogram()
+                    .register(registry));
+            sizes.put(stage, DistributionSummary.builder("pipeline.stage.bytes")
+                    .description("Bytes handled by one run of a pipeline stage")
+                    .baseUnit("bytes")
+                    .tag("stage", stage.tag())
+                    .register(registry));
+            bytes.put(stage, Counter.builder("pipeline.bytes").baseUnit("bytes").tag("stage", stage.tag())
+                    .register(registry));
+            rows.put(stage, Counter.builder("pipeline.rows").tag("stage", stage.tag()).register(registry));
+            AtomicInteger gauge = new AtomicInteger();
+            Gauge.builder("pipeline.inflight", gauge, AtomicInteger::get)
+                    .description("Pipeline stages currently running")
+                    .tag("stage", stage.tag())
+                    .register(registry);
+            inFlight.put(stage, gauge);
+        }
+    }
+
+    /**
+     * Starts following a run. When called on a request thread whose start
+     * was recorded under {@link #RECEIVE_START_ATTRIBUTE}, the time spent
+     * receiving the request is recorded as the {@link Stage#RECEIVE} stage.
+     *
+     * @param kind short name of the run type, e.g. {@code upload} or
+     *             {@code load}.
+     * @param name what is processed, e.g. a file name or GCS URI.
+     */
+    public Trace trace(String kind, String name) {
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        Object receiveStart = request == null ? null
+                : request.getAttribute(RECEIVE_START_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (!(receiveStart instanceof Long)) {
+            return new Trace(kind, name, System.nanoTime());
+        }
+        Trace trace = new Trace(kind, name, (Long) receiveStart);
+        trace.record(Stage.RECEIVE, System.nanoTime() - trace.startNanos);
+        return trace;
+    }
+
+    /**
+     * Counts a deduplication lookup.
+     *
+     * @param cache which cache was consulted, e.g. {@code upload} or
+     *              {@code load}.
+     * @param hit   whether the work could be skipped.
+     */
+    public void cacheLookup(String cache, boolean hit) {
+        registry.counter("pipeline.cache", "cache", cache, "result", hit ? "hit" : "miss").increment();
+    }
+
+    /**
+     * Counts rows set aside by validation instead of being loaded.
+     *
+     * @param check the failed check, e.g. {@code column_count}.
+     * @param rows  number of rows.
+     */
+    public void quarantined(String check, long rows) {
+        registry.counter("pipeline.quarantine.rows", "check", check).increment(rows);
+    }
+
+    /**
+     * Counts an upload turned away by admission control.
+     *
+     * @param limit the saturated limit, e.g. {@code concurrency}.
+     */
+    public void uploadRejected(String limit) {
+        registry.counter("pipeline.admission.rejected", "limit", limit).increment();
+    }
+
+    /**
+     * @return the slowest of the recently finished runs, slowest first.
+     */
+    public List<TraceSummary> slowest(int limit) {
+        return recent.stream()
+                .sorted(Comparator.comparingLong(TraceSummary::getTotalMillis).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return spans currently open, by stage.
+     */
+    public Map<String, Integer> inFlight() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        inFlight.forEach((stage, gauge) -> counts.put(stage.tag(), gauge.get()));
+        return counts;
+    }
+
+    private void remember(TraceSummary summary) {
+        recent.addFirst(summary);
+        if (recentSize.incrementAndGet() > recentCapacity && recent.pollLast() != null) {
+            recentSize.decrementAndGet();
+        }
+    }
+
+    /**
+     * One upload or load followed through the pipeline. Spans may be opened
+     * from different threads, one at a time per trace.
+     */
+    public final class Trace {
+        private final String kind;
+        private final String name;
+        private final Instant startedAt;
+        private final long startNanos;
+        private final Map<Stage, Long> stageNanos = new EnumMap<>(Stage.class);
+        private volatile Stage lastStage;
+        private volatile String error;
+        private volatile boolean finished;
+
+        private Trace(String kind, String name, long startNanos) {
+            this.kind = kind;
+            this.name = name;
+            this.startNanos = startNanos;
+            this.startedAt = Instant.now().minusNanos(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Opens a span; close it when the stage is over.
+         */
+        public Span stage(Stage stage) {
+            lastStage = stage;
+            return new Span(this, stage);
+        }
+
+        /**
+         * Records a stage timed elsewhere, such as a BigQuery job measured
+         * from its status.
+         */
+        public void record(Stage stage, long nanos) {
+            lastStage = stage;
+            timers.get(stage).record(nanos, TimeUnit.NANOSECONDS);
+            synchronized (stageNanos) {
+                stageNanos.merge(stage, nanos, Long::sum);
+            }
+        }
+
+        /**
+         * Counts rows handled by a stage outside of a span.
+         */
+        public void rows(Stage stage, long count) {
+            rows.get(stage).increment(count);
+        }
+
+        /**
+         * Counts a failure against the last stage entered, tagged with the
+         * exception type, and finishes the trace. Ignored once the trace is
+         * finished, so a failure is only counted where it is first seen.
+         */
+        public void fail(Throwable e) {
+            fail(e.getClass().getSimpleName(), e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+
+        /**
+         * Counts a failure reported as text, e.g. by BigQuery.
+         */
+        public void fail(String type, String message) {
+            if (finished) {
+                return;
+            }
+            Stage stage = lastStage;
+            registry.counter("pipeline.errors", "stage", stage == null ? "none" : stage.tag(), "exception", type)
+                    .increment();
+            error = message;
+            finish();
+        }
+
+        /**
+         * Records the total time of the run and keeps it for the pipeline
+         * endpoint. Later calls are ignored.
+         */
+        public void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            long totalNanos = System.nanoTime() - startNanos;
+            totals.computeIfAbsent(kind, k -> Timer.builder("pipeline.total").tag("kind", k).register(registry))
+                    .record(totalNanos, TimeUnit.NANOSECONDS);
+            Map<String, Long> stages = new LinkedHashMap<>();
+            synchronized (stageNanos) {
+                stageNanos.forEach((stage, nanos) -> stages.put(stage.tag(), TimeUnit.NANOSECONDS.toMillis(nanos)));
+            }
+            remember(new TraceSummary(kind, name, startedAt, TimeUnit.NANOSECONDS.toMillis(totalNanos), stages,
+                    error));
+        }
+    }
+
+    /**
+     * Timing of one stage of a trace.
+     */
+    public final class Span implements AutoCloseable {
+        private final Trace trace;
+        private final Stage stage;
+        private final long startNanos = System.nanoTime();
+        private boolean closed;
+
+        private Span(Trace trace, Stage stage) {
+            this.trace = trace;
+            this.stage = stage;
+            inFlight.get(stage).incrementAndGet();
+        }
+
+        /**
+         * Records the bytes handled by this stage.
+         */
+        public void bytes(long count) {
+            bytes.get(stage).increment(count);
+            sizes.get(stage).record(count);
+        }
+
+        /**
+         * Records the rows handled by this stage.
+         */
+        public void rows(long count) {
+            rows.get(stage).increment(count);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inFlight.get(stage).decrementAndGet();
+            trace.record(stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Finished run as shown by the pipeline endpoint.
+     */
+    public static final class TraceSummary {
+        private final String kind;
+        private final String name;
+        private final Instant startedAt;
+        private final long totalMillis;
+        private final Map<String, Long> stageMillis;
+        private final String error;
+
+        TraceSummary(String kind, String name, Instant startedAt, long totalMillis, Map<String, Long> stageMillis,
+                String error) {
+            this.kind = kind;
+            this.name = name;
+            this.startedAt = startedAt;
+            this.totalMillis = totalMillis;
+            this.stageMillis = stageMillis;
+            this.error = error;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Instant getStartedAt() {
+            return startedAt;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * @return milliseconds spent in each stage, in pipeline order.
+         */
+        public Map<String, Long> getStageMillis() {
+            return stageMillis;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+}
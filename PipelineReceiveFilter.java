@@ -0,0 +1,35 @@
+package com.cvs.anbc.ahreports.controller;
+
+import java.io.IOException;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.cvs.anbc.ahreports.storage.PipelineMetrics;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Marks when a multipart request enters the application, before the
+ * dispatcher parses it and spools the file to disk, so the receive stage of
+ * an upload can be timed.
+ */
+@Component
+public class PipelineReceiveFilter extends OncePerRequestFilter {
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        request.setAttribute(PipelineMetrics.RECEIVE_START_ATTRIBUTE, System.nanoTime());
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType == null || !contentType.startsWith("multipart/");
+    }
+}
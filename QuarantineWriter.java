@@ -0,0 +1,101 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+
+/**
+ * Streams rejected records to a quarantine CSV object with the columns
+ * {@code line}, {@code reason} and {@code record}, the last holding the
+ * original record as one CSV line. The object is only created when the first
+ * record is rejected, so clean files leave nothing behind.
+ */
+final class QuarantineWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Storage storage;
+    private final BlobId blobId;
+    private final int chunkSize;
+    private final char delimiter;
+    private final StringWriter record = new StringWriter();
+    private Writer writer;
+    private long rows;
+
+    /**
+     * @param storage   GCS client the object is written with.
+     * @param blobId    quarantine object, may be {@code null} to drop
+     *                  rejected records.
+     * @param chunkSize bytes sent per resumable upload request.
+     * @param delimiter field delimiter of the source, reused for the output.
+     */
+    QuarantineWriter(Storage storage, BlobId blobId, int chunkSize, char delimiter) {
+        this.storage = storage;
+        this.blobId = blobId;
+        this.chunkSize = chunkSize;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Writes the current record of {@code tokenizer} with the reason it was
+     * rejected.
+     */
+    void write(CsvTokenizer tokenizer, String reason) throws IOException {
+        rows++;
+        if (blobId == null) {
+            return;
+        }
+        if (writer == null) {
+            WriteChannel channel = storage.writer(BlobInfo.newBuilder(blobId).setContentType("text/csv").build());
+            channel.setChunkSize(chunkSize);
+            writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                    StandardCharsets.UTF_8), BUFFER_SIZE);
+            writer.write("line" + delimiter + "reason" + delimiter + "record\n");
+        }
+        record.getBuffer().setLength(0);
+        for (int i = 0; i < tokenizer.cellCount(); i++) {
+            if (i > 0) {
+                record.write(delimiter);
+            }
+            tokenizer.writeCell(i, record);
+        }
+        writer.write(Long.toString(tokenizer.lineNumber()));
+        writer.write(delimiter);
+        CsvTokenizer.writeField(reason, delimiter, writer);
+        writer.write(delimiter);
+        CsvTokenizer.writeField(record.toString(), delimiter, writer);
+        writer.write('\n');
+    }
+
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the quarantine object, or {@code null} if nothing was written
+     *         to it.
+     */
+    BlobId getBlobId() {
+        return writer == null ? null : blobId;
+    }
+
+    /**
+     * Completes the quarantine object, if one was started.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
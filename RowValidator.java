@@ -0,0 +1,160 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.cloud.bigquery.StandardSQLTypeName;
+
+/**
+ * Checks parsed records against the table they are loaded into, so bad rows
+ * can be set aside during the parse instead of failing the BigQuery load.
+ *
+ * A record is rejected when its cell count differs from the header, when a
+ * selected cell does not conform to its column type (see
+ * {@link SchemaInference#loadable}), or when a selected cell holds U+FFFD,
+ * which the UTF-8 decoder substitutes for malformed bytes. Cells are checked
+ * in place in the tokenizer buffer and STRING columns are not scanned for
+ * type, so clean rows cost no allocation.
+ *
+ * Instances are not thread-safe.
+ */
+public final class RowValidator {
+
+    /**
+     * Checks a record can fail, in the order they are made.
+     */
+    public enum Check {
+        COLUMN_COUNT,
+        ENCODING,
+        TYPE;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private final int columnCount;
+    private final int[] projection;
+    private final List<String> columnNames;
+    private final StandardSQLTypeName[] types;
+    private final CellView cell = new CellView();
+    private final Map<Check, Long> rejected = new EnumMap<>(Check.class);
+
+    /**
+     * @param columnCount number of header cells of the source.
+     * @param projection  source index of each selected column.
+     * @param columnNames names of the selected columns, for messages.
+     * @param types       type of each selected column.
+     */
+    public RowValidator(int columnCount, int[] projection, List<String> columnNames,
+            List<StandardSQLTypeName> types) {
+        if (projection.length != types.size() || projection.length != columnNames.size()) {
+            throw new IllegalArgumentException("Expected one type and name per selected column, got "
+                    + types.size() + " types and " + columnNames.size() + " names for " + projection.length
+                    + " columns");
+        }
+        this.columnCount = columnCount;
+        this.projection = projection.clone();
+        this.columnNames = List.copyOf(columnNames);
+        this.types = types.toArray(new StandardSQLTypeName[0]);
+    }
+
+    /**
+     * Checks the current record of a tokenizer and counts it if it fails.
+     *
+     * @return why the record cannot be loaded, or {@code null} if it is clean.
+     */
+    public String validate(CsvTokenizer tokenizer) {
+        if (tokenizer.cellCount() != columnCount) {
+            return reject(Check.COLUMN_COUNT, "expected " + columnCount + " columns, found "
+                    + tokenizer.cellCount());
+        }
+        char[] buffer = tokenizer.buffer();
+        for (int i = 0; i < projection.length; i++) {
+            int start = tokenizer.start(projection[i]);
+            int end = start + tokenizer.length(projection[i]);
+            for (int j = start; j < end; j++) {
+                if (buffer[j] == REPLACEMENT_CHARACTER) {
+                    return reject(Check.ENCODING, "column '" + columnNames.get(i) + "' is not valid UTF-8");
+                }
+            }
+        }
+        for (int i = 0; i < projection.length; i++) {
+            if (types[i] == StandardSQLTypeName.STRING) {
+                continue;
+            }
+            cell.set(buffer, tokenizer.start(projection[i]), tokenizer.length(projection[i]));
+            if (!SchemaInference.loadable(types[i], cell)) {
+                return reject(Check.TYPE, "column '" + columnNames.get(i) + "' is not " + types[i] + ": '"
+                        + cell + "'");
+            }
+        }
+        return null;
+    }
+
+    private String reject(Check check, String reason) {
+        rejected.merge(check, 1L, Long::sum);
+        return reason;
+    }
+
+    /**
+     * @return records rejected so far.
+     */
+    public long getRejected() {
+        long total = 0;
+        for (long count : rejected.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return records rejected so far by each failed check, e.g.
+     *         {@code column_count}.
+     */
+    public Map<String, Long> getRejectedByCheck() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        rejected.forEach((check, count) -> counts.put(check.tag(), count));
+        return counts;
+    }
+
+    /**
+     * Reusable view of one cell of the tokenizer buffer.
+     */
+    private static final class CellView implements CharSequence {
+        private char[] chars;
+        private int offset;
+        private int length;
+
+        void set(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+
+/**
+ * Infers a typed BigQuery schema from a sample of CSV rows.
+ *
+ * Every column starts with all candidate types; each non-empty sample value
+ * removes the candidates it does not parse as. The most specific remaining
+ * type wins, in the order BOOL, INT64, NUMERIC, FLOAT64, DATE, DATETIME,
+ * TIMESTAMP, and STRING is used when nothing is left. Columns are inferred in
+ * parallel. Empty cells are treated as NULL and never narrow a column.
+ */
+public class SchemaInference {
+
+    // Candidate types, most specific first. Bit i of a candidate mask is CANDIDATES[i].
+    private static final StandardSQLTypeName[] CANDIDATES = { StandardSQLTypeName.BOOL, StandardSQLTypeName.INT64,
+            StandardSQLTypeName.NUMERIC, StandardSQLTypeName.FLOAT64, StandardSQLTypeName.DATE,
+            StandardSQLTypeName.DATETIME, StandardSQLTypeName.TIMESTAMP };
+    private static final String[] LOADABLE_BOOLS = { "1", "0", "t", "f", "yes", "no", "y", "n" };
+    private static final int ALL_CANDIDATES = (1 << CANDIDATES.length) - 1;
+
+    /**
+     * Values of the first rows of a file, kept column by column.
+     */
+    public static final class Sample {
+        private final List<List<String>> columns;
+        private final int maxRows;
+        private int rows;
+
+        /**
+         * @param columnCount number of columns sampled.
+         * @param maxRows     rows kept; later rows are ignored.
+         */
+        public Sample(int columnCount, int maxRows) {
+            this.columns = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                columns.add(new ArrayList<>(Math.min(maxRows, 1024)));
+            }
+            this.maxRows = maxRows;
+        }
+
+        public boolean isFull() {
+            return rows >= maxRows;
+        }
+
+        public int rows() {
+            return rows;
+        }
+
+        /**
+         * Adds the current record of the tokenizer, all columns in order.
+         */
+        public void add(CsvTokenizer tokenizer) {
+            if (isFull()) {
+                return;
+            }
+            for (int i = 0; i < columns.size(); i++) {
+                columns.get(i).add(i < tokenizer.cellCount() ? tokenizer.cell(i) : "");
+            }
+            rows++;
+        }
+
+        /**
+         * Adds the cells of the current record at the projection indexes.
+         */
+        public void add(CsvTokenizer tokenizer, int[] projection) {
+            if (isFull()) {
+                return;
+            }
+            for (int i = 0; i < projection.length; i++) {
+                columns.get(i).add(projection[i] < tokenizer.cellCount() ? tokenizer.cell(projection[i]) : "");
+            }
+            rows++;
+        }
+    }
+
+    private final int sampleRows;
+
+    /**
+     * @param sampleRows number of data rows sampled per file.
+     */
+    public SchemaInference(int sampleRows) {
+        this.sampleRows = sampleRows;
+    }
+
+    /**
+     * @return an empty sample sized for this engine.
+     */
+    public Sample newSample(int columnCount) {
+        return new Sample(columnCount, sampleRows);
+    }
+
+    /**
+     * Builds the schema for {@code columnNames} from the sample.
+     *
+     * @param columnNames BigQuery column names, one per sampled column.
+     * @param sample      sampled values, may be {@code null} for an all-STRING
+     *                    schema.
+     * @param overrides   types forced by the caller, keyed by column name; may
+     *                    be {@code null}.
+     * @return the inferred schema.
+     */
+    public Schema inferSchema(List<String> columnNames, Sample sample, Map<String, StandardSQLTypeName> overrides) {
+        List<StandardSQLTypeName> types = sample == null
+                ? columnNames.stream().map(name -> StandardSQLTypeName.STRING).collect(Collectors.toList())
+                : inferTypes(sample);
+        List<Field> fields = new ArrayList<>(columnNames.size());
+        for (int i = 0; i < columnNames.size(); i++) {
+            String name = columnNames.get(i);
+            StandardSQLTypeName type = overrides != null && overrides.containsKey(name) ? overrides.get(name)
+                    : types.get(i);
+            fields.add(Field.of(name, type));
+        }
+        return Schema.of(fields);
+    }
+
+    /**
+     * @return the inferred type of every sampled column, in column order.
+     */
+    public List<StandardSQLTypeName> inferTypes(Sample sample) {
+        return IntStream.range(0, sample.columns.size()).parallel()
+                .mapToObj(i -> inferType(sample.columns.get(i)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the most specific type every non-empty value parses as.
+     */
+    public static StandardSQLTypeName inferType(List<String> values) {
+        int candidates = ALL_CANDIDATES;
+        boolean sawValue = false;
+        for (String value : values) {
+            if (value.isEmpty()) {
+                continue;
+            }
+            sawValue = true;
+            for (int bit = 0; bit < CANDIDATES.length; bit++) {
+                if ((candidates & (1 << bit)) != 0 && !conforms(CANDIDATES[bit], value)) {
+                    candidates &= ~(1 << bit);
+                }
+            }
+            if (candidates == 0) {
+                return StandardSQLTypeName.STRING;
+            }
+        }
+        if (!sawValue) {
+            return StandardSQLTypeName.STRING;
+        }
+        return CANDIDATES[Integer.numberOfTrailingZeros(candidates)];
+    }
+
+    /**
+     * Checks whether a CSV value should be typed as the given type when
+     * inferring. Stricter than {@link #loadable}: zero-padded numbers, such as
+     * zip codes, are kept as STRING, only {@code true} and {@code false} are
+     * BOOL and a bare date is a DATE only. Empty values are NULL and conform
+     * to every type.
+     */
+    public static boolean conforms(StandardSQLTypeName type, CharSequence value) {
+        return conforms(type, value, false);
+    }
+
+    /**
+     * Checks whether BigQuery loads a CSV value into a column of the given
+     * type: zero-padded numbers into a numeric column, {@code 1}/{@code 0},
+     * {@code t}/{@code f}, {@code yes}/{@code no} and {@code y}/{@code n} in
+     * any case into BOOL, and a bare date into DATETIME or TIMESTAMP. Empty
+     * values are NULL and are loadable into every type.
+     */
+    public static boolean loadable(StandardSQLTypeName type, CharSequence value) {
+        return conforms(type, value, true);
+    }
+
+    // lenient accepts every form BigQuery loads, not only the ones typed as such when inferring
+    private static boolean conforms(StandardSQLTypeName type, CharSequence value, boolean lenient) {
+        if (value.length() == 0) {
+            return true;
+        }
+        switch (type) {
+            case BOOL:
+                return isBool(value) || lenient && isLoadableBool(value);
+            case INT64:
+                return isInt64(value, lenient);
+            case NUMERIC:
+                return isNumeric(value, lenient);
+            case FLOAT64:
+                return isFloat64(value, lenient);
+            case DATE:
+                return value.length() == 10 && isDate(value, 0);
+            case DATETIME:
+                return isDateTime(value, false) || lenient && value.length() == 10 && isDate(value, 0);
+            case TIMESTAMP:
+                return isDateTime(value, true) || lenient && value.length() == 10 && isDate(value, 0);
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isBool(CharSequence v) {
+        return equalsIgnoreCase(v, "true") || equalsIgnoreCase(v, "false");
+    }
+
+    // Other spellings BigQuery loads into BOOL
+    private static boolean isLoadableBool(CharSequence v) {
+        for (String form : LOADABLE_BOOLS) {
+            if (equalsIgnoreCase(v, form)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInt64(CharSequence v, boolean lenient) {
+        int start = signLength(v);
+        int digits = digitRun(v, start);
+        if (digits == 0 || start + digits != v.length() || !lenient && hasLeadingZero(v, start, digits)) {
+            return false;
+        }
+        if (digits - leadingZeros(v, start, digits) < 19) {
+            return true;
+        }
+        try {
+            Long.parseLong(v.toString());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isNumeric(CharSequence v, boolean lenient) {
+        int start = signLength(v);
+        int integer = digitRun(v, start);
+        if (integer == 0 || integer - leadingZeros(v, start, integer) > 29
+                || !lenient && hasLeadingZero(v, start, integer)) {
+            return false;
+        }
+        int i = start + integer;
+        if (i == v.length()) {
+            return true;
+        }
+        if (v.charAt(i) != '.') {
+            return false;
+        }
+        int fraction = digitRun(v, i + 1);
+        return fraction > 0 && fraction <= 9 && i + 1 + fraction == v.length();
+    }
+
+    private static boolean isFloat64(CharSequence v, boolean lenient) {
+        int i = signLength(v);
+        int integer = digitRun(v, i);
+        if (!lenient && hasLeadingZero(v, i, integer)) {
+            return false;
+        }
+        i += integer;
+        int fraction = 0;
+        if (i < v.length() && v.charAt(i) == '.') {
+            fraction = digitRun(v, i + 1);
+            i += 1 + fraction;
+        }
+        if (integer + fraction == 0) {
+            return false;
+        }
+        if (i < v.length() && (v.charAt(i) == 'e' || v.charAt(i) == 'E')) {
+            i++;
+            if (i < v.length() && (v.charAt(i) == '+' || v.charAt(i) == '-')) {
+                i++;
+            }
+            int exponent = digitRun(v, i);
+            if (exponent == 0) {
+                return false;
+            }
+            i += exponent;
+        }
+        return i == v.length();
+    }
+
+    // yyyy-MM-dd at offset
+    private static boolean isDate(CharSequence v, int at) {
+        if (v.length() < at + 10 || v.charAt(at + 4) != '-' || v.charAt(at + 7) != '-') {
+            return false;
+        }
+        int year = number(v, at, 4);
+        int month = number(v, at + 5, 2);
+        int day = number(v, at + 8, 2);
+        if (year < 1 || month < 1 || month > 12 || day < 1) {
+            return false;
+        }
+        return day <= YearMonth.of(year, month).lengthOfMonth();
+    }
+
+    // yyyy-MM-dd[ T]HH:mm[:ss[.ffffff]][zone]
+    private static boolean isDateTime(CharSequence v, boolean zoneAllowed) {
+        if (v.length() < 16 || !isDate(v, 0) || (v.charAt(10) != ' ' && v.charAt(10) != 'T')) {
+            return false;
+        }
+        if (v.charAt(13) != ':' || !inRange(v, 11, 2, 23) || !inRange(v, 14, 2, 59)) {
+            return false;
+        }
+        int i = 16;
+        if (i < v.length() && v.charAt(i) == ':') {
+            if (!inRange(v, i + 1, 2, 59)) {
+                return false;
+            }
+            i += 3;
+            if (i < v.length() && v.charAt(i) == '.') {
+                int fraction = digitRun(v, i + 1);
+                if (fraction == 0 || fraction > 6) {
+                    return false;
+                }
+                i += 1 + fraction;
+            }
+        }
+        if (i == v.length()) {
+            return true;
+        }
+        return zoneAllowed && isZone(v, i);
+    }
+
+    // Z, UTC, +HH, +HH:MM or +HHMM, optionally preceded by a space.
+    private static boolean isZone(CharSequence v, int i) {
+        if (v.charAt(i) == ' ') {
+            i++;
+        }
+        int rest = v.length() - i;
+        if (rest == 1) {
+            return v.charAt(i) == 'Z';
+        }
+        if (rest == 3 && equalsIgnoreCase(v.subSequence(i, v.length()), "UTC")) {
+            return true;
+        }
+        if (rest < 3 || (v.charAt(i) != '+' && v.charAt(i) != '-') || !inRange(v, i + 1, 2, 14)) {
+            return false;
+        }
+        if (rest == 3) {
+            return true;
+        }
+        int minutes = v.charAt(i + 3) == ':' ? i + 4 : i + 3;
+        return v.length() - minutes == 2 && inRange(v, minutes, 2, 59);
+    }
+
+    private static int signLength(CharSequence v) {
+        return v.length() > 0 && (v.charAt(0) == '-' || v.charAt(0) == '+') ? 1 : 0;
+    }
+
+    private static int digitRun(CharSequence v, int from) {
+        int i = from;
+        while (i < v.length() && v.charAt(i) >= '0' && v.charAt(i) <= '9') {
+            i++;
+        }
+        return i - from;
+    }
+
+    // Identifiers such as zip codes ("02134") must stay STRING.
+    private static boolean hasLeadingZero(CharSequence v, int start, int digits) {
+        return digits > 1 && v.charAt(start) == '0';
+    }
+
+    // Zeros before the last digit of a run, which do not count towards its precision.
+    private static int leadingZeros(CharSequence v, int start, int digits) {
+        int zeros = 0;
+        while (zeros < digits - 1 && v.charAt(start + zeros) == '0') {
+            zeros++;
+        }
+        return zeros;
+    }
+
+    // Parses a fixed-width run of digits, -1 if any character is not a digit.
+    private static int number(CharSequence v, int from, int width) {
+        if (v.length() < from + width) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = from; i < from + width; i++) {
+            char c = v.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private static boolean inRange(CharSequence v, int from, int width, int max) {
+        int n = number(v, from, width);
+        return n >= 0 && n <= max;
+    }
+
+    private static boolean equalsIgnoreCase(CharSequence v, String expected) {
+        if (v.length() != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (Character.toLowerCase(v.charAt(i)) != Character.toLowerCase(expected.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,380 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cvs.anbc.ahreports.exceptions.StorageException;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Splits a CSV stream on record boundaries into shards and uploads the shards in
+ * parallel as {@code prefix/part-00000.csv}, {@code prefix/part-00001.csv}, ...
+ *
+ * The source is read by the calling thread and dealt out in stripes of about
+ * one block, cut at record boundaries, to a number of lanes in turn. Each lane
+ * has one shard open at a time, drained into its own resumable upload through
+ * a small bounded queue, so as many uploads run at once as there are lanes
+ * while memory stays bounded by {@code queueDepth} blocks per lane. A lane
+ * closes its shard and opens the next one once the shard holds
+ * {@code shardSize} bytes. Every shard starts with the header record, so each
+ * can be loaded with {@code skipLeadingRows(1)} and all of them with a single
+ * wildcard URI. Records of a shard are not contiguous in the source, which a
+ * load does not need.
+ *
+ * Records end with LF, CRLF or a lone CR; line breaks inside quoted cells are
+ * not record boundaries.
+ *
+ * Shards can be written gzip-compressed ({@code part-00000.csv.gz}, ...).
+ * BigQuery reads a compressed file with a single worker, so sharding is what
+ * keeps the load parallel. Sizes are counted on the uncompressed CSV.
+ */
+public class ShardedCsvUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedCsvUploader.class);
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int QUEUE_DEPTH = 4;
+    private static final ByteBuffer END_OF_SHARD = ByteBuffer.allocate(0);
+
+    /**
+     * Objects written by a sharded upload.
+     */
+    public static final class Result {
+        private final String bucket;
+        private final String prefix;
+        private final List<BlobId> shards;
+        private final byte[] header;
+        private final byte[] head;
+        private final long bytes;
+        private final String suffix;
+
+        Result(String bucket, String prefix, List<BlobId> shards, byte[] header, byte[] head, long bytes,
+                String suffix) {
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.shards = shards;
+            this.header = header;
+            this.head = head;
+            this.bytes = bytes;
+            this.suffix = suffix;
+        }
+
+        public List<BlobId> getShards() {
+            return shards;
+        }
+
+        /**
+         * @return the raw header record, without its line terminator.
+         */
+        public byte[] getHeader() {
+            return header;
+        }
+
+        /**
+         * @return the header record followed by the first block of data, for
+         *         schema inference.
+         */
+        public byte[] getHead() {
+            return head;
+        }
+
+        /**
+         * @return uncompressed bytes read from the source.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return a URI matching every shard, for use as a load job source.
+         */
+        public String getWildcardUri() {
+            return "gs://" + bucket + "/" + prefix + "part-*" + suffix;
+        }
+    }
+
+    private final Storage storage;
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final boolean gzip;
+
+    /**
+     * @param storage   GCS client (or stand-in) the shards are written to.
+     * @param executor  runs the shard uploads; it must run as many tasks at
+     *                  once as an upload has lanes, e.g. a virtual thread per
+     *                  task executor.
+     * @param chunkSize bytes sent per resumable upload request.
+     * @param gzip      whether shards are written gzip-compressed.
+     */
+    public ShardedCsvUploader(Storage storage, ExecutorService executor, int chunkSize, boolean gzip) {
+        this.storage = storage;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Streams {@code in} into shards of roughly {@code shardSize} bytes,
+     * uploading up to {@code lanes} of them at the same time.
+     *
+     * @param in        uncompressed CSV source, read to the end but not
+     *                  closed.
+     * @param bucket    target bucket.
+     * @param prefix    object name prefix, ending with {@code /}.
+     * @param shardSize bytes of data after which a lane closes its shard.
+     * @param lanes     shards written at the same time, at least one.
+     * @return the shards written.
+     * @throws StorageException if the source is empty or a shard upload fails;
+     *                          shards already written are deleted.
+     * @throws IOException      if reading the source fails.
+     */
+    public Result upload(InputStream in, String bucket, String prefix, long shardSize, int lanes)
+            throws IOException {
+        PushbackInputStream source = new PushbackInputStream(in, 1);
+        byte[] headerLine = readHeaderLine(source);
+        if (headerLine.length == 0) {
+            throw new StorageException("failed to store empty file.");
+        }
+        List<BlobId> shards = new ArrayList<>();
+        List<Future<Long>> uploads = new ArrayList<>();
+        ShardWriter[] writers = new ShardWriter[Math.max(1, lanes)];
+        long total = headerLine.length;
+        byte[] head = headerLine;
+        try {
+            // The first lane is opened up front so a header-only file still yields a shard
+            int lane = 0;
+            writers[lane] = openShard(bucket, prefix, shards, uploads, headerLine);
+            long stripeBytes = 0;
+            boolean inQuotes = false;
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                if (total == headerLine.length) {
+                    head = Arrays.copyOf(headerLine, headerLine.length + read);
+                    System.arraycopy(buffer, 0, head, headerLine.length, read);
+                }
+                total += read;
+                int offset = 0;
+                while (offset < read) {
+                    if (stripeBytes < BLOCK_SIZE) {
+                        int length = (int) Math.min(read - offset, BLOCK_SIZE - stripeBytes);
+                        writers[lane].send(buffer, offset, length);
+                        inQuotes ^= hasOddQuotes(buffer, offset, offset + length);
+                        stripeBytes += length;
+                        offset += length;
+                        continue;
+                    }
+                    // Stripe is full: finish the current record, then move to the next lane.
+                    int recordEnd = indexOfRecordEnd(buffer, offset, read, inQuotes);
+                    if (recordEnd < 0) {
+                        writers[lane].send(buffer, offset, read - offset);
+                        inQuotes ^= hasOddQuotes(buffer, offset, read);
+                        stripeBytes += read - offset;
+                        offset = read;
+                    } else {
+                        inQuotes = false;
+                        writers[lane].send(buffer, offset, recordEnd + 1 - offset);
+                        offset = recordEnd + 1;
+                        stripeBytes = 0;
+                        lane = (lane + 1) % writers.length;
+                        if (writers[lane] != null && writers[lane].bytes >= shardSize) {
+                            writers[lane].finish();
+                            writers[lane] = null;
+                        }
+                        if (writers[lane] == null) {
+                            writers[lane] = openShard(bucket, prefix, shards, uploads, headerLine);
+                        }
+                    }
+                }
+            }
+            for (ShardWriter writer : writers) {
+                if (writer != null) {
+                    writer.finish();
+                }
+            }
+            for (Future<Long> upload : uploads) {
+                upload.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(shards, uploads);
+            throw new StorageException("Sharded upload was interrupted", e);
+        } catch (ExecutionException e) {
+            abort(shards, uploads);
+            throw new StorageException("Failed to upload shard to GCS bucket", e.getCause());
+        } catch (IOException | RuntimeException e) {
+            abort(shards, uploads);
+            throw e;
+        }
+        logger.info("Uploaded {} bytes as {} shards in {} lanes under gs://{}/{}", total, shards.size(),
+                writers.length, bucket, prefix);
+        return new Result(bucket, prefix, List.copyOf(shards), withoutLineEnd(headerLine), head, total, suffix());
+    }
+
+    private ShardWriter openShard(String bucket, String prefix, List<BlobId> shards, List<Future<Long>> uploads,
+            byte[] headerLine) throws InterruptedException, ExecutionException {
+        BlobId blobId = BlobId.of(bucket, String.format("%spart-%05d%s", prefix, shards.size(), suffix()));
+        BlobInfo.Builder blobInfo = BlobInfo.newBuilder(blobId).setContentType("text/csv");
+        if (gzip) {
+            blobInfo.setContentEncoding(Compression.GZIP_ENCODING);
+        }
+        ShardWriter shard = new ShardWriter(blobInfo.build());
+        shards.add(blobId);
+        shard.future = executor.submit(shard);
+        uploads.add(shard.future);
+        shard.send(headerLine, 0, headerLine.length);
+        shard.bytes = 0;
+        return shard;
+    }
+
+    private String suffix() {
+        return gzip ? ".csv.gz" : ".csv";
+    }
+
+    private void abort(List<BlobId> shards, List<Future<Long>> uploads) {
+        uploads.forEach(upload -> upload.cancel(true));
+        for (BlobId shard : shards) {
+            try {
+                storage.delete(shard);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to delete shard {}: {}", shard, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the first record including its line terminator.
+     */
+    private static byte[] readHeaderLine(PushbackInputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+        boolean inQuotes = false;
+        int b;
+        while ((b = in.read()) != -1) {
+            header.write(b);
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes) {
+                break;
+            } else if (b == '\r' && !inQuotes) {
+                int next = in.read();
+                if (next == '\n') {
+                    header.write(next);
+                } else if (next != -1) {
+                    in.unread(next);
+                }
+                break;
+            }
+        }
+        if (header.size() > 0 && b == -1) {
+            // Header-only file without a trailing line break.
+            header.write('\n');
+        }
+        return header.toByteArray();
+    }
+
+    private static byte[] withoutLineEnd(byte[] line) {
+        int length = line.length;
+        while (length > 0 && (line[length - 1] == '\n' || line[length - 1] == '\r')) {
+            length--;
+        }
+        return Arrays.copyOf(line, length);
+    }
+
+    /**
+     * Finds the last byte of the first record terminator outside quotes: a
+     * LF, the LF of a CRLF, or a lone CR. A CR ending the buffer is not taken,
+     * as its LF may start the next one. Escaped quotes ({@code ""}) toggle the
+     * state twice, so counting quotes is enough.
+     */
+    private static int indexOfRecordEnd(byte[] buffer, int from, int to, boolean inQuotes) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '"') {
+                inQuotes = !inQuotes;
+            } else if (!inQuotes && buffer[i] == '\n') {
+                return i;
+            } else if (!inQuotes && buffer[i] == '\r' && i + 1 < to) {
+                return buffer[i + 1] == '\n' ? i + 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasOddQuotes(byte[] buffer, int from, int to) {
+        boolean odd = false;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '"') {
+                odd = !odd;
+            }
+        }
+        return odd;
+    }
+
+    /**
+     * Drains the blocks of one shard into its resumable upload.
+     */
+    private final class ShardWriter implements Callable<Long> {
+        private final BlobInfo blobInfo;
+        private final BlockingQueue<ByteBuffer> blocks = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        private Future<Long> future;
+        private long bytes; // Data bytes sent, header excluded
+
+        ShardWriter(BlobInfo blobInfo) {
+            this.blobInfo = blobInfo;
+        }
+
+        void send(byte[] buffer, int offset, int length) throws InterruptedException, ExecutionException {
+            bytes += length;
+            put(ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+
+        void finish() throws InterruptedException, ExecutionException {
+            put(END_OF_SHARD);
+        }
+
+        private void put(ByteBuffer block) throws InterruptedException, ExecutionException {
+            while (!blocks.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                // Surface writer failures instead of waiting on a queue nobody drains.
+                if (future.isDone()) {
+                    future.get();
+                    throw new StorageException("Shard upload of " + blobInfo.getName() + " stopped early");
+                }
+            }
+        }
+
+        @Override
+        public Long call() throws Exception {
+            WriteChannel writer = storage.writer(blobInfo);
+            writer.setChunkSize(chunkSize);
+            CountingOutputStream written = new CountingOutputStream(Channels.newOutputStream(writer));
+            try (OutputStream out = gzip ? Compression.gzip(written) : written) {
+                ByteBuffer block;
+                while ((block = blocks.take()) != END_OF_SHARD) {
+                    out.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+                }
+            }
+            return written.getCount();
+        }
+    }
+}
@@ -1,20 +1,46 @@
+package com.cvs.anbc.ahreports.storage;
+
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.google.cloud.bigquery.StandardSQLTypeName;
+
+import java.io.InputStream;
 import java.nio.file.Path;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Map;
 
 public interface StorageService {
 
 	void init();
 
-	void store(MultipartFile file);
+	UploadSession store(MultipartFile file);
+
+    UploadSession storeStream(String fileName , InputStream body , long contentLength , long maxLength);
+
+    UploadSession getUploadSession(String uploadId);
+
+    List<String> getColumnsFromFile(String fileName);
+
+    BatchUploadResult storeBatch(List<MultipartFile> files , BatchUploadResult.LoadMode loadMode , String datasetName , String tableName , Map<String, StandardSQLTypeName> typeOverrides);
+
+    LoadJobStatus storeShardedAndLoad(MultipartFile file , String datasetName , String tableName , Map<String, StandardSQLTypeName> typeOverrides);
+
+    LoadJobStatus createOrReplaceBigQueryTable(String uploadId , String datasetName , String tableName , Map<String, StandardSQLTypeName> typeOverrides , TableLayout layout);
+
+    LoadJobStatus createOrReplaceBigQueryTableWithColumns(String uploadId , String datasetName , String tableName , List<String> selectedColumns , Map<String, StandardSQLTypeName> typeOverrides , TableLayout layout);
+
+    List<LoadJobStatus> createOrReplaceBigQueryTables(String uploadId , List<TableSpec> tables , Map<String, StandardSQLTypeName> typeOverrides);
+
+    AppendBatcher.Batch appendToBigQueryTable(String uploadId , String datasetName , String tableName , Map<String, StandardSQLTypeName> typeOverrides);
+
+    List<AppendBatcher.Batch> flushAppends(String datasetName , String tableName);
 
-    void createOrReplaceBigQueryTable(String fileName , String datasetName , String tableName);
+    AppendBatcher.Batch getAppendBatch(String batchId);
 
-    void createOrReplaceBigQueryTableWithColumns(String fileName , String datasetName , String tableName List<String> selectedColumns);
+    LoadJobStatus getLoadJob(String jobId);
 
-	Stream<Path> loadAll();
+	BucketIndex.Page loadAll(String prefix , String pageToken , int pageSize);
 
 	Path load(String filename);
 
@@ -22,4 +48,4 @@ public interface StorageService {
 
 	void deleteAll();
 
-}
\ No newline at end of file
+}
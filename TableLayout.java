@@ -0,0 +1,280 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.google.cloud.bigquery.Clustering;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.RangePartitioning;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.TimePartitioning;
+
+/**
+ * Partitioning and clustering of a table created by a load.
+ *
+ * A table is partitioned either by time, on a DATE, DATETIME or TIMESTAMP
+ * column, or by integer range, on an INT64 column, and clustered on up to four
+ * columns. Columns are named by header cell or by BigQuery column name, like
+ * type overrides, and resolved against the load schema.
+ */
+public final class TableLayout {
+
+    /**
+     * Flat table: no partitioning, no clustering.
+     */
+    public static final TableLayout NONE = new TableLayout(null, null, null, null, null, null, null);
+
+    // BigQuery clusters on at most four columns.
+    private static final int MAX_CLUSTERING_COLUMNS = 4;
+
+    private final String partitionColumn;
+    private final TimePartitioning.Type partitionType;
+    private final Long rangeStart;
+    private final Long rangeEnd;
+    private final Long rangeInterval;
+    private final List<String> clusteringColumns;
+    private final Long partitionExpirationDays;
+
+    /**
+     * @param partitionColumn         column the table is partitioned on, may be
+     *                                {@code null} for no partitioning.
+     * @param partitionType           time granularity, e.g. DAY or MONTH;
+     *                                {@code null} for an integer-range
+     *                                partition or DAY by default.
+     * @param rangeStart              first value of an integer-range
+     *                                partition, inclusive.
+     * @param rangeEnd                end of an integer-range partition,
+     *                                exclusive.
+     * @param rangeInterval           width of each integer-range partition.
+     * @param clusteringColumns       up to four columns, may be {@code null}.
+     * @param partitionExpirationDays days a time partition is kept, may be
+     *                                {@code null} to keep them.
+     * @throws IllegalArgumentException if the options contradict each other.
+     */
+    public TableLayout(String partitionColumn, TimePartitioning.Type partitionType, Long rangeStart, Long rangeEnd,
+            Long rangeInterval, List<String> clusteringColumns, Long partitionExpirationDays) {
+        boolean range = rangeStart != null || rangeEnd != null || rangeInterval != null;
+        if (partitionColumn == null && (partitionType != null || range || partitionExpirationDays != null)) {
+            throw new IllegalArgumentException("Partitioning options require a partition column");
+        }
+        if (range) {
+            if (partitionType != null) {
+                throw new IllegalArgumentException("A table is partitioned by time or by integer range, not both");
+            }
+            if (rangeStart == null || rangeEnd == null || rangeInterval == null) {
+                throw new IllegalArgumentException("An integer-range partition needs a start, an end and an interval");
+            }
+            if (rangeInterval <= 0 || rangeEnd <= rangeStart) {
+                throw new IllegalArgumentException("An integer-range partition needs start < end and interval > 0");
+            }
+            if (partitionExpirationDays != null) {
+                throw new IllegalArgumentException("Partition expiration applies to time partitions only");
+            }
+        }
+        if (partitionExpirationDays != null && partitionExpirationDays <= 0) {
+            throw new IllegalArgumentException("Partition expiration must be a positive number of days");
+        }
+        if (clusteringColumns != null && clusteringColumns.size() > MAX_CLUSTERING_COLUMNS) {
+            throw new IllegalArgumentException("At most " + MAX_CLUSTERING_COLUMNS + " clustering columns, got "
+                    + clusteringColumns.size());
+        }
+        this.partitionColumn = partitionColumn;
+        this.partitionType = partitionColumn != null && !range && partitionType == null ? TimePartitioning.Type.DAY
+                : partitionType;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.rangeInterval = rangeInterval;
+        this.clusteringColumns = clusteringColumns == null || clusteringColumns.isEmpty() ? null
+                : List.copyOf(clusteringColumns);
+        this.partitionExpirationDays = partitionExpirationDays;
+    }
+
+    public boolean isFlat() {
+        return partitionColumn == null && clusteringColumns == null;
+    }
+
+    /**
+     * Suggests a time partition column among the typed columns of an upload:
+     * the first DATE column, or else the first TIMESTAMP, or else the first
+     * DATETIME one.
+     *
+     * @param headerColumns header cells of the file.
+     * @param types         inferred type names, one per header cell; may be
+     *                      {@code null} when types were not inferred.
+     * @return the header cell of the suggested column, or {@code null}.
+     */
+    public static String suggestPartitionColumn(List<String> headerColumns, List<String> types) {
+        if (types == null) {
+            return null;
+        }
+        for (StandardSQLTypeName preferred : new StandardSQLTypeName[] { StandardSQLTypeName.DATE,
+                StandardSQLTypeName.TIMESTAMP, StandardSQLTypeName.DATETIME }) {
+            int index = types.indexOf(preferred.name());
+            if (index >= 0) {
+                return headerColumns.get(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the columns against a load schema without changing anything.
+     *
+     * @param headerColumns header cells, one per schema field.
+     * @param schema        schema of the load.
+     * @throws IllegalArgumentException if a column is unknown or of a type it
+     *                                  cannot be partitioned on.
+     */
+    public void validate(List<String> headerColumns, Schema schema) {
+        if (partitionColumn != null) {
+            Field field = resolve(partitionColumn, headerColumns, schema);
+            StandardSQLTypeName type = field.getType().getStandardType();
+            if (partitionType == null && type != StandardSQLTypeName.INT64) {
+                throw new IllegalArgumentException("Integer-range partition column " + partitionColumn
+                        + " must be INT64, not " + type);
+            }
+            if (partitionType != null && type != StandardSQLTypeName.DATE && type != StandardSQLTypeName.DATETIME
+                    && type != StandardSQLTypeName.TIMESTAMP) {
+                throw new IllegalArgumentException("Time partition column " + partitionColumn
+                        + " must be DATE, DATETIME or TIMESTAMP, not " + type);
+            }
+            if (partitionType == TimePartitioning.Type.HOUR && type == StandardSQLTypeName.DATE) {
+                throw new IllegalArgumentException("A DATE column cannot be partitioned by HOUR");
+            }
+        }
+        if (clusteringColumns != null) {
+            for (String column : clusteringColumns) {
+                resolve(column, headerColumns, schema);
+            }
+        }
+    }
+
+    /**
+     * Sets the partitioning and clustering of a load configuration.
+     *
+     * @param loadConfig    configuration of the load creating the table.
+     * @param headerColumns header cells, one per schema field.
+     * @param schema        schema of the load.
+     * @return {@code loadConfig}.
+     * @throws IllegalArgumentException if a column is unknown or of a type it
+     *                                  cannot be partitioned on.
+     */
+    public LoadJobConfiguration.Builder applyTo(LoadJobConfiguration.Builder loadConfig, List<String> headerColumns,
+            Schema schema) {
+        validate(headerColumns, schema);
+        TimePartitioning timePartitioning = timePartitioning(headerColumns, schema);
+        if (timePartitioning != null) {
+            loadConfig.setTimePartitioning(timePartitioning);
+        }
+        RangePartitioning rangePartitioning = rangePartitioning(headerColumns, schema);
+        if (rangePartitioning != null) {
+            loadConfig.setRangePartitioning(rangePartitioning);
+        }
+        Clustering clustering = clustering(headerColumns, schema);
+        if (clustering != null) {
+            loadConfig.setClustering(clustering);
+        }
+        return loadConfig;
+    }
+
+    /**
+     * Tells whether an existing table already has this layout. A truncating
+     * load cannot change the partitioning or clustering of a table, so a
+     * table that differs has to be dropped first.
+     *
+     * @param definition definition of the existing table.
+     * @param headerColumns header cells, one per schema field.
+     * @param schema        schema of the load.
+     */
+    public boolean matches(StandardTableDefinition definition, List<String> headerColumns, Schema schema) {
+        TimePartitioning timePartitioning = timePartitioning(headerColumns, schema);
+        TimePartitioning existing = definition.getTimePartitioning();
+        boolean sameTime = timePartitioning == null ? existing == null
+                : existing != null && existing.getType() == timePartitioning.getType()
+                        && Objects.equals(existing.getField(), timePartitioning.getField());
+        return sameTime
+                && Objects.equals(definition.getRangePartitioning(), rangePartitioning(headerColumns, schema))
+                && Objects.equals(clusteringFields(definition.getClustering()),
+                        clusteringFields(clustering(headerColumns, schema)));
+    }
+
+    private TimePartitioning timePartitioning(List<String> headerColumns, Schema schema) {
+        if (partitionColumn == null || partitionType == null) {
+            return null;
+        }
+        TimePartitioning.Builder builder = TimePartitioning.newBuilder(partitionType)
+                .setField(resolve(partitionColumn, headerColumns, schema).getName());
+        if (partitionExpirationDays != null) {
+            builder.setExpirationMs(TimeUnit.DAYS.toMillis(partitionExpirationDays));
+        }
+        return builder.build();
+    }
+
+    private RangePartitioning rangePartitioning(List<String> headerColumns, Schema schema) {
+        if (partitionColumn == null || partitionType != null) {
+            return null;
+        }
+        return RangePartitioning.newBuilder()
+                .setField(resolve(partitionColumn, headerColumns, schema).getName())
+                .setRange(RangePartitioning.Range.newBuilder()
+                        .setStart(rangeStart)
+                        .setEnd(rangeEnd)
+                        .setInterval(rangeInterval)
+                        .build())
+                .build();
+    }
+
+    private Clustering clustering(List<String> headerColumns, Schema schema) {
+        if (clusteringColumns == null) {
+            return null;
+        }
+        return Clustering.newBuilder()
+                .setFields(clusteringColumns.stream().map(column -> resolve(column, headerColumns, schema).getName())
+                        .collect(Collectors.toList()))
+                .build();
+    }
+
+    private static List<String> clusteringFields(Clustering clustering) {
+        return clustering == null ? null : clustering.getFields();
+    }
+
+    // Finds a column by header cell first, then by BigQuery column name.
+    private static Field resolve(String column, List<String> headerColumns, Schema schema) {
+        int index = headerColumns.indexOf(column);
+        if (index >= 0) {
+            return schema.getFields().get(index);
+        }
+        for (Field field : schema.getFields()) {
+            if (field.getName().equals(column)) {
+                return field;
+            }
+        }
+        throw new IllegalArgumentException("Column '" + column + "' is not present in the table columns "
+                + headerColumns);
+    }
+
+    @Override
+    public String toString() {
+        if (isFlat()) {
+            return "flat";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (partitionColumn != null) {
+            sb.append("partition=").append(partitionColumn).append(':')
+                    .append(partitionType != null ? partitionType
+                            : "range(" + rangeStart + "," + rangeEnd + "," + rangeInterval + ")");
+            if (partitionExpirationDays != null) {
+                sb.append(":expire=").append(partitionExpirationDays).append('d');
+            }
+        }
+        if (clusteringColumns != null) {
+            sb.append(sb.length() > 0 ? " " : "").append("cluster=").append(String.join(",", clusteringColumns));
+        }
+        return sb.toString();
+    }
+}
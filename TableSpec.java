@@ -0,0 +1,53 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.util.List;
+
+/**
+ * One table of a fan-out load: where it goes, the columns it keeps and how it
+ * is laid out.
+ */
+public final class TableSpec {
+
+    private final String datasetName;
+    private final String tableName;
+    private final List<String> selectedColumns;
+    private final TableLayout layout;
+
+    /**
+     * @param datasetName     target dataset.
+     * @param tableName       target table.
+     * @param selectedColumns header names to keep, in table column order.
+     * @param layout          partitioning and clustering of the table, on
+     *                        selected columns; {@code null} for a flat table.
+     * @throws IllegalArgumentException if a name is blank or no column is
+     *                                  selected.
+     */
+    public TableSpec(String datasetName, String tableName, List<String> selectedColumns, TableLayout layout) {
+        if (datasetName == null || datasetName.isBlank() || tableName == null || tableName.isBlank()) {
+            throw new IllegalArgumentException("Every table needs a dataset and a table name");
+        }
+        if (selectedColumns == null || selectedColumns.isEmpty()) {
+            throw new IllegalArgumentException("No columns selected for table " + tableName);
+        }
+        this.datasetName = datasetName;
+        this.tableName = tableName;
+        this.selectedColumns = List.copyOf(selectedColumns);
+        this.layout = layout == null ? TableLayout.NONE : layout;
+    }
+
+    public String getDatasetName() {
+        return datasetName;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public List<String> getSelectedColumns() {
+        return selectedColumns;
+    }
+
+    public TableLayout getLayout() {
+        return layout;
+    }
+}
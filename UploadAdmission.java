@@ -0,0 +1,194 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control of uploads, so a node under load turns requests away
+ * instead of thrashing.
+ *
+ * An upload is admitted only while all three limits have room: the number of
+ * uploads running at once, the bytes of the uploads in flight, as declared by
+ * their {@code Content-Length}, and the temporary disk space they may spool
+ * to. A chunked streaming upload declares no length and counts as
+ * {@code maxStreamBytes}, the most it may send. Reservations are released
+ * when the upload request ends, successful or not.
+ */
+@Component
+public class UploadAdmission {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadAdmission.class);
+
+    /**
+     * Limits an upload can be turned away by.
+     */
+    public enum Limit {
+        // Uploads running at once.
+        CONCURRENCY,
+        // Bytes of the uploads in flight.
+        BYTES,
+        // Temporary disk space of spooled uploads.
+        DISK;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final PipelineMetrics metrics;
+    private final Semaphore slots;
+    private final long byteBudget;
+    private final long diskBudget;
+    private final long retryAfterSeconds;
+    private final long maxStreamBytes;
+    private final Path tempDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicLong diskReserved = new AtomicLong();
+
+    /**
+     * @param metrics           counts rejected uploads.
+     * @param maxConcurrent     uploads running at once.
+     * @param byteBudget        total declared bytes of the uploads in flight.
+     * @param diskBudget        total temporary disk space reserved by
+     *                          spooled uploads.
+     * @param retryAfterSeconds delay suggested to rejected clients.
+     * @param maxStreamBytes    largest streaming upload, whether its length
+     *                          is declared or not.
+     */
+    public UploadAdmission(PipelineMetrics metrics,
+            @Value("${storage.admission.maxConcurrent:16}") int maxConcurrent,
+            @Value("${storage.admission.byteBudget:21474836480}") long byteBudget,
+            @Value("${storage.admission.diskBudget:10737418240}") long diskBudget,
+            @Value("${storage.admission.retryAfterSeconds:10}") long retryAfterSeconds,
+            @Value("${storage.admission.maxStreamBytes:10737418240}") long maxStreamBytes) {
+        this.metrics = metrics;
+        this.slots = new Semaphore(maxConcurrent);
+        this.byteBudget = byteBudget;
+        this.diskBudget = diskBudget;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.maxStreamBytes = maxStreamBytes;
+    }
+
+    /**
+     * Admits an upload if every limit has room for it, without waiting.
+     *
+     * @param bytes     declared size of the upload.
+     * @param diskBytes temporary disk space the upload may use, 0 when it is
+     *                  streamed.
+     * @return the permit of an admitted upload, to be closed when it ends, or
+     *         a rejection naming the saturated limit.
+     */
+    public Permit tryAdmit(long bytes, long diskBytes) {
+        if (!slots.tryAcquire()) {
+            return reject(Limit.CONCURRENCY);
+        }
+        if (!reserve(bytesInFlight, bytes, byteBudget)) {
+            slots.release();
+            return reject(Limit.BYTES);
+        }
+        if (diskBytes > 0 && (!reserve(diskReserved, diskBytes, diskBudget) || !fitsOnDisk(diskBytes))) {
+            bytesInFlight.addAndGet(-bytes);
+            slots.release();
+            return reject(Limit.DISK);
+        }
+        return new Permit(bytes, diskBytes, null);
+    }
+
+    // Adds to a reservation unless that would exceed the budget.
+    private static boolean reserve(AtomicLong reserved, long amount, long budget) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + amount > budget) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + amount));
+        return true;
+    }
+
+    // Checks the space actually left against every reservation, this one included; a failed check releases it.
+    private boolean fitsOnDisk(long diskBytes) {
+        long usable;
+        try {
+            usable = Files.getFileStore(tempDir).getUsableSpace();
+        } catch (IOException e) {
+            logger.warn("Cannot read the free space of {}: {}", tempDir, e.getMessage());
+            return true;
+        }
+        if (usable >= diskReserved.get()) {
+            return true;
+        }
+        diskReserved.addAndGet(-diskBytes);
+        return false;
+    }
+
+    private Permit reject(Limit limit) {
+        metrics.uploadRejected(limit.tag());
+        logger.info("Upload rejected: {} limit reached", limit.tag());
+        return new Permit(0, 0, limit);
+    }
+
+    /**
+     * @return seconds a rejected client is asked to wait before retrying.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long getMaxStreamBytes() {
+        return maxStreamBytes;
+    }
+
+    /**
+     * Reservation of an admitted upload, or the reason it was rejected.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long bytes;
+        private final long diskBytes;
+        private final Limit saturated;
+        private boolean closed;
+
+        private Permit(long bytes, long diskBytes, Limit saturated) {
+            this.bytes = bytes;
+            this.diskBytes = diskBytes;
+            this.saturated = saturated;
+        }
+
+        public boolean isAdmitted() {
+            return saturated == null;
+        }
+
+        /**
+         * @return the limit that turned the upload away, {@code null} if it
+         *         was admitted.
+         */
+        public Limit getSaturated() {
+            return saturated;
+        }
+
+        /**
+         * Releases the reservations of an admitted upload. Later calls are
+         * ignored.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed || saturated != null) {
+                return;
+            }
+            closed = true;
+            bytesInFlight.addAndGet(-bytes);
+            diskReserved.addAndGet(-diskBytes);
+            slots.release();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.cvs.anbc.ahreports.controller;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.cvs.anbc.ahreports.storage.UploadAdmission;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Admits or turns away uploads before their body is read: multipart requests,
+ * which the dispatcher spools to disk, and streaming uploads. Saturated
+ * limits are answered with 429 and a {@code Retry-After} header straight
+ * away; the reservations of an admitted upload are held until its request
+ * ends.
+ */
+@Component
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    static final String STREAM_PATH = "/upload-stream/";
+
+    private final UploadAdmission admission;
+
+    public UploadAdmissionFilter(UploadAdmission admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long length = request.getContentLengthLong();
+        boolean multipart = isMultipart(request);
+        if (length < 0 && multipart) {
+            response.sendError(HttpStatus.LENGTH_REQUIRED.value(), "Uploads must declare their Content-Length");
+            return;
+        }
+        if (!multipart && length > admission.getMaxStreamBytes()) {
+            response.sendError(HttpStatus.PAYLOAD_TOO_LARGE.value(),
+                    "Streaming uploads are limited to " + admission.getMaxStreamBytes() + " bytes");
+            return;
+        }
+        // A chunked stream may send up to the limit, which the upload enforces as it reads
+        if (length < 0) {
+            length = admission.getMaxStreamBytes();
+        }
+        // Only a multipart body is spooled; it is streamed to GCS from there
+        long diskBytes = multipart ? length : 0;
+        try (UploadAdmission.Permit permit = admission.tryAdmit(length, diskBytes)) {
+            if (!permit.isAdmitted()) {
+                response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(admission.getRetryAfterSeconds()));
+                response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(),
+                        "Upload capacity is saturated (" + permit.getSaturated() + "), retry later");
+                return;
+            }
+            chain.doFilter(request, response);
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !isMultipart(request) && !request.getRequestURI().startsWith(request.getContextPath() + STREAM_PATH);
+    }
+
+    private static boolean isMultipart(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.startsWith("multipart/");
+    }
+}
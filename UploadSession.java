@@ -0,0 +1,109 @@
+package com.cvs.anbc.ahreports.storage;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * An uploaded object as seen by later requests: what was stored and what was
+ * learned while streaming it. Sessions are immutable and kept in an
+ * {@link UploadSessionStore}, so any node can serve a request that refers to
+ * an upload by id.
+ */
+public class UploadSession {
+
+    private final String id;
+    private final String objectName;
+    private final Long generation;
+    private final long size;
+    private final String md5;
+    private final String crc32c;
+    private final List<String> columns;
+    private final List<String> types;
+    private final Instant createdAt;
+
+    /**
+     * Creates a session with a new id.
+     *
+     * @param objectName object name in the bucket.
+     * @param generation GCS generation written by the upload, {@code null} if
+     *                   unknown.
+     * @param hash       content hash and size of the file.
+     * @param columns    header cells in file order.
+     * @param types      BigQuery type names inferred for the columns, or
+     *                   {@code null} if inference is off.
+     */
+    public UploadSession(String objectName, Long generation, ContentHash hash, List<String> columns,
+            List<String> types) {
+        this(UUID.randomUUID().toString(), objectName, generation, hash.getSize(), hash.getMd5(), hash.getCrc32c(),
+                columns, types, Instant.now());
+    }
+
+    @JsonCreator
+    public UploadSession(@JsonProperty("id") String id, @JsonProperty("objectName") String objectName,
+            @JsonProperty("generation") Long generation, @JsonProperty("size") long size,
+            @JsonProperty("md5") String md5, @JsonProperty("crc32c") String crc32c,
+            @JsonProperty("columns") List<String> columns, @JsonProperty("types") List<String> types,
+            @JsonProperty("createdAt") Instant createdAt) {
+        this.id = id;
+        this.objectName = objectName;
+        this.generation = generation;
+        this.size = size;
+        this.md5 = md5;
+        this.crc32c = crc32c;
+        this.columns = columns;
+        this.types = types;
+        this.createdAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getObjectName() {
+        return objectName;
+    }
+
+    public Long getGeneration() {
+        return generation;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return base64 MD5 of the content, as reported by GCS.
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @return base64 CRC32C of the content, as reported by GCS.
+     */
+    public String getCrc32c() {
+        return crc32c;
+    }
+
+    /**
+     * @return header cells in file order.
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return inferred BigQuery type names, one per column, or {@code null}.
+     */
+    public List<String> getTypes() {
+        return types;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,17 @@
+package com.cvs.anbc.ahreports.storage;
+
+/**
+ * Keeps {@link UploadSession}s between the upload and the requests that use
+ * it. Implementations are selected with {@code storage.session.store}.
+ */
+public interface UploadSessionStore {
+
+    void save(UploadSession session);
+
+    /**
+     * @return the session, or {@code null} if it is unknown or has expired.
+     */
+    UploadSession get(String id);
+
+    void delete(String id);
+}
@@ -0,0 +1,156 @@
+package com.cvs.anbc.ahreports.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cvs.anbc.ahreports.storage.BigQueryColumnNames;
+import com.cvs.anbc.ahreports.storage.ColumnarConverter;
+import com.cvs.anbc.ahreports.storage.CsvProjectionEngine;
+import com.cvs.anbc.ahreports.storage.GcsStreamUploader;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+
+/**
+ * Conversion of a whole CSV object into the file loaded by BigQuery, against
+ * the in-memory {@code LocalStorageHelper} stand-in, fully offline: the CSV
+ * rewrite (plain and gzip) next to the typed Avro and Parquet conversions.
+ *
+ * {@code mb} is reported as MB/s of CSV read and {@code outMb} as MB/s of
+ * output written, so dividing the two gives the size of the loaded file
+ * relative to the CSV:
+ *
+ * <pre>
+ * java -jar benchmarks.jar ConversionBenchmark
+ * java -jar benchmarks.jar ConversionBenchmark -p target=PARQUET_ZSTD -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+    private static final String BUCKET = "bench-bucket";
+    private static final long SEED = 42;
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Output of one run: CSV as the load path writes it today, or a typed
+     * format with its block compression.
+     */
+    public enum Target {
+        CSV,
+        CSV_GZIP,
+        AVRO_SNAPPY,
+        AVRO_ZSTD,
+        PARQUET_SNAPPY,
+        PARQUET_ZSTD
+    }
+
+    @Param({ "100MB" })
+    public String size;
+
+    @Param({ "16" })
+    public int columns;
+
+    @Param({ "CSV", "CSV_GZIP", "AVRO_SNAPPY", "AVRO_ZSTD", "PARQUET_SNAPPY", "PARQUET_ZSTD" })
+    public Target target;
+
+    private Storage storage;
+    private BlobId source;
+    private List<String> allColumns;
+    private Schema schema;
+    private CsvProjectionEngine projectionEngine;
+    private ColumnarConverter converter;
+
+    /**
+     * Throughput counters, reported per second by JMH.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double mb;
+        public double outMb;
+        public long rows;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        storage = LocalStorageHelper.getOptions().getService();
+        source = BlobId.of(BUCKET, "source.csv");
+        new GcsStreamUploader(storage, CHUNK_SIZE).upload(BlobInfo.newBuilder(source).build(),
+                new SyntheticCsvInputStream(columns, SyntheticCsvInputStream.parseSize(size), 0.05, 0.05, SEED));
+
+        allColumns = Arrays.asList(SyntheticCsvInputStream.columnNames(columns));
+        schema = syntheticSchema(allColumns);
+        switch (target) {
+            case CSV:
+            case CSV_GZIP:
+                projectionEngine = new CsvProjectionEngine(storage, CHUNK_SIZE, Long.MAX_VALUE, ',',
+                        target == Target.CSV_GZIP);
+                break;
+            default:
+                String[] parts = target.name().split("_");
+                converter = new ColumnarConverter(storage, CHUNK_SIZE, Long.MAX_VALUE, ',',
+                        ColumnarConverter.Format.valueOf(parts[0]), ColumnarConverter.Codec.valueOf(parts[1]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.delete(source);
+    }
+
+    /**
+     * Types of the generated columns, which cycle through integer, decimal,
+     * date and text.
+     */
+    private static Schema syntheticSchema(List<String> columnNames) {
+        StandardSQLTypeName[] cycle = { StandardSQLTypeName.INT64, StandardSQLTypeName.NUMERIC,
+                StandardSQLTypeName.DATE, StandardSQLTypeName.STRING };
+        List<String> names = BigQueryColumnNames.normalize(columnNames);
+        Field[] fields = new Field[names.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = Field.of(names.get(i), cycle[i % cycle.length]);
+        }
+        return Schema.of(fields);
+    }
+
+    @Benchmark
+    public CsvProjectionEngine.Result convert(Counters counters) throws IOException {
+        BlobId output = BlobId.of(BUCKET, "converted-" + UUID.randomUUID());
+        CsvProjectionEngine.Result result = converter == null
+                ? projectionEngine.project(source, BlobInfo.newBuilder(output).build(), allColumns, null, null)
+                : converter.convert(source, BlobInfo.newBuilder(output).build(), allColumns, schema, null);
+        storage.delete(output);
+        counters.mb += result.getBytesRead() / 1e6;
+        counters.outMb += result.getBytesWritten() / 1e6;
+        counters.rows += result.getRows();
+        return result;
+    }
+}
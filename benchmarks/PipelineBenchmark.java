@@ -0,0 +1,189 @@
+package com.cvs.anbc.ahreports.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cvs.anbc.ahreports.storage.CsvHeaderReader;
+import com.cvs.anbc.ahreports.storage.CsvProjectionEngine;
+import com.cvs.anbc.ahreports.storage.CsvTokenizer;
+import com.cvs.anbc.ahreports.storage.GcsStreamUploader;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+
+/**
+ * Benchmarks of the upload-to-BigQuery pipeline stages on synthetic CSV,
+ * against the in-memory {@code LocalStorageHelper} stand-in, fully offline.
+ *
+ * Each invocation processes a whole file. The {@code mb} counter is reported
+ * per second, i.e. as MB/s, and {@code rows} as rows/s. Run with the GC
+ * profiler and divide {@code gc.alloc.rate.norm} by the rows per invocation
+ * to get bytes allocated per row:
+ *
+ * <pre>
+ * java -jar benchmarks.jar PipelineBenchmark -prof gc
+ * java -Xmx12g -jar benchmarks.jar PipelineBenchmark -p size=2GB -p quoteDensity=0.1
+ * </pre>
+ *
+ * Stages that keep the file in the stand-in hold it on the heap, so size the
+ * heap accordingly for multi-GB runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    private static final String BUCKET = "bench-bucket";
+    private static final long SEED = 42;
+
+    @Param({ "10MB", "100MB" })
+    public String size;
+
+    @Param({ "8", "64" })
+    public int columns;
+
+    @Param({ "0.0", "0.1" })
+    public double quoteDensity;
+
+    @Param({ "0.0", "0.2" })
+    public double utf8Density;
+
+    // Row validation during projections, to measure its overhead on the parse
+    @Param({ "false", "true" })
+    public boolean validate;
+
+    private long bytes;
+    private Storage storage;
+    private BlobId source;
+    private List<String> selectedColumns;
+    private List<String> allColumns;
+    private GcsStreamUploader uploader;
+    private CsvProjectionEngine projectionEngine;
+    private CsvHeaderReader headerReader;
+
+    /**
+     * Throughput counters, reported per second by JMH.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double mb;
+        public long rows;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        bytes = SyntheticCsvInputStream.parseSize(size);
+        storage = LocalStorageHelper.getOptions().getService();
+        uploader = new GcsStreamUploader(storage, 256 * 1024);
+        projectionEngine = new CsvProjectionEngine(storage, 256 * 1024, Long.MAX_VALUE, ',', false);
+        headerReader = new CsvHeaderReader(storage, 8 * 1024, 1024 * 1024, ',');
+
+        source = BlobId.of(BUCKET, "source.csv");
+        uploader.upload(BlobInfo.newBuilder(source).build(), newSource());
+
+        allColumns = Arrays.asList(SyntheticCsvInputStream.columnNames(columns));
+        selectedColumns = new ArrayList<>();
+        // Every third column, in reverse order, to exercise reordering.
+        for (int i = columns - 1; i >= 0; i -= 3) {
+            selectedColumns.add(allColumns.get(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.delete(source);
+    }
+
+    private SyntheticCsvInputStream newSource() {
+        return new SyntheticCsvInputStream(columns, bytes, quoteDensity, utf8Density, SEED);
+    }
+
+    @Benchmark
+    public List<String> headerParse() throws IOException {
+        return headerReader.readHeader(source);
+    }
+
+    @Benchmark
+    public void tokenize(Counters counters, Blackhole blackhole) throws IOException {
+        SyntheticCsvInputStream in = newSource();
+        CsvTokenizer tokenizer = new CsvTokenizer(new InputStreamReader(in, StandardCharsets.UTF_8), ',', true);
+        while (tokenizer.next()) {
+            blackhole.consume(tokenizer.cellCount());
+        }
+        counters.mb += bytes / 1e6;
+        counters.rows += in.rows();
+    }
+
+    @Benchmark
+    public CsvProjectionEngine.Result projection(Counters counters) throws IOException {
+        return project(selectedColumns, counters);
+    }
+
+    @Benchmark
+    public CsvProjectionEngine.Result rewrite(Counters counters) throws IOException {
+        return project(allColumns, counters);
+    }
+
+    @Benchmark
+    public long upload(Counters counters) throws IOException {
+        SyntheticCsvInputStream in = newSource();
+        BlobId target = BlobId.of(BUCKET, "upload-" + UUID.randomUUID() + ".csv");
+        long written = uploader.upload(BlobInfo.newBuilder(target).build(), in);
+        storage.delete(target);
+        counters.mb += written / 1e6;
+        counters.rows += in.rows();
+        return written;
+    }
+
+    private CsvProjectionEngine.Result project(List<String> columnsToKeep, Counters counters) throws IOException {
+        BlobId target = BlobId.of(BUCKET, "projected-" + UUID.randomUUID() + ".csv");
+        CsvProjectionEngine.Result result = projectionEngine.project(source, BlobInfo.newBuilder(target).build(),
+                columnsToKeep, null, null, validate ? typesOf(columnsToKeep) : null, null);
+        storage.delete(target);
+        counters.mb += result.getBytesRead() / 1e6;
+        counters.rows += result.getRows();
+        return result;
+    }
+
+    /**
+     * Types of the generated columns, which cycle through integer, decimal,
+     * date and text.
+     */
+    private List<StandardSQLTypeName> typesOf(List<String> columnsToKeep) {
+        StandardSQLTypeName[] cycle = { StandardSQLTypeName.INT64, StandardSQLTypeName.NUMERIC,
+                StandardSQLTypeName.DATE, StandardSQLTypeName.STRING };
+        List<StandardSQLTypeName> types = new ArrayList<>(columnsToKeep.size());
+        for (String column : columnsToKeep) {
+            types.add(cycle[allColumns.indexOf(column) % cycle.length]);
+        }
+        return types;
+    }
+}
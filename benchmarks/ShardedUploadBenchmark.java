@@ -0,0 +1,93 @@
+package com.cvs.anbc.ahreports.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cvs.anbc.ahreports.storage.ShardedCsvUploader;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+
+/**
+ * Throughput of {@link ShardedCsvUploader} as the shard count grows, against
+ * the in-memory {@code LocalStorageHelper} stand-in. The stand-in has no
+ * network latency, so the numbers show the cost of line-boundary splitting and
+ * how the write path scales across upload threads; real GCS gains are larger.
+ * With {@code gzip=true} the shards are compressed by the upload threads.
+ *
+ * Run offline with {@code java -jar benchmarks.jar ShardedUploadBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedUploadBenchmark {
+
+    private static final String BUCKET = "bench-bucket";
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int shardCount;
+
+    @Param({ "67108864" })
+    public int fileSize;
+
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private byte[] csv;
+    private Storage storage;
+    private ExecutorService executor;
+    private ShardedCsvUploader uploader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        csv = new SyntheticCsvInputStream(16, fileSize, 0.05, 0.05, 42).readAllBytes();
+        storage = LocalStorageHelper.getOptions().getService();
+        executor = Executors.newFixedThreadPool(shardCount);
+        uploader = new ShardedCsvUploader(storage, executor, 256 * 1024, gzip);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Bytes uploaded per invocation, reported next to the timing so MB/s can
+     * be read off directly.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Benchmark
+    public ShardedCsvUploader.Result shardedUpload(Bytes counter) throws IOException {
+        ShardedCsvUploader.Result result = uploader.upload(new ByteArrayInputStream(csv), BUCKET,
+                "bench/" + UUID.randomUUID() + "/", csv.length / shardCount + 1, shardCount);
+        counter.bytes += result.getBytes();
+        result.getShards().forEach(storage::delete);
+        return result;
+    }
+}
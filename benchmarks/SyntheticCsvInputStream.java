@@ -0,0 +1,176 @@
+package com.cvs.anbc.ahreports.benchmarks;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic CSV generator exposed as a stream, so files from a few MB to
+ * many GB can be produced without materializing them.
+ *
+ * Columns cycle through integer, decimal, date and text cells. A
+ * {@code quoteDensity} fraction of text cells is quoted and contains a
+ * delimiter, an escaped quote or a line break; a {@code utf8Density}
+ * fraction contains multi-byte UTF-8 characters.
+ */
+public class SyntheticCsvInputStream extends InputStream {
+
+    private static final String[] WORDS = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf",
+            "hotel" };
+    private static final String[] UTF8_WORDS = { "café", "naïve", "Zürich", "東京", "données", "Øresund" };
+
+    private final int columns;
+    private final long targetBytes;
+    private final double quoteDensity;
+    private final double utf8Density;
+    private final SplittableRandom random;
+    private final StringBuilder sb = new StringBuilder(1024);
+
+    private byte[] current;
+    private int position;
+    private long produced;
+    private long rows;
+
+    /**
+     * @param columns      number of columns per row.
+     * @param targetBytes  size at which generation stops, rounded up to a full
+     *                     row.
+     * @param quoteDensity fraction of text cells that need quoting.
+     * @param utf8Density  fraction of text cells with non-ASCII characters.
+     * @param seed         random seed; equal seeds give equal output.
+     */
+    public SyntheticCsvInputStream(int columns, long targetBytes, double quoteDensity, double utf8Density,
+            long seed) {
+        this.columns = columns;
+        this.targetBytes = targetBytes;
+        this.quoteDensity = quoteDensity;
+        this.utf8Density = utf8Density;
+        this.random = new SplittableRandom(seed);
+        this.current = header();
+    }
+
+    /**
+     * Parses sizes such as {@code 10MB} or {@code 2GB} used in benchmark
+     * parameters.
+     */
+    public static long parseSize(String size) {
+        String value = size.trim().toUpperCase(Locale.ROOT);
+        if (value.endsWith("GB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2)) << 30;
+        }
+        if (value.endsWith("MB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2)) << 20;
+        }
+        if (value.endsWith("KB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2)) << 10;
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * @return header names of the generated file: {@code col_1 .. col_n}.
+     */
+    public static String[] columnNames(int columns) {
+        String[] names = new String[columns];
+        for (int i = 0; i < columns; i++) {
+            names[i] = "col_" + (i + 1);
+        }
+        return names;
+    }
+
+    /**
+     * @return data rows generated so far.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    @Override
+    public int read() {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < length && ensureData()) {
+            int n = Math.min(length - total, current.length - position);
+            System.arraycopy(current, position, buffer, offset + total, n);
+            position += n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    private boolean ensureData() {
+        if (position < current.length) {
+            return true;
+        }
+        produced += current.length;
+        if (produced >= targetBytes) {
+            return false;
+        }
+        current = row();
+        position = 0;
+        rows++;
+        return true;
+    }
+
+    private byte[] header() {
+        return (String.join(",", columnNames(columns)) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] row() {
+        sb.setLength(0);
+        for (int c = 0; c < columns; c++) {
+            if (c > 0) {
+                sb.append(',');
+            }
+            switch (c % 4) {
+                case 0:
+                    sb.append(random.nextLong(1_000_000_000L));
+                    break;
+                case 1:
+                    sb.append(random.nextInt(100_000)).append('.').append(random.nextInt(10)).append(random.nextInt(10));
+                    break;
+                case 2:
+                    sb.append("2024-").append(two(1 + random.nextInt(12))).append('-').append(two(1 + random.nextInt(28)));
+                    break;
+                default:
+                    appendText();
+            }
+        }
+        sb.append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void appendText() {
+        String word = random.nextDouble() < utf8Density ? UTF8_WORDS[random.nextInt(UTF8_WORDS.length)]
+                : WORDS[random.nextInt(WORDS.length)];
+        if (random.nextDouble() < quoteDensity) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.append('"').append(word).append(", ").append(word).append('"');
+                    break;
+                case 1:
+                    sb.append('"').append(word).append(" \"\"quoted\"\"").append('"');
+                    break;
+                default:
+                    sb.append('"').append(word).append('\n').append(word).append('"');
+            }
+        } else {
+            sb.append(word).append('-').append(random.nextInt(1000));
+        }
+    }
+
+    private static String two(int value) {
+        return value < 10 ? "0" + value : Integer.toString(value);
+    }
+}
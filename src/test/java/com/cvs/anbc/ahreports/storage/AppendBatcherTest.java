@@ -0,0 +1,208 @@
+package com.cvs.anbc.ahreports.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.TableId;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class AppendBatcherTest {
+
+    private static final TableId ORDERS = TableId.of("project", "dataset", "orders");
+    private static final TableId RETURNS = TableId.of("project", "dataset", "returns");
+    private static final long WAIT_MS = 5_000;
+
+    // Load configurations the fake BigQuery was asked to create jobs for, in order
+    private final BlockingQueue<LoadJobConfiguration> created = new LinkedBlockingQueue<>();
+    // Jobs the fake BigQuery may answer; each creation waits for one, then fails
+    private final Semaphore answers = new Semaphore(0);
+    private LoadJobRegistry registry;
+    private AppendBatcher batcher;
+
+    @BeforeEach
+    void setUp() {
+        registry = new LoadJobRegistry(fakeBigQuery(), 4, 100, 60_000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        answers.release(1_000);
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        registry.shutdown();
+    }
+
+    @Test
+    void loadsTheBatchesOfATableOneAfterTheOther() throws InterruptedException {
+        AppendBatcher batcher = batcher(1);
+        Schema schema = schema(StandardSQLTypeName.INT64);
+        AppendBatcher.Batch first = batcher.append(ORDERS, "u1", "gs://bucket/1.csv", 10, schema);
+        AppendBatcher.Batch second = batcher.append(ORDERS, "u2", "gs://bucket/2.csv", 10, schema);
+        batcher.append(RETURNS, "u3", "gs://bucket/3.csv", 10, schema);
+
+        // The other table loads alongside, the second batch of the first waits for its first load
+        List<String> started = List.of(nextCreated().getSourceUris().get(0), nextCreated().getSourceUris().get(0));
+        assertTrue(started.containsAll(List.of("gs://bucket/1.csv", "gs://bucket/3.csv")), started.toString());
+        assertNull(created.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(LoadJobStatus.State.QUEUED, second.getLoad().getState());
+
+        // Its load ends, failed here, and the next batch of the table is loaded
+        answers.release(2);
+        assertEquals(List.of("gs://bucket/2.csv"), nextCreated().getSourceUris());
+        assertEquals(LoadJobStatus.State.FAILED, awaitEnd(first.getLoad()));
+        answers.release();
+        assertEquals(LoadJobStatus.State.FAILED, awaitEnd(second.getLoad()));
+    }
+
+    @Test
+    void coalescesFilesUntilTheBatchIsFull() throws InterruptedException {
+        AppendBatcher batcher = batcher(2);
+        Schema schema = schema(StandardSQLTypeName.STRING);
+        AppendBatcher.Batch batch = batcher.append(ORDERS, "u1", "gs://bucket/1.csv", 10, schema);
+        assertEquals(AppendBatcher.State.OPEN, batch.getState());
+        assertEquals(batch, batcher.append(ORDERS, "u2", "gs://bucket/2.csv", 15, schema));
+
+        LoadJobConfiguration load = nextCreated();
+        assertEquals(List.of("gs://bucket/1.csv", "gs://bucket/2.csv"), load.getSourceUris());
+        assertEquals(JobInfo.WriteDisposition.WRITE_APPEND, load.getWriteDisposition());
+        assertEquals(AppendBatcher.State.FLUSHED, batch.getState());
+        assertEquals(List.of("u1", "u2"), batch.getUploadIds());
+        assertEquals(25, batch.getBytes());
+        assertEquals(batch, batcher.get(batch.getId()));
+    }
+
+    @Test
+    void widensTheColumnsOfABatchToFitEveryFile() throws InterruptedException {
+        AppendBatcher batcher = batcher(3);
+        batcher.append(ORDERS, "u1", "gs://bucket/1.csv", 10,
+                schema(StandardSQLTypeName.INT64, StandardSQLTypeName.DATE, StandardSQLTypeName.INT64));
+        batcher.append(ORDERS, "u2", "gs://bucket/2.csv", 10,
+                schema(StandardSQLTypeName.FLOAT64, StandardSQLTypeName.DATETIME, StandardSQLTypeName.DATE));
+        batcher.append(ORDERS, "u3", "gs://bucket/3.csv", 10,
+                schema(StandardSQLTypeName.NUMERIC, StandardSQLTypeName.TIMESTAMP, StandardSQLTypeName.INT64));
+
+        assertEquals(schema(StandardSQLTypeName.FLOAT64, StandardSQLTypeName.TIMESTAMP, StandardSQLTypeName.STRING),
+                nextCreated().getSchema());
+    }
+
+    @Test
+    void rejectsFilesWhoseColumnsDifferFromTheBatch() {
+        AppendBatcher batcher = batcher(10);
+        batcher.append(ORDERS, "u1", "gs://bucket/1.csv", 10, schema(StandardSQLTypeName.INT64));
+        assertThrows(IllegalArgumentException.class, () -> batcher.append(ORDERS, "u2", "gs://bucket/2.csv", 10,
+                schema(StandardSQLTypeName.INT64, StandardSQLTypeName.INT64)));
+        assertThrows(IllegalArgumentException.class, () -> batcher.append(ORDERS, "u3", "gs://bucket/3.csv", 10,
+                Schema.of(Field.of("other", StandardSQLTypeName.INT64))));
+        assertEquals(1, batcher.flush(ORDERS).get(0).getFiles());
+    }
+
+    @Test
+    void widensAlongTheNumericAndTimeLaddersOnly() {
+        assertEquals(StandardSQLTypeName.NUMERIC,
+                AppendBatcher.widen(StandardSQLTypeName.INT64, StandardSQLTypeName.NUMERIC));
+        assertEquals(StandardSQLTypeName.FLOAT64,
+                AppendBatcher.widen(StandardSQLTypeName.FLOAT64, StandardSQLTypeName.INT64));
+        assertEquals(StandardSQLTypeName.DATETIME,
+                AppendBatcher.widen(StandardSQLTypeName.DATE, StandardSQLTypeName.DATETIME));
+        assertEquals(StandardSQLTypeName.TIMESTAMP,
+                AppendBatcher.widen(StandardSQLTypeName.TIMESTAMP, StandardSQLTypeName.DATE));
+        assertEquals(StandardSQLTypeName.BOOL,
+                AppendBatcher.widen(StandardSQLTypeName.BOOL, StandardSQLTypeName.BOOL));
+        assertEquals(StandardSQLTypeName.STRING,
+                AppendBatcher.widen(StandardSQLTypeName.INT64, StandardSQLTypeName.DATE));
+        assertEquals(StandardSQLTypeName.STRING,
+                AppendBatcher.widen(StandardSQLTypeName.BOOL, StandardSQLTypeName.INT64));
+    }
+
+    @Test
+    void appendsOnlyWhatLoadsIntoTheTableColumns() {
+        Schema table = schema(StandardSQLTypeName.FLOAT64, StandardSQLTypeName.TIMESTAMP, StandardSQLTypeName.STRING);
+        AppendBatcher.checkAppendable(table,
+                schema(StandardSQLTypeName.INT64, StandardSQLTypeName.DATE, StandardSQLTypeName.BOOL), ORDERS);
+        assertThrows(IllegalArgumentException.class, () -> AppendBatcher.checkAppendable(
+                schema(StandardSQLTypeName.INT64), schema(StandardSQLTypeName.FLOAT64), ORDERS));
+        assertThrows(IllegalArgumentException.class, () -> AppendBatcher.checkAppendable(
+                schema(StandardSQLTypeName.DATE), schema(StandardSQLTypeName.TIMESTAMP), ORDERS));
+        assertThrows(IllegalArgumentException.class, () -> AppendBatcher.checkAppendable(table,
+                schema(StandardSQLTypeName.INT64), ORDERS));
+    }
+
+    private AppendBatcher batcher(int maxBatchFiles) {
+        batcher = new AppendBatcher(fakeBigQuery(), registry, new PipelineMetrics(new SimpleMeterRegistry(), 10),
+                FormatOptions.csv(), Long.MAX_VALUE, maxBatchFiles, 60_000, 100);
+        return batcher;
+    }
+
+    private LoadJobConfiguration nextCreated() throws InterruptedException {
+        LoadJobConfiguration load = created.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(load, "no load job was created");
+        return load;
+    }
+
+    private static LoadJobStatus.State awaitEnd(LoadJobStatus load) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!load.getState().isTerminal() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return load.getState();
+    }
+
+    // Columns c1, c2, ... of the given types.
+    private static Schema schema(StandardSQLTypeName... types) {
+        Field[] fields = new Field[types.length];
+        for (int i = 0; i < types.length; i++) {
+            fields[i] = Field.of("c" + (i + 1), types[i]);
+        }
+        return Schema.of(fields);
+    }
+
+    // No table exists; a load job is recorded, then refused once answered, which ends the load.
+    private BigQuery fakeBigQuery() {
+        return (BigQuery) Proxy.newProxyInstance(BigQuery.class.getClassLoader(), new Class<?>[] { BigQuery.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "create":
+                            if (args[0] instanceof JobInfo) {
+                                created.add(((JobInfo) args[0]).getConfiguration());
+                                answers.tryAcquire(WAIT_MS, TimeUnit.MILLISECONDS);
+                                throw new IllegalStateException("The fake BigQuery creates no jobs");
+                            }
+                            throw new UnsupportedOperationException(method.getName());
+                        case "getTable":
+                        case "getJob":
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "FakeBigQuery";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
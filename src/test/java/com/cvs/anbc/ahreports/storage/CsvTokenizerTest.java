@@ -0,0 +1,183 @@
+package com.cvs.anbc.ahreports.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class CsvTokenizerTest {
+
+    // Size of the tokenizer's input buffer, so cells and record ends can straddle its refills
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    void splitsRecordsAndCells() throws IOException {
+        assertEquals(List.of(List.of("a", "b", "c"), List.of("1", "", "3")), records("a,b,c\n1,,3\n"));
+    }
+
+    @Test
+    void unescapesQuotedCells() throws IOException {
+        String csv = "\"x,y\",\"he said \"\"hi\"\"\",\"\"\n";
+        assertEquals(List.of(List.of("x,y", "he said \"hi\"", "")), records(csv));
+    }
+
+    @Test
+    void keepsLineBreaksInsideQuotes() throws IOException {
+        CsvTokenizer tokenizer = tokenizer("\"first\nsecond\r\nthird\",b\nnext\n");
+        assertTrue(tokenizer.next());
+        assertEquals(List.of("first\nsecond\r\nthird", "b"), tokenizer.cells());
+        assertEquals(1, tokenizer.lineNumber());
+        assertTrue(tokenizer.next());
+        assertEquals(List.of("next"), tokenizer.cells());
+        assertEquals(4, tokenizer.lineNumber());
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    void endsRecordsOnCrlfLfAndCr() throws IOException {
+        assertEquals(List.of(List.of("a", "b"), List.of("c"), List.of("d"), List.of("e")),
+                records("a,b\r\nc\nd\re\r\n"));
+    }
+
+    @Test
+    void reportsWhetherTheLastRecordWasTerminated() throws IOException {
+        CsvTokenizer tokenizer = tokenizer("a\r\nb");
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.isTerminated());
+        assertTrue(tokenizer.next());
+        assertFalse(tokenizer.isTerminated());
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    void skipsALeadingByteOrderMarkOnly() throws IOException {
+        assertEquals(List.of(List.of("id", "name"), List.of("\uFEFF1", "x")), records("\uFEFFid,name\n\uFEFF1,x"));
+        assertFalse(tokenizer("\uFEFF").next());
+    }
+
+    @Test
+    void trimsUnquotedCellsOnly() throws IOException {
+        assertEquals(List.of(List.of("a", "b", " c ")), records("  a ,\tb\t,\" c \""));
+        CsvTokenizer untrimmed = new CsvTokenizer(new StringReader(" a ,b"), ',', false);
+        assertTrue(untrimmed.next());
+        assertEquals(List.of(" a ", "b"), untrimmed.cells());
+    }
+
+    @Test
+    void tellsBlankLinesFromEmptyQuotedCells() throws IOException {
+        CsvTokenizer tokenizer = tokenizer("a\n\n\"\"\n");
+        assertTrue(tokenizer.next());
+        assertFalse(tokenizer.isBlank());
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.isBlank());
+        assertTrue(tokenizer.next());
+        assertFalse(tokenizer.isBlank());
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    void usesTheConfiguredDelimiter() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("a|\"b|c\"|d,e"), '|', true);
+        assertTrue(tokenizer.next());
+        assertEquals(List.of("a", "b|c", "d,e"), tokenizer.cells());
+    }
+
+    @Test
+    void parsesTheSameWhenTheSourceReturnsOneCharAtATime() throws IOException {
+        String csv = "\uFEFF\"a\"\"b\",c\r\n\"multi\r\nline\",  d \r\n\r\ne,\"\"";
+        List<List<String>> expected = List.of(List.of("a\"b", "c"), List.of("multi\r\nline", "d"), List.of(""),
+                List.of("e", ""));
+        assertEquals(expected, records(csv));
+        assertEquals(expected, records(new CsvTokenizer(new OneCharReader(csv), ',', true)));
+    }
+
+    @Test
+    void readsCellsLongerThanTheInputBuffer() throws IOException {
+        String longCell = "x".repeat(INPUT_BUFFER_SIZE + 17);
+        String quotedCell = "y\"" + "y".repeat(INPUT_BUFFER_SIZE + 17);
+        String csv = longCell + ",a\n\"" + quotedCell.replace("\"", "\"\"") + "\",b\n";
+        assertEquals(List.of(List.of(longCell, "a"), List.of(quotedCell, "b")), records(csv));
+    }
+
+    @Test
+    void readsACrlfSplitAcrossTwoReads() throws IOException {
+        // The CR is the last char of the first read, its LF the first of the next
+        String first = "a".repeat(INPUT_BUFFER_SIZE - 1);
+        CsvTokenizer tokenizer = tokenizer(first + "\r\nb\n");
+        assertTrue(tokenizer.next());
+        assertEquals(List.of(first), tokenizer.cells());
+        assertTrue(tokenizer.next());
+        assertEquals(List.of("b"), tokenizer.cells());
+        assertEquals(2, tokenizer.lineNumber());
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    void readsAnEscapedQuoteSplitAcrossTwoReads() throws IOException {
+        // The quotes of "" fall on either side of the end of the first read
+        String prefix = "z".repeat(INPUT_BUFFER_SIZE - 2);
+        assertEquals(List.of(List.of(prefix + "\"q", "r")), records("\"" + prefix + "\"\"q\",r"));
+    }
+
+    @Test
+    void writesCellsBackQuotedOnlyWhenNeeded() throws IOException {
+        CsvTokenizer tokenizer = tokenizer("plain,\"a,b\",\"say \"\"x\"\"\",\"l1\nl2\"\n");
+        assertTrue(tokenizer.next());
+        StringWriter out = new StringWriter();
+        tokenizer.writeCells(new int[] { 3, 0, 1, 2, 7 }, out);
+        assertEquals("\"l1\nl2\",plain,\"a,b\",\"say \"\"x\"\"\",\n", out.toString());
+    }
+
+    @Test
+    void parsesASingleRecord() {
+        assertEquals(List.of("id", "first name"), CsvTokenizer.parseRecord("id, \"first name\"\r\nignored", ','));
+        assertEquals(List.of(), CsvTokenizer.parseRecord("", ','));
+    }
+
+    private static CsvTokenizer tokenizer(String csv) {
+        return new CsvTokenizer(new StringReader(csv), ',', true);
+    }
+
+    private static List<List<String>> records(String csv) throws IOException {
+        return records(tokenizer(csv));
+    }
+
+    private static List<List<String>> records(CsvTokenizer tokenizer) throws IOException {
+        List<List<String>> records = new ArrayList<>();
+        while (tokenizer.next()) {
+            records.add(tokenizer.cells());
+        }
+        return records;
+    }
+
+    // Hands out a single char per read, so every char is a buffer boundary.
+    private static final class OneCharReader extends Reader {
+        private final String text;
+        private int position;
+
+        OneCharReader(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == text.length()) {
+                return -1;
+            }
+            buffer[offset] = text.charAt(position++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.cvs.anbc.ahreports.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.cloud.bigquery.StandardSQLTypeName;
+
+class SchemaInferenceTest {
+
+    @Test
+    void loadsEveryBoolSpellingBigQueryAccepts() {
+        for (String value : List.of("true", "FALSE", "True", "1", "0", "t", "F", "yes", "No", "Y", "n")) {
+            assertTrue(SchemaInference.loadable(StandardSQLTypeName.BOOL, value), value);
+        }
+        for (String value : List.of("2", "tru", "yess", "on", "off", "-1", " true")) {
+            assertFalse(SchemaInference.loadable(StandardSQLTypeName.BOOL, value), value);
+        }
+    }
+
+    @Test
+    void infersBoolFromTrueAndFalseOnly() {
+        assertTrue(SchemaInference.conforms(StandardSQLTypeName.BOOL, "TRUE"));
+        assertFalse(SchemaInference.conforms(StandardSQLTypeName.BOOL, "yes"));
+        assertFalse(SchemaInference.conforms(StandardSQLTypeName.BOOL, "1"));
+        assertEquals(StandardSQLTypeName.INT64, SchemaInference.inferType(List.of("1", "0", "1")));
+        assertEquals(StandardSQLTypeName.STRING, SchemaInference.inferType(List.of("y", "n")));
+    }
+
+    @Test
+    void loadsZeroPaddedNumbersThatAreInferredAsStrings() {
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.INT64, "02134"));
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.NUMERIC, "007.50"));
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.FLOAT64, "-0012.5e3"));
+        assertFalse(SchemaInference.conforms(StandardSQLTypeName.INT64, "02134"));
+        assertEquals(StandardSQLTypeName.STRING, SchemaInference.inferType(List.of("02134", "10001")));
+    }
+
+    @Test
+    void rejectsNumbersOutOfRange() {
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.INT64, "9223372036854775807"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.INT64, "9223372036854775808"));
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.INT64, "0009223372036854775807"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.INT64, "1.0"));
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.NUMERIC, "1.123456789"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.NUMERIC, "1.1234567891"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.NUMERIC, "1" + "0".repeat(29)));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.FLOAT64, "1e"));
+    }
+
+    @Test
+    void loadsDateOnlyValuesIntoDateTimeAndTimestamp() {
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.DATETIME, "2024-02-29"));
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.TIMESTAMP, "2024-02-29"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.TIMESTAMP, "2023-02-29"));
+        assertFalse(SchemaInference.conforms(StandardSQLTypeName.DATETIME, "2024-02-29"));
+        assertEquals(StandardSQLTypeName.DATE, SchemaInference.inferType(List.of("2024-02-29", "2024-03-01")));
+    }
+
+    @Test
+    void loadsTimestampsWithZonesOnlyIntoTimestamp() {
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.DATETIME, "2024-01-31 23:59:59.123456"));
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.DATETIME, "2024-01-31T08:30"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.DATETIME, "2024-01-31 08:30:00Z"));
+        for (String value : List.of("2024-01-31 08:30:00Z", "2024-01-31T08:30:00 UTC", "2024-01-31 08:30+05",
+                "2024-01-31 08:30:00-05:30", "2024-01-31 08:30:00.5+0530")) {
+            assertTrue(SchemaInference.loadable(StandardSQLTypeName.TIMESTAMP, value), value);
+        }
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.TIMESTAMP, "2024-01-31 24:00:00"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.TIMESTAMP, "2024-01-31 08:30:00.1234567"));
+    }
+
+    @Test
+    void loadsEmptyValuesAndAnythingIntoString() {
+        for (StandardSQLTypeName type : List.of(StandardSQLTypeName.BOOL, StandardSQLTypeName.INT64,
+                StandardSQLTypeName.DATE, StandardSQLTypeName.TIMESTAMP)) {
+            assertTrue(SchemaInference.loadable(type, ""), type.name());
+        }
+        assertTrue(SchemaInference.loadable(StandardSQLTypeName.STRING, "anything, really"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.DATE, "2024-1-31"));
+        assertFalse(SchemaInference.loadable(StandardSQLTypeName.DATE, "2024-01-31 00:00"));
+    }
+}